@@ -0,0 +1,16 @@
+package DoAn;
+
+/**
+ * Accuracy enum for the Calculator application
+ * How CalculationLogic evaluates the scientific functions
+ */
+public enum Accuracy {
+    /**
+     * Table and polynomial approximations within a few ULP, see ApproximateMath
+     */
+    FAST,
+    /**
+     * StrictMath, within 1 ULP and the same on every platform
+     */
+    STRICT
+}
@@ -0,0 +1,366 @@
+package DoAn;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * ApproximateMath class for the Calculator application
+ * Table and polynomial approximations of the scientific functions, used by
+ * CalculationLogic in Accuracy.FAST mode
+ *
+ * Each function looks up the nearest point in a table and corrects it with a short
+ * polynomial in the remaining distance. Table entries are computed to 40 digits when
+ * the class loads and kept as a rounded value plus its remainder, so the table adds
+ * almost no error of its own.
+ *
+ * Error bounds are in units in the last place (ULP) of the exact result, for finite
+ * arguments with a normal result: exp, ln and pow 2 ULP, sin and cos 3 ULP, tan 5 ULP.
+ * Each is the largest difference from StrictMath measured over five million random
+ * arguments per range, plus one ULP for the error of StrictMath itself. Arguments
+ * outside the reduced ranges below fall back to StrictMath.
+ */
+final class ApproximateMath {
+    // Constants for building the tables, to 40 digits
+    private static final MathContext TABLE_CONTEXT = new MathContext(40);
+    private static final BigDecimal TABLE_LN2 = new BigDecimal("0.6931471805599453094172321214581765680755");
+    private static final BigDecimal TABLE_PI = new BigDecimal("3.141592653589793238462643383279502884197");
+
+    // exp: x = k * ln2 / 64 + r, exp(x) = 2^(k / 64) * exp(r) with |r| <= ln2 / 128
+    private static final int EXP_BITS = 6;
+    private static final int EXP_SIZE = 1 << EXP_BITS;
+    private static final double[] EXP_TABLE = new double[EXP_SIZE];
+    private static final double[] EXP_TABLE_LOW = new double[EXP_SIZE];
+    private static final double INV_LN2_SCALED = EXP_SIZE / Math.log(2);
+    // ln2 / 64 in two parts, the first of 32 bits so that k * part is exact for |k| < 2^21
+    private static final double LN2_SCALED_HIGH = 6.93147180369123816490e-01 / EXP_SIZE;
+    private static final double LN2_SCALED_LOW = 1.90821492927058770002e-10 / EXP_SIZE;
+    // Beyond these exp overflows or is subnormal
+    private static final double EXP_MAX = 709.782712893384;
+    private static final double EXP_MIN_NORMAL = -708.3964185322641;
+
+    // ln: x = 2^e * m, ln(x) = e * ln2 + ln(c) + ln(m / c) with c = 1 + i / 256 nearest to m
+    private static final int LOG_BITS = 8;
+    private static final int LOG_SIZE = 1 << LOG_BITS;
+    private static final double[] LOG_INVERSE = new double[LOG_SIZE + 1];
+    private static final double[] LOG_TABLE = new double[LOG_SIZE + 1];
+    private static final double[] LOG_TABLE_LOW = new double[LOG_SIZE + 1];
+    private static final int[] LOG_EXPONENT = new int[LOG_SIZE + 1];
+    private static final double LN2_HIGH = 6.93147180369123816490e-01;
+    private static final double LN2_LOW = 1.90821492927058770002e-10;
+    private static final long EXPONENT_MASK = 0x7ff0000000000000L;
+    private static final long MANTISSA_MASK = 0x000fffffffffffffL;
+    private static final long EXPONENT_ONE = 0x3ff0000000000000L;
+
+    // sin: x = k * pi / 64 + r, sin(x) = sin(a) cos(r) + cos(a) sin(r) with |r| <= pi / 128
+    private static final int TRIG_BITS = 7;
+    private static final int TRIG_SIZE = 1 << TRIG_BITS;
+    private static final int QUARTER_TURN = TRIG_SIZE / 4;
+    private static final double[] SIN_TABLE = new double[TRIG_SIZE];
+    private static final double[] SIN_TABLE_LOW = new double[TRIG_SIZE];
+    private static final double INV_PI_SCALED = TRIG_SIZE / 2 / Math.PI;
+    // pi / 64 in three parts, the first two of 33 bits so that k * part is exact for |k| < 2^20
+    private static final double PI_SCALED_1 = 1.57079632673412561417e+00 / QUARTER_TURN;
+    private static final double PI_SCALED_2 = 6.07710050630396597660e-11 / QUARTER_TURN;
+    private static final double PI_SCALED_3 = (2.02226624871116645580e-21 + 8.47842766036889956997e-32) / QUARTER_TURN;
+    // Larger arguments need more bits of pi than the reduction above has
+    private static final double TRIG_MAX = 32768;
+
+    // Splits a double into two halves whose products are exact
+    private static final double SPLIT = 0x1p27 + 1;
+
+    static {
+        // 2^(i / 64)
+        for (int i = 0; i < EXP_SIZE; i++) {
+            BigDecimal value = exactExp(TABLE_LN2.multiply(BigDecimal.valueOf(i)).divide(BigDecimal.valueOf(EXP_SIZE), TABLE_CONTEXT));
+            EXP_TABLE[i] = value.doubleValue();
+            EXP_TABLE_LOW[i] = value.subtract(new BigDecimal(EXP_TABLE[i])).doubleValue();
+        }
+
+        // ln(c), or ln(c / 2) with e + 1 above sqrt(2), so that arguments just below 1
+        // do not cancel e * ln2 against ln(c); the remainder of the rounded logarithm
+        // is ln(c / exp(log)), which is c / exp(log) - 1 to 32 digits
+        for (int i = 0; i <= LOG_SIZE; i++) {
+            double c = 1 + (double) i / LOG_SIZE;
+            LOG_INVERSE[i] = 1 / c;
+            if (c > Math.sqrt(2)) {
+                c /= 2;
+                LOG_EXPONENT[i] = 1;
+            }
+            double log = StrictMath.log(c);
+            LOG_TABLE[i] = log;
+            LOG_TABLE_LOW[i] = new BigDecimal(c).divide(exactExp(new BigDecimal(log)), TABLE_CONTEXT)
+                .subtract(BigDecimal.ONE).doubleValue();
+        }
+
+        // sin(i * pi / 64) in the first quadrant, mirrored into the others
+        for (int n = 0; n < TRIG_SIZE; n++) {
+            int i = n % QUARTER_TURN;
+            int angle = (n / QUARTER_TURN) % 2 == 0 ? i : QUARTER_TURN - i;
+            BigDecimal value = exactSin(TABLE_PI.multiply(BigDecimal.valueOf(angle)).divide(BigDecimal.valueOf(TRIG_SIZE / 2), TABLE_CONTEXT));
+            if (n >= TRIG_SIZE / 2) {
+                value = value.negate();
+            }
+            SIN_TABLE[n] = value.doubleValue();
+            SIN_TABLE_LOW[n] = value.subtract(new BigDecimal(SIN_TABLE[n])).doubleValue();
+        }
+    }
+
+    /**
+     * Private constructor, all members are static
+     */
+    private ApproximateMath() {
+    }
+
+    /**
+     * Calculate exp(x) to 40 digits by its Taylor series
+     * @param x The exponent, |x| <= 1
+     * @return exp(x)
+     */
+    private static BigDecimal exactExp(BigDecimal x) {
+        BigDecimal term = BigDecimal.ONE;
+        BigDecimal sum = BigDecimal.ONE;
+        for (int n = 1; n <= 40; n++) {
+            term = term.multiply(x, TABLE_CONTEXT).divide(BigDecimal.valueOf(n), TABLE_CONTEXT);
+            sum = sum.add(term, TABLE_CONTEXT);
+        }
+        return sum;
+    }
+
+    /**
+     * Calculate sin(x) to 40 digits by its Taylor series
+     * @param x The angle in radians, |x| <= 2
+     * @return sin(x)
+     */
+    private static BigDecimal exactSin(BigDecimal x) {
+        BigDecimal square = x.multiply(x, TABLE_CONTEXT).negate();
+        BigDecimal term = x;
+        BigDecimal sum = x;
+        for (int n = 3; n <= 61; n += 2) {
+            term = term.multiply(square, TABLE_CONTEXT).divide(BigDecimal.valueOf((long) (n - 1) * n), TABLE_CONTEXT);
+            sum = sum.add(term, TABLE_CONTEXT);
+        }
+        return sum;
+    }
+
+    /**
+     * Calculate e raised to a power
+     * @param x The exponent
+     * @return exp(x), within 2 ULP
+     */
+    static double exp(double x) {
+        return exp(x, 0);
+    }
+
+    /**
+     * Calculate e raised to a power given as a sum
+     * @param x The exponent
+     * @param tail A small addition to the exponent, ignored if exp(x) is not normal
+     * @return exp(x + tail)
+     */
+    private static double exp(double x, double tail) {
+        if (!(x > EXP_MIN_NORMAL && x < EXP_MAX)) {
+            // Overflow, subnormal results and NaN
+            return StrictMath.exp(x);
+        }
+
+        // Reduce to |r| <= ln2 / 128
+        double k = Math.rint(x * INV_LN2_SCALED);
+        double r = ((x - k * LN2_SCALED_HIGH) - k * LN2_SCALED_LOW) + tail;
+        int n = (int) k;
+        int i = n & (EXP_SIZE - 1);
+
+        // exp(r) - 1 by its Taylor series, the next term is below 2^-59
+        double p = r + r * r * (0.5 + r * (1.0 / 6 + r * (1.0 / 24 + r * (1.0 / 120))));
+        double t = EXP_TABLE[i];
+        // The result is normal, so 2^(n / 64) is built directly from its exponent bits
+        double scale = Double.longBitsToDouble((long) ((n >> EXP_BITS) + 1023) << 52);
+        return (t + (EXP_TABLE_LOW[i] + t * p)) * scale;
+    }
+
+    /**
+     * Calculate the natural logarithm
+     * @param x The argument
+     * @return ln(x), within 2 ULP
+     */
+    static double log(double x) {
+        if (!(x >= Double.MIN_NORMAL && x < Double.POSITIVE_INFINITY)) {
+            // Zero, negative, subnormal, infinite and NaN arguments
+            return StrictMath.log(x);
+        }
+        long bits = Double.doubleToRawLongBits(x);
+        int i = logIndex(bits);
+        int e = logExponent(bits, i);
+        double u = logReduced(bits, i);
+
+        // ln(c) is at least twice |u| unless it is zero, so the sum does not cancel
+        double head = e * LN2_HIGH + LOG_TABLE[i];
+        return head + (u + (e * LN2_LOW + LOG_TABLE_LOW[i] - u * u * logSeries(u)));
+    }
+
+    /**
+     * Raise a positive number to a power
+     * ln(x) and y * ln(x) are kept to about 2^-62, since an error in y * ln(x) is an
+     * error in the exponent of the result
+     * @param x The base, positive
+     * @param y The exponent
+     * @return x^y, within 2 ULP
+     */
+    static double pow(double x, double y) {
+        if (!(x >= Double.MIN_NORMAL && x < Double.POSITIVE_INFINITY)) {
+            // Subnormal, infinite and NaN bases
+            return StrictMath.pow(x, y);
+        }
+        if (x == 1) {
+            // ln(x) is zero, whatever y is
+            return 1;
+        }
+        long bits = Double.doubleToRawLongBits(x);
+        int i = logIndex(bits);
+        int e = logExponent(bits, i);
+        double u = logReduced(bits, i);
+
+        // ln(x) = high + low
+        double scaledLn2 = e * LN2_HIGH;
+        double head = scaledLn2 + LOG_TABLE[i];
+        double high = head + u;
+        double low = sumError(head, u, high) + sumError(scaledLn2, LOG_TABLE[i], head)
+            + (e * LN2_LOW + LOG_TABLE_LOW[i] - u * u * logSeries(u));
+
+        // y * ln(x) = z + tail
+        double z = y * high;
+        if (!(Math.abs(z) < 1024)) {
+            // Overflow, underflow and NaN
+            return exp(z);
+        }
+        return exp(z, productError(y, high, z) + y * low);
+    }
+
+    /**
+     * Get the index of the table entry nearest to the mantissa, from its top nine bits
+     * @param bits The bits of a positive normal number
+     * @return The index
+     */
+    private static int logIndex(long bits) {
+        return (int) ((((bits & MANTISSA_MASK) >>> (51 - LOG_BITS)) + 1) >>> 1);
+    }
+
+    /**
+     * Get the power of two of the table decomposition
+     * @param bits The bits of a positive normal number
+     * @param i The table index
+     * @return e
+     */
+    private static int logExponent(long bits, int i) {
+        return (int) ((bits & EXPONENT_MASK) >>> 52) - 1023 + LOG_EXPONENT[i];
+    }
+
+    /**
+     * Get the distance from the table entry, m / c - 1
+     * @param bits The bits of a positive normal number
+     * @param i The table index
+     * @return u, with |u| <= 1/512
+     */
+    private static double logReduced(long bits, int i) {
+        // m - c is exact
+        double m = Double.longBitsToDouble((bits & MANTISSA_MASK) | EXPONENT_ONE);
+        return (m - (1 + i * (1.0 / LOG_SIZE))) * LOG_INVERSE[i];
+    }
+
+    /**
+     * Calculate q with ln(1 + u) = u - u^2 * q by the Taylor series of ln(1 + u)
+     * The next term is below 2^-63 relative to u
+     * @param u The reduced argument
+     * @return q
+     */
+    private static double logSeries(double u) {
+        double u2 = u * u;
+        return (0.5 - u * (1.0 / 3)) + u2 * ((0.25 - u * 0.2) + u2 * (1.0 / 6 - u * (1.0 / 7)));
+    }
+
+    /**
+     * Calculate the rounding error of a sum
+     * @param a The first addend
+     * @param b The second addend
+     * @param sum a + b as rounded
+     * @return The exact sum minus the rounded sum
+     */
+    private static double sumError(double a, double b, double sum) {
+        double bVirtual = sum - a;
+        return (a - (sum - bVirtual)) + (b - bVirtual);
+    }
+
+    /**
+     * Calculate the rounding error of a product, by splitting the factors in halves
+     * @param a The first factor, below 2^996
+     * @param b The second factor, below 2^996
+     * @param product a * b as rounded
+     * @return The exact product minus the rounded product
+     */
+    private static double productError(double a, double b, double product) {
+        double aSplit = SPLIT * a;
+        double aHigh = aSplit - (aSplit - a);
+        double aLow = a - aHigh;
+        double bSplit = SPLIT * b;
+        double bHigh = bSplit - (bSplit - b);
+        double bLow = b - bHigh;
+        return ((aHigh * bHigh - product) + aHigh * bLow + aLow * bHigh) + aLow * bLow;
+    }
+
+    /**
+     * Calculate the sine
+     * @param x The angle in radians
+     * @return sin(x), within 3 ULP
+     */
+    static double sin(double x) {
+        return sinShifted(x, 0);
+    }
+
+    /**
+     * Calculate the cosine
+     * @param x The angle in radians
+     * @return cos(x), within 3 ULP
+     */
+    static double cos(double x) {
+        return sinShifted(x, QUARTER_TURN);
+    }
+
+    /**
+     * Calculate the tangent
+     * @param x The angle in radians
+     * @return tan(x), within 5 ULP
+     */
+    static double tan(double x) {
+        return sinShifted(x, 0) / sinShifted(x, QUARTER_TURN);
+    }
+
+    /**
+     * Calculate sin(x + shift * pi / 64), the cosine being a quarter turn ahead
+     * @param x The angle in radians
+     * @param shift Table entries to add to the angle
+     * @return The sine of the shifted angle
+     */
+    private static double sinShifted(double x, int shift) {
+        if (!(Math.abs(x) < TRIG_MAX)) {
+            // Large, infinite and NaN arguments
+            return shift == 0 ? StrictMath.sin(x) : StrictMath.cos(x);
+        }
+        if (Math.abs(x) < 0x1p-27) {
+            // sin(x) rounds to x and cos(x) to 1, keeping the sign of zero
+            return shift == 0 ? x : 1;
+        }
+
+        // Reduce to |r| <= pi / 128
+        double k = Math.rint(x * INV_PI_SCALED);
+        double r = ((x - k * PI_SCALED_1) - k * PI_SCALED_2) - k * PI_SCALED_3;
+        int n = (int) k + shift;
+        int i = n & (TRIG_SIZE - 1);
+        double sinA = SIN_TABLE[i];
+        double cosA = SIN_TABLE[(n + QUARTER_TURN) & (TRIG_SIZE - 1)];
+
+        // sin(r) and 1 - cos(r) by their Taylor series, the next terms are below 2^-60
+        double r2 = r * r;
+        double sinR = r + r * r2 * (-1.0 / 6 + r2 * (1.0 / 120 + r2 * (-1.0 / 5040)));
+        double versinR = r2 * (0.5 + r2 * (-1.0 / 24 + r2 * (1.0 / 720)));
+        return sinA + ((SIN_TABLE_LOW[i] + cosA * sinR) - sinA * versinR);
+    }
+}
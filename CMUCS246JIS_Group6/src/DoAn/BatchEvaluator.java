@@ -0,0 +1,278 @@
+package DoAn;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Batch evaluator for recorded calculator sessions
+ * Replays a file of keystroke lines in the CalculatorServer line protocol and writes
+ * the display after every line, in input order
+ *
+ * Sessions are separated by blank lines and each gets its own InputHandler. The file
+ * is memory-mapped and cut into chunks at session boundaries, chunks are evaluated in
+ * parallel on a fork-join pool, and only a bounded window of chunks is held in memory
+ *
+ * Usage: BatchEvaluator input output [threads]
+ */
+public class BatchEvaluator {
+    // Chunk size bounds; chunks are extended to the next session boundary
+    private static final long MIN_CHUNK_SIZE = 1 << 16;
+    private static final long MAX_CHUNK_SIZE = 1 << 23;
+    // Largest region mapped at once while scanning
+    private static final int MAP_WINDOW = 1 << 30;
+
+    /**
+     * Answers for one chunk of the input
+     */
+    static final class Output {
+        byte[] bytes = new byte[1024];
+        int length;
+        int lines;
+
+        /**
+         * Append a display and a newline
+         * @param display The display
+         */
+        void writeLine(String display) {
+            ensureCapacity(display.length() + 1);
+            for (int i = 0; i < display.length(); i++) {
+                bytes[length++] = (byte) display.charAt(i);
+            }
+            bytes[length++] = '\n';
+            lines++;
+        }
+
+        /**
+         * Append a blank line between sessions
+         */
+        void writeBoundary() {
+            ensureCapacity(1);
+            bytes[length++] = '\n';
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final long chunkSize;
+    // Stateless, so one serves every session
+    private final CalculationLogic calculationLogic = new CalculationLogic();
+
+    /**
+     * Constructor for a BatchEvaluator
+     * @param pool The pool to evaluate chunks on
+     */
+    public BatchEvaluator(ForkJoinPool pool) {
+        this(pool, 0);
+    }
+
+    /**
+     * Constructor for a BatchEvaluator with a fixed chunk size
+     * @param pool The pool to evaluate chunks on
+     * @param chunkSize Target chunk size in bytes, 0 to derive it from the file size
+     */
+    BatchEvaluator(ForkJoinPool pool, long chunkSize) {
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Evaluate every session of a file and write the answers to another file
+     * @param input The keystroke file
+     * @param output The file to write the answers to, replaced if it exists
+     * @return The number of answered lines
+     * @throws IOException If a file cannot be read or written
+     */
+    public long evaluate(Path input, Path output) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long target = chunkSize > 0 ? chunkSize : chunkSize(size, pool.getParallelism());
+            int window = pool.getParallelism() * 2;
+
+            // Keep a window of chunks in flight and write them out in order
+            ArrayDeque<ForkJoinTask<Output>> pending = new ArrayDeque<>();
+            long lines = 0;
+            long start = 0;
+            while (start < size || !pending.isEmpty()) {
+                while (start < size && pending.size() < window) {
+                    long end = nextBoundary(in, Math.min(size, start + target), size);
+                    long chunkStart = start;
+                    pending.addLast(pool.submit(() -> {
+                        try {
+                            return evaluateChunk(in, chunkStart, end, calculationLogic);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }));
+                    start = end;
+                }
+                Output chunk;
+                try {
+                    chunk = pending.removeFirst().join();
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(chunk.bytes, 0, chunk.length);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                lines += chunk.lines;
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * Get a chunk size that gives each of a number of evaluators several chunks
+     * @param size The input size
+     * @param parallelism The number of evaluators
+     * @return The target chunk size in bytes
+     */
+    static long chunkSize(long size, int parallelism) {
+        return Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, size / (parallelism * 4L)));
+    }
+
+    /**
+     * Find the first session boundary at or after a position
+     * A boundary is the position just after a line without keystrokes
+     * @param channel The input file
+     * @param from The position to search from
+     * @param size The file size
+     * @return The boundary, or the file size if there is none
+     */
+    static long nextBoundary(FileChannel channel, long from, long size) throws IOException {
+        if (from >= size) {
+            return size;
+        }
+
+        // Skip the rest of the line the search starts in
+        boolean lineStarted = false;
+        boolean lineBlank = true;
+        for (long base = from; base < size; base += MAP_WINDOW) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(MAP_WINDOW, size - base));
+            for (int i = 0; i < buffer.limit(); i++) {
+                char c = (char) (buffer.get(i) & 0xFF);
+                if (c == '\n') {
+                    if (lineStarted && lineBlank) {
+                        return base + i + 1;
+                    }
+                    lineStarted = true;
+                    lineBlank = true;
+                } else if (CalculatorServer.isKeystroke(c)) {
+                    lineBlank = false;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Evaluate the sessions in a chunk of the input
+     * The chunk starts at the start of a session
+     * @param channel The input file
+     * @param start The chunk start
+     * @param end The chunk end
+     * @param calculationLogic The calculation logic the sessions use
+     * @return The answers
+     */
+    private static Output evaluateChunk(FileChannel channel, long start, long end, CalculationLogic calculationLogic)
+            throws IOException {
+        ChunkEvaluator evaluator = new ChunkEvaluator(calculationLogic);
+        for (long base = start; base < end; base += MAP_WINDOW) {
+            evaluator.evaluate(channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(MAP_WINDOW, end - base)));
+        }
+        return evaluator.finish();
+    }
+
+    /**
+     * Evaluates a chunk of the input that starts at the start of a session, fed to it
+     * in one or more pieces
+     */
+    static final class ChunkEvaluator {
+        private final Output output = new Output();
+        private final CalculationLogic calculationLogic;
+        private InputHandler inputHandler;
+        private String display = "0";
+        private boolean lineBlank = true;
+
+        /**
+         * Constructor for a ChunkEvaluator
+         * @param calculationLogic The calculation logic the sessions use
+         */
+        ChunkEvaluator(CalculationLogic calculationLogic) {
+            this.calculationLogic = calculationLogic;
+            inputHandler = new InputHandler(calculationLogic);
+        }
+
+        /**
+         * Evaluate the next piece of the chunk
+         * @param buffer The piece, from its position to its limit; the position is
+         *        left unchanged
+         */
+        void evaluate(ByteBuffer buffer) {
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                char c = (char) (buffer.get(i) & 0xFF);
+                if (c == '\n') {
+                    if (lineBlank) {
+                        // End of session, the next one starts from a fresh InputHandler
+                        output.writeBoundary();
+                        inputHandler = new InputHandler(calculationLogic);
+                        display = "0";
+                    } else {
+                        output.writeLine(display);
+                    }
+                    lineBlank = true;
+                } else if (CalculatorServer.isKeystroke(c)) {
+                    display = inputHandler.processInput(CalculatorServer.toInputKey(c));
+                    lineBlank = false;
+                }
+            }
+        }
+
+        /**
+         * Finish the chunk
+         * @return The answers
+         */
+        Output finish() {
+            // A last line without a newline is still answered
+            if (!lineBlank) {
+                output.writeLine(display);
+                lineBlank = true;
+            }
+            return output;
+        }
+    }
+
+    /**
+     * Main method to run a batch
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BatchEvaluator input output [threads]");
+            System.exit(2);
+        }
+        CalculatorMetrics.registerMBeans();
+        ForkJoinPool pool = args.length > 2 ? new ForkJoinPool(Integer.parseInt(args[2])) : ForkJoinPool.commonPool();
+
+        long start = System.nanoTime();
+        long lines = new BatchEvaluator(pool).evaluate(Paths.get(args[0]), Paths.get(args[1]));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Evaluated %d lines in %.3f s (%.0f lines/s)%n", lines, seconds, lines / seconds);
+    }
+}
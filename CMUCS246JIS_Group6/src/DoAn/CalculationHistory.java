@@ -0,0 +1,461 @@
+package DoAn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CalculationHistory class for the Calculator application
+ * A persistent, append-only log of completed calculations
+ *
+ * Records have a fixed size and are written to a memory-mapped file, so appending
+ * is a few stores into memory. The file is forced to disk in batches by a background
+ * thread rather than on every append. Timestamps are kept in memory as an index for
+ * time range and most recent queries. On open, the log is recovered by scanning it
+ * up to the first record that is torn or out of order
+ *
+ * Instances are thread-safe and can be shared by many InputHandlers
+ */
+public class CalculationHistory implements Closeable {
+    // File layout: a header, then records of RECORD_SIZE bytes
+    private static final int MAGIC = 0x43414C48;
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 40;
+
+    // Record layout
+    private static final int TIMESTAMP_OFFSET = 0;
+    private static final int FIRST_OPERAND_OFFSET = 8;
+    private static final int SECOND_OPERAND_OFFSET = 16;
+    private static final int RESULT_OFFSET = 24;
+    private static final int TYPE_OFFSET = 32;
+    private static final int CHECKSUM_OFFSET = 36;
+    private static final int STATUS_OK = 1;
+    private static final int STATUS_ERROR = 2;
+
+    // Records mapped at first, doubled as the log grows
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    // Operators by ordinal, values() copies the array on every call
+    private static final Operator[] OPERATORS = Operator.values();
+
+    /** System property naming the history file of the applications */
+    public static final String HISTORY_PROPERTY = "calculator.history";
+    /** Interval between background syncs used by open(Path) */
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 100;
+
+    /**
+     * A recorded calculation
+     */
+    public static final class Entry {
+        private final long timestamp;
+        private final double firstOperand;
+        private final Operator operator;
+        private final double secondOperand;
+        private final double result;
+        private final boolean error;
+
+        /**
+         * Constructor for an Entry
+         */
+        private Entry(long timestamp, double firstOperand, Operator operator, double secondOperand,
+                      double result, boolean error) {
+            this.timestamp = timestamp;
+            this.firstOperand = firstOperand;
+            this.operator = operator;
+            this.secondOperand = secondOperand;
+            this.result = result;
+            this.error = error;
+        }
+
+        /**
+         * Get the time of the calculation
+         * @return Milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Get the first operand
+         * @return The first operand
+         */
+        public double getFirstOperand() {
+            return firstOperand;
+        }
+
+        /**
+         * Get the operator
+         * @return The operator
+         */
+        public Operator getOperator() {
+            return operator;
+        }
+
+        /**
+         * Get the second operand
+         * @return The second operand
+         */
+        public double getSecondOperand() {
+            return secondOperand;
+        }
+
+        /**
+         * Get the result
+         * @return The result, NaN if the calculation failed
+         */
+        public double getResult() {
+            return result;
+        }
+
+        /**
+         * Check if the calculation failed
+         * @return True if the calculation displayed an error
+         */
+        public boolean isError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return firstOperand + " " + operator + " " + secondOperand + " = " + (error ? "Error" : result);
+        }
+    }
+
+    private final FileChannel channel;
+    private final ScheduledExecutorService syncer;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+    // Timestamps by record, the index for range queries
+    private long[] timestamps;
+    private boolean dirty;
+
+    /**
+     * Constructor for a CalculationHistory
+     */
+    private CalculationHistory(FileChannel channel, long syncIntervalMillis) throws IOException {
+        this.channel = channel;
+        recover();
+
+        if (syncIntervalMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "calculation-history-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Open the history file named by the calculator.history system property
+     * The history is synced and closed when the JVM exits
+     * @return The history, or null if no history file is configured
+     * @throws IOException If the file cannot be opened or is not a history file
+     */
+    public static CalculationHistory openConfigured() throws IOException {
+        String file = System.getProperty(HISTORY_PROPERTY);
+        if (file == null || file.isEmpty()) {
+            return null;
+        }
+        CalculationHistory history = open(Paths.get(file));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                history.close();
+            } catch (IOException e) {
+                System.err.println("Could not close calculation history: " + e.getMessage());
+            }
+        }, "calculation-history-close"));
+        return history;
+    }
+
+    /**
+     * Open a history file, creating it if it does not exist
+     * @param file The history file
+     * @return The history, recovered from the file
+     * @throws IOException If the file cannot be opened or is not a history file
+     */
+    public static CalculationHistory open(Path file) throws IOException {
+        return open(file, DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Open a history file, creating it if it does not exist
+     * @param file The history file
+     * @param syncIntervalMillis Milliseconds between background syncs, 0 to sync only
+     *        on sync() and close()
+     * @return The history, recovered from the file
+     * @throws IOException If the file cannot be opened or is not a history file
+     */
+    public static CalculationHistory open(Path file, long syncIntervalMillis) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new CalculationHistory(channel, syncIntervalMillis);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Map the file and find the valid records
+     */
+    private void recover() throws IOException {
+        long fileSize = channel.size();
+        int stored = fileSize <= HEADER_SIZE ? 0 : (int) Math.min(MAX_CAPACITY, (fileSize - HEADER_SIZE) / RECORD_SIZE);
+        map(Math.max(INITIAL_CAPACITY, stored));
+
+        if (fileSize < HEADER_SIZE || buffer.getInt(0) == 0) {
+            // New file
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, RECORD_SIZE);
+            timestamps = new long[capacity];
+            return;
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != RECORD_SIZE) {
+            throw new IOException("Not a calculation history file");
+        }
+
+        // Records are valid up to the first torn or out of order one
+        timestamps = new long[capacity];
+        long previous = Long.MIN_VALUE;
+        while (count < stored) {
+            int offset = recordOffset(count);
+            long timestamp = buffer.getLong(offset + TIMESTAMP_OFFSET);
+            int status = buffer.get(offset + TYPE_OFFSET + 1);
+            if ((status != STATUS_OK && status != STATUS_ERROR) || timestamp < previous ||
+                buffer.getInt(offset + CHECKSUM_OFFSET) != checksum(offset, count)) {
+                break;
+            }
+            timestamps[count++] = timestamp;
+            previous = timestamp;
+        }
+    }
+
+    /**
+     * Map the header and a number of records
+     * @param records The number of records to map
+     */
+    private void map(int records) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) records * RECORD_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        capacity = records;
+    }
+
+    /**
+     * Record a calculation
+     * Calculations recorded after close are dropped, so sessions still running while
+     * the history is closed at exit do not fail
+     * @param firstOperand The first operand
+     * @param operator The operator
+     * @param secondOperand The second operand
+     * @param result The result, ignored if the calculation failed
+     * @param error True if the calculation failed
+     * @throws IllegalStateException If the history is full or cannot grow
+     */
+    public void append(double firstOperand, Operator operator, double secondOperand, double result, boolean error) {
+        append(System.currentTimeMillis(), firstOperand, operator, secondOperand, result, error);
+    }
+
+    /**
+     * Record a calculation at a given time
+     * Timestamps earlier than the last record are raised to keep the log in order
+     */
+    synchronized void append(long timestamp, double firstOperand, Operator operator, double secondOperand,
+                             double result, boolean error) {
+        if (!channel.isOpen()) {
+            return;
+        }
+        if (count == capacity) {
+            grow();
+        }
+        if (count > 0 && timestamp < timestamps[count - 1]) {
+            timestamp = timestamps[count - 1];
+        }
+
+        int offset = recordOffset(count);
+        buffer.putLong(offset + TIMESTAMP_OFFSET, timestamp);
+        buffer.putDouble(offset + FIRST_OPERAND_OFFSET, firstOperand);
+        buffer.putDouble(offset + SECOND_OPERAND_OFFSET, secondOperand);
+        buffer.putDouble(offset + RESULT_OFFSET, error ? Double.NaN : result);
+        buffer.put(offset + TYPE_OFFSET, (byte) operator.ordinal());
+        buffer.put(offset + TYPE_OFFSET + 1, (byte) (error ? STATUS_ERROR : STATUS_OK));
+        buffer.putInt(offset + CHECKSUM_OFFSET, checksum(offset, count));
+        timestamps[count++] = timestamp;
+        dirty = true;
+    }
+
+    /**
+     * Double the mapped capacity
+     */
+    private void grow() {
+        if (capacity == MAX_CAPACITY) {
+            throw new IllegalStateException("History is full");
+        }
+        try {
+            map((int) Math.min(MAX_CAPACITY, capacity * 2L));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot grow history file", e);
+        }
+        timestamps = Arrays.copyOf(timestamps, capacity);
+    }
+
+    /**
+     * Compute the checksum of a record
+     * The record index is included so a stale record left in place is not accepted
+     * @param offset The offset of the record
+     * @param index The index of the record
+     * @return The checksum
+     */
+    private int checksum(int offset, int index) {
+        long hash = index;
+        for (int i = 0; i < CHECKSUM_OFFSET; i += Long.BYTES) {
+            long word = i + Long.BYTES <= CHECKSUM_OFFSET ? buffer.getLong(offset + i) : buffer.getInt(offset + i);
+            hash = (hash ^ word) * 0x9E3779B97F4A7C15L;
+            hash ^= hash >>> 29;
+        }
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Get the offset of a record in the file
+     */
+    private static int recordOffset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    /**
+     * Get the number of recorded calculations
+     * @return The number of records
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Get a recorded calculation
+     * @param index The record index, 0 for the oldest
+     * @return The record
+     * @throws IndexOutOfBoundsException If there is no such record
+     */
+    public synchronized Entry get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("No history record " + index);
+        }
+        int offset = recordOffset(index);
+        int status = buffer.get(offset + TYPE_OFFSET + 1);
+        return new Entry(buffer.getLong(offset + TIMESTAMP_OFFSET),
+                         buffer.getDouble(offset + FIRST_OPERAND_OFFSET),
+                         OPERATORS[buffer.get(offset + TYPE_OFFSET)],
+                         buffer.getDouble(offset + SECOND_OPERAND_OFFSET),
+                         buffer.getDouble(offset + RESULT_OFFSET),
+                         status == STATUS_ERROR);
+    }
+
+    /**
+     * Get the most recent calculations
+     * @param limit The maximum number of records
+     * @return Up to limit records, oldest first
+     */
+    public synchronized List<Entry> recent(int limit) {
+        return entries(Math.max(0, count - limit), count);
+    }
+
+    /**
+     * Get the calculations recorded in a time range
+     * @param fromMillis Start of the range, inclusive
+     * @param toMillis End of the range, exclusive
+     * @return The records in the range, oldest first
+     */
+    public synchronized List<Entry> range(long fromMillis, long toMillis) {
+        return entries(lowerBound(fromMillis), lowerBound(toMillis));
+    }
+
+    /**
+     * Find the first record at or after a time
+     */
+    private int lowerBound(long timestamp) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Read a range of records
+     */
+    private List<Entry> entries(int from, int to) {
+        List<Entry> entries = new ArrayList<>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            entries.add(get(i));
+        }
+        return entries;
+    }
+
+    /**
+     * Force recorded calculations to disk
+     */
+    public void sync() {
+        MappedByteBuffer toForce;
+        synchronized (this) {
+            if (!dirty || !channel.isOpen()) {
+                return;
+            }
+            dirty = false;
+            toForce = buffer;
+        }
+        toForce.force();
+    }
+
+    /**
+     * Sync from the background thread, which must not die on an error
+     */
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            System.err.println("Could not sync calculation history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sync and close the history
+     */
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        synchronized (this) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            buffer.force();
+            channel.close();
+        }
+    }
+}
@@ -1,29 +1,174 @@
 package DoAn;
 
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.DoubleStream;
+
 
 public class CalculationLogic {
+    // Products below this magnitude never overflow
+    private static final double MAX_UNCHECKED_PRODUCT = 0x1p1023;
+    
+    private final OperatorRegistry operatorRegistry;
+    
+    /**
+     * Constructor for CalculationLogic with the standard operator symbols
+     */
+    public CalculationLogic() {
+        this(new OperatorRegistry());
+    }
+    
+    /**
+     * Constructor for CalculationLogic
+     * @param operatorRegistry The registry used to resolve operator symbols
+     */
+    public CalculationLogic(OperatorRegistry operatorRegistry) {
+        this.operatorRegistry = operatorRegistry;
+    }
+    
+    /**
+     * Get the registry used to resolve operator symbols
+     * @return The operator registry
+     */
+    public OperatorRegistry getOperatorRegistry() {
+        return operatorRegistry;
+    }
     
     /**
      * Perform calculation based on operands and operator
      * @param firstOperand The first operand
      * @param secondOperand The second operand
-     * @param operator The operator (+, -, *, /)
-     * @return The calculation result
+     * @param operator The operator symbol (+, -, *, /)
+     * @return The calculation result, or the second operand if the symbol is not an operator
      * @throws ArithmeticException If division by zero is attempted
      */
     public double calculate(double firstOperand, double secondOperand, String operator) throws ArithmeticException {
+        Operator resolved = operatorRegistry.lookup(operator);
+        if (resolved == null) {
+            return secondOperand;
+        }
+        return calculate(firstOperand, secondOperand, resolved);
+    }
+    
+    /**
+     * Perform calculation based on operands and operator
+     * @param firstOperand The first operand
+     * @param secondOperand The second operand
+     * @param operator The operator
+     * @return The calculation result
+     * @throws ArithmeticException If division by zero is attempted
+     */
+    public double calculate(double firstOperand, double secondOperand, Operator operator) throws ArithmeticException {
+        if (CalculatorMetrics.ENABLED) {
+            CalculatorMetrics.recordCalculations(operator, 1);
+        }
         switch (operator) {
-            case "+":
+            case ADD:
                 return add(firstOperand, secondOperand);
-            case "-":
+            case SUBTRACT:
                 return subtract(firstOperand, secondOperand);
-            case "*":
+            case MULTIPLY:
                 return multiply(firstOperand, secondOperand);
-            case "/":
+            default:
                 return divide(firstOperand, secondOperand);
+        }
+    }
+    
+    /**
+     * Perform calculation in arbitrary precision
+     * BigDecimal keeps operands that fit a long in compact form, so small operands
+     * are calculated without BigInteger arithmetic
+     * @param firstOperand The first operand
+     * @param secondOperand The second operand
+     * @param operator The operator
+     * @param mathContext The precision and rounding of the result
+     * @return The calculation result, rounded to the precision
+     * @throws ArithmeticException If division by zero is attempted, or if the
+     *         precision is unlimited and a quotient has no finite decimal expansion
+     */
+    public BigDecimal calculate(BigDecimal firstOperand, BigDecimal secondOperand, Operator operator,
+                                MathContext mathContext) throws ArithmeticException {
+        if (CalculatorMetrics.ENABLED) {
+            CalculatorMetrics.recordCalculations(operator, 1);
+        }
+        switch (operator) {
+            case ADD:
+                return firstOperand.add(secondOperand, mathContext);
+            case SUBTRACT:
+                return firstOperand.subtract(secondOperand, mathContext);
+            case MULTIPLY:
+                return firstOperand.multiply(secondOperand, mathContext);
             default:
-                return secondOperand;
+                if (secondOperand.signum() == 0) {
+                    throw failure(CalculatorMetrics.Failure.DIVISION_BY_ZERO, "Division by zero");
+                }
+                return firstOperand.divide(secondOperand, mathContext);
+        }
+    }
+    
+    /**
+     * Perform calculation exactly on decimal operands when the result fits
+     * Addition, subtraction and multiplication of decimals are exact as long as the
+     * mantissa does not overflow, which avoids binary rounding such as 0.1 + 0.2
+     * @param firstOperand The first operand
+     * @param secondOperand The second operand
+     * @param operator The operator
+     * @param result The operand to store the result in, may be one of the operands
+     * @return False if the result is not exact and calculate(double, double, Operator)
+     *         should be used instead
+     */
+    public boolean calculateExact(DecimalOperand firstOperand, DecimalOperand secondOperand,
+                                  Operator operator, DecimalOperand result) {
+        long a = firstOperand.signedMantissa();
+        long b = secondOperand.signedMantissa();
+        int scaleA = firstOperand.scale();
+        int scaleB = secondOperand.scale();
+
+        long mantissa;
+        int scale;
+        try {
+            switch (operator) {
+                case ADD:
+                    scale = Math.max(scaleA, scaleB);
+                    mantissa = Math.addExact(align(a, scale - scaleA), align(b, scale - scaleB));
+                    break;
+                case SUBTRACT:
+                    scale = Math.max(scaleA, scaleB);
+                    mantissa = Math.subtractExact(align(a, scale - scaleA), align(b, scale - scaleB));
+                    break;
+                case MULTIPLY:
+                    scale = scaleA + scaleB;
+                    mantissa = Math.multiplyExact(a, b);
+                    break;
+                default:
+                    // Quotients are generally not finite decimals
+                    return false;
+            }
+        } catch (ArithmeticException e) {
+            // The mantissa overflowed
+            return false;
+        }
+
+        if (mantissa == Long.MIN_VALUE || scale >= DecimalOperand.POWERS_OF_TEN.length) {
+            return false;
         }
+        if (CalculatorMetrics.ENABLED) {
+            CalculatorMetrics.recordCalculations(operator, 1);
+        }
+        result.setSigned(mantissa, scale);
+        return true;
+    }
+
+    /**
+     * Multiply a mantissa by a power of ten
+     * @param mantissa The mantissa
+     * @param exponent The power of ten
+     * @return The scaled mantissa
+     * @throws ArithmeticException If the result overflows
+     */
+    private long align(long mantissa, int exponent) throws ArithmeticException {
+        return exponent == 0 ? mantissa : Math.multiplyExact(mantissa, DecimalOperand.POWERS_OF_TEN[exponent]);
     }
     
     /**
@@ -34,9 +179,8 @@ public class CalculationLogic {
      */
     private double add(double a, double b) {
         // Check for potential overflow
-        if ((a > 0 && b > Double.MAX_VALUE - a) || 
-            (a < 0 && b < -Double.MAX_VALUE - a)) {
-            throw new ArithmeticException("Overflow error");
+        if (addOverflows(a, b)) {
+            throw failure(CalculatorMetrics.Failure.OVERFLOW, "Overflow error");
         }
         return a + b;
     }
@@ -49,9 +193,8 @@ public class CalculationLogic {
      */
     private double subtract(double a, double b) {
         // Check for potential overflow
-        if ((b > 0 && a < -Double.MAX_VALUE + b) || 
-            (b < 0 && a > Double.MAX_VALUE + b)) {
-            throw new ArithmeticException("Overflow error");
+        if (subtractOverflows(a, b)) {
+            throw failure(CalculatorMetrics.Failure.OVERFLOW, "Overflow error");
         }
         return a - b;
     }
@@ -63,15 +206,18 @@ public class CalculationLogic {
      * @return Product of a and b
      */
     private double multiply(double a, double b) {
+        // A product below 2^1023 cannot fail the check, since the check needs
+        // |a * b| > Double.MAX_VALUE up to rounding; skip its division then
+        double product = a * b;
+        if (Math.abs(product) < MAX_UNCHECKED_PRODUCT) {
+            return product;
+        }
+        
         // Check for potential overflow
-        if (a != 0 && b != 0) {
-            double absA = Math.abs(a);
-            double absB = Math.abs(b);
-            if (absA > Double.MAX_VALUE / absB) {
-                throw new ArithmeticException("Overflow error");
-            }
+        if (multiplyOverflows(a, b)) {
+            throw failure(CalculatorMetrics.Failure.OVERFLOW, "Overflow error");
         }
-        return a * b;
+        return product;
     }
     
     /**
@@ -84,14 +230,389 @@ public class CalculationLogic {
     private double divide(double a, double b) throws ArithmeticException {
         // Check for division by zero
         if (b == 0) {
-            throw new ArithmeticException("Division by zero");
+            throw failure(CalculatorMetrics.Failure.DIVISION_BY_ZERO, "Division by zero");
         }
         
         // Check for potential overflow
-        if (Math.abs(b) < Double.MIN_NORMAL && a != 0) {
-            throw new ArithmeticException("Result too large");
+        if (divideOverflows(a, b)) {
+            throw failure(CalculatorMetrics.Failure.RESULT_TOO_LARGE, "Result too large");
         }
         
         return a / b;
     }
+    
+    /**
+     * Aggregate an array of values
+     * @param values The values
+     * @return Their count, sum, mean, variance, minimum and maximum
+     * @throws IllegalArgumentException If a value is infinite or not a number
+     */
+    public Statistics aggregate(double[] values) {
+        return new Statistics().accept(values, 0, values.length);
+    }
+    
+    /**
+     * Aggregate an array of values in parallel
+     * The results are identical to aggregate(double[]) whatever the parallelism
+     * @param values The values
+     * @param pool The pool to aggregate chunks of the array on
+     * @return Their count, sum, mean, variance, minimum and maximum
+     * @throws IllegalArgumentException If a value is infinite or not a number
+     */
+    public Statistics aggregate(double[] values, ForkJoinPool pool) {
+        return pool.invoke(new Statistics.AggregateTask(values, 0, values.length));
+    }
+    
+    /**
+     * Aggregate a stream of values, which may be parallel
+     * The results are identical to aggregating the values sequentially
+     * @param values The values
+     * @return Their count, sum, mean, variance, minimum and maximum
+     * @throws IllegalArgumentException If a value is infinite or not a number
+     */
+    public Statistics aggregate(DoubleStream values) {
+        return values.collect(Statistics::new, Statistics::accept, Statistics::combine);
+    }
+    
+    /**
+     * Calculate a percentage of a value, as in 200 + 5% adding 10
+     * @param value The value
+     * @param percentage The percentage
+     * @return value * percentage / 100
+     * @throws ArithmeticException If the result overflows
+     */
+    public double percent(double value, double percentage) throws ArithmeticException {
+        // Dividing the product keeps whole percentages of whole numbers exact
+        double product = value * percentage;
+        if (!Double.isInfinite(product)) {
+            return product / 100;
+        }
+        return checkResult(value * (percentage / 100));
+    }
+    
+    /**
+     * Calculate a square root
+     * Square roots are correctly rounded in both modes, FAST uses the hardware instruction
+     * @param x The argument
+     * @param accuracy The accuracy mode
+     * @return The square root
+     * @throws ArithmeticException If x is negative
+     */
+    public double sqrt(double x, Accuracy accuracy) throws ArithmeticException {
+        if (x < 0) {
+            throw failure(CalculatorMetrics.Failure.DOMAIN, "Square root of negative number");
+        }
+        return accuracy == Accuracy.FAST ? Math.sqrt(x) : StrictMath.sqrt(x);
+    }
+    
+    /**
+     * Calculate a sine
+     * @param x The angle in radians
+     * @param accuracy The accuracy mode
+     * @return The sine
+     * @throws ArithmeticException If x is not finite
+     */
+    public double sin(double x, Accuracy accuracy) throws ArithmeticException {
+        return checkResult(accuracy == Accuracy.FAST ? ApproximateMath.sin(x) : StrictMath.sin(x));
+    }
+    
+    /**
+     * Calculate a cosine
+     * @param x The angle in radians
+     * @param accuracy The accuracy mode
+     * @return The cosine
+     * @throws ArithmeticException If x is not finite
+     */
+    public double cos(double x, Accuracy accuracy) throws ArithmeticException {
+        return checkResult(accuracy == Accuracy.FAST ? ApproximateMath.cos(x) : StrictMath.cos(x));
+    }
+    
+    /**
+     * Calculate a tangent
+     * @param x The angle in radians
+     * @param accuracy The accuracy mode
+     * @return The tangent
+     * @throws ArithmeticException If x is not finite
+     */
+    public double tan(double x, Accuracy accuracy) throws ArithmeticException {
+        return checkResult(accuracy == Accuracy.FAST ? ApproximateMath.tan(x) : StrictMath.tan(x));
+    }
+    
+    /**
+     * Calculate e raised to a power
+     * @param x The exponent
+     * @param accuracy The accuracy mode
+     * @return e^x
+     * @throws ArithmeticException If the result overflows
+     */
+    public double exp(double x, Accuracy accuracy) throws ArithmeticException {
+        return checkResult(accuracy == Accuracy.FAST ? ApproximateMath.exp(x) : StrictMath.exp(x));
+    }
+    
+    /**
+     * Calculate a natural logarithm
+     * @param x The argument
+     * @param accuracy The accuracy mode
+     * @return ln(x)
+     * @throws ArithmeticException If x is not positive
+     */
+    public double ln(double x, Accuracy accuracy) throws ArithmeticException {
+        if (x <= 0) {
+            throw failure(CalculatorMetrics.Failure.DOMAIN, "Logarithm of non-positive number");
+        }
+        return checkResult(accuracy == Accuracy.FAST ? ApproximateMath.log(x) : StrictMath.log(x));
+    }
+    
+    /**
+     * Raise a number to a power
+     * @param x The base
+     * @param y The exponent
+     * @param accuracy The accuracy mode
+     * @return x^y
+     * @throws ArithmeticException If zero is raised to a negative power, a negative
+     *         number to a fractional power, or the result overflows
+     */
+    public double pow(double x, double y, Accuracy accuracy) throws ArithmeticException {
+        if (x == 0 && y < 0) {
+            throw failure(CalculatorMetrics.Failure.DIVISION_BY_ZERO, "Division by zero");
+        }
+        if (x < 0 && y != Math.rint(y)) {
+            throw failure(CalculatorMetrics.Failure.DOMAIN, "Fractional power of negative number");
+        }
+        if (accuracy == Accuracy.STRICT) {
+            return checkResult(StrictMath.pow(x, y));
+        }
+        
+        // Odd powers of negative numbers are negative; doubles from 2^53 up are even
+        double magnitude = ApproximateMath.pow(Math.abs(x), y);
+        boolean negative = x < 0 && Math.abs(y) < 0x1p53 && ((long) y & 1) != 0;
+        return checkResult(negative ? -magnitude : magnitude);
+    }
+    
+    /**
+     * Check the result of a function
+     * @param result The result
+     * @return The result
+     * @throws ArithmeticException If the result is infinite or not a number
+     */
+    private static double checkResult(double result) throws ArithmeticException {
+        if (Double.isNaN(result)) {
+            throw failure(CalculatorMetrics.Failure.DOMAIN, "Invalid argument");
+        }
+        if (Double.isInfinite(result)) {
+            throw failure(CalculatorMetrics.Failure.OVERFLOW, "Overflow error");
+        }
+        return result;
+    }
+    
+    /**
+     * Create the exception for a failed calculation, counting the failure
+     * @param failure The kind of failure
+     * @param message The exception message
+     * @return The exception to throw
+     */
+    private static ArithmeticException failure(CalculatorMetrics.Failure failure, String message) {
+        if (CalculatorMetrics.ENABLED) {
+            CalculatorMetrics.recordFailure(failure);
+        }
+        return new ArithmeticException(message);
+    }
+    
+    /**
+     * Check if adding two numbers overflows
+     */
+    private static boolean addOverflows(double a, double b) {
+        return (a > 0 && b > Double.MAX_VALUE - a) || 
+               (a < 0 && b < -Double.MAX_VALUE - a);
+    }
+    
+    /**
+     * Check if subtracting two numbers overflows
+     */
+    private static boolean subtractOverflows(double a, double b) {
+        return (b > 0 && a < -Double.MAX_VALUE + b) || 
+               (b < 0 && a > Double.MAX_VALUE + b);
+    }
+    
+    /**
+     * Check if multiplying two numbers overflows
+     */
+    private static boolean multiplyOverflows(double a, double b) {
+        return a != 0 && b != 0 && Math.abs(a) > Double.MAX_VALUE / Math.abs(b);
+    }
+    
+    /**
+     * Check if dividing by a non-zero number overflows
+     */
+    private static boolean divideOverflows(double a, double b) {
+        return Math.abs(b) < Double.MIN_NORMAL && a != 0;
+    }
+    
+    /**
+     * Perform the same calculation on arrays of operands
+     * Results are computed in loops the JIT can vectorize; failures that calculate
+     * would throw for are reported by index and leave NaN in the results
+     * @param firstOperands The first operands
+     * @param secondOperands The second operands, same length
+     * @param operator The operator
+     * @param results Receives the results, at least as long as the operands
+     * @param failedIndices Receives the indices of failed calculations in ascending
+     *        order, as many as fit; may be null
+     * @return The number of failed calculations
+     * @throws IllegalArgumentException If the array lengths do not match
+     */
+    public int calculate(double[] firstOperands, double[] secondOperands, Operator operator,
+                         double[] results, int[] failedIndices) {
+        int length = checkLengths(firstOperands, secondOperands, results);
+        return calculateRange(firstOperands, secondOperands, operator, results, 0, length, failedIndices, 0);
+    }
+    
+    /**
+     * Perform calculations with a different operator per element on arrays of operands
+     * Runs of the same operator are computed in loops the JIT can vectorize; failures
+     * that calculate would throw for are reported by index and leave NaN in the results
+     * @param firstOperands The first operands
+     * @param secondOperands The second operands, same length
+     * @param operators The operator for each element, same length
+     * @param results Receives the results, at least as long as the operands
+     * @param failedIndices Receives the indices of failed calculations in ascending
+     *        order, as many as fit; may be null
+     * @return The number of failed calculations
+     * @throws IllegalArgumentException If the array lengths do not match
+     */
+    public int calculate(double[] firstOperands, double[] secondOperands, Operator[] operators,
+                         double[] results, int[] failedIndices) {
+        int length = checkLengths(firstOperands, secondOperands, results);
+        if (operators.length != length) {
+            throw new IllegalArgumentException("Operator count does not match operand count");
+        }
+        
+        int failures = 0;
+        int start = 0;
+        while (start < length) {
+            Operator operator = operators[start];
+            int end = start + 1;
+            while (end < length && operators[end] == operator) {
+                end++;
+            }
+            failures = calculateRange(firstOperands, secondOperands, operator, results, start, end, failedIndices, failures);
+            start = end;
+        }
+        return failures;
+    }
+    
+    /**
+     * Check that operand and result arrays fit together
+     * @return The number of elements to calculate
+     */
+    private static int checkLengths(double[] firstOperands, double[] secondOperands, double[] results) {
+        if (firstOperands.length != secondOperands.length) {
+            throw new IllegalArgumentException("Operand arrays have different lengths");
+        }
+        if (results.length < firstOperands.length) {
+            throw new IllegalArgumentException("Result array is too short");
+        }
+        return firstOperands.length;
+    }
+    
+    /**
+     * Calculate a range of elements with one operator
+     * @param failures The number of failures found so far
+     * @return The number of failures including this range
+     */
+    private static int calculateRange(double[] a, double[] b, Operator operator, double[] results,
+                                      int from, int to, int[] failedIndices, int failures) {
+        if (CalculatorMetrics.ENABLED) {
+            CalculatorMetrics.recordCalculations(operator, to - from);
+        }
+        
+        // Compute every result in a plain loop, then use a max/min reduction to rule
+        // out failures for the whole range before checking elements one by one
+        boolean mayFail;
+        switch (operator) {
+            case ADD:
+                for (int i = from; i < to; i++) {
+                    results[i] = a[i] + b[i];
+                }
+                // Neither check can fire while both magnitudes are below half the maximum
+                mayFail = !(maxAbs(a, from, to) < Double.MAX_VALUE / 2 && maxAbs(b, from, to) < Double.MAX_VALUE / 2);
+                break;
+            case SUBTRACT:
+                for (int i = from; i < to; i++) {
+                    results[i] = a[i] - b[i];
+                }
+                mayFail = !(maxAbs(a, from, to) < Double.MAX_VALUE / 2 && maxAbs(b, from, to) < Double.MAX_VALUE / 2);
+                break;
+            case MULTIPLY:
+                for (int i = from; i < to; i++) {
+                    results[i] = a[i] * b[i];
+                }
+                // No product can come near the maximum
+                mayFail = !(maxAbs(a, from, to) * maxAbs(b, from, to) < Double.MAX_VALUE / 2);
+                break;
+            default:
+                for (int i = from; i < to; i++) {
+                    results[i] = a[i] / b[i];
+                }
+                // Division by zero and tiny divisors both need a divisor below MIN_NORMAL
+                mayFail = !(minAbs(b, from, to) >= Double.MIN_NORMAL);
+                break;
+        }
+        
+        if (!mayFail) {
+            return failures;
+        }
+        
+        for (int i = from; i < to; i++) {
+            boolean failed;
+            switch (operator) {
+                case ADD:
+                    failed = addOverflows(a[i], b[i]);
+                    break;
+                case SUBTRACT:
+                    failed = subtractOverflows(a[i], b[i]);
+                    break;
+                case MULTIPLY:
+                    failed = multiplyOverflows(a[i], b[i]);
+                    break;
+                default:
+                    failed = b[i] == 0 || divideOverflows(a[i], b[i]);
+                    break;
+            }
+            if (failed) {
+                if (CalculatorMetrics.ENABLED) {
+                    CalculatorMetrics.recordFailure(operator != Operator.DIVIDE ? CalculatorMetrics.Failure.OVERFLOW
+                            : b[i] == 0 ? CalculatorMetrics.Failure.DIVISION_BY_ZERO : CalculatorMetrics.Failure.RESULT_TOO_LARGE);
+                }
+                results[i] = Double.NaN;
+                if (failedIndices != null && failures < failedIndices.length) {
+                    failedIndices[failures] = i;
+                }
+                failures++;
+            }
+        }
+        return failures;
+    }
+    
+    /**
+     * Get the largest magnitude in a range, NaN if the range contains NaN
+     */
+    private static double maxAbs(double[] values, int from, int to) {
+        double max = 0;
+        for (int i = from; i < to; i++) {
+            max = Math.max(max, Math.abs(values[i]));
+        }
+        return max;
+    }
+    
+    /**
+     * Get the smallest magnitude in a range, NaN if the range contains NaN
+     */
+    private static double minAbs(double[] values, int from, int to) {
+        double min = Double.POSITIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            min = Math.min(min, Math.abs(values[i]));
+        }
+        return min;
+    }
 }
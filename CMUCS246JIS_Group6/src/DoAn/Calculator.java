@@ -1,9 +1,60 @@
 package DoAn;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+
 public class Calculator {
-    public static void main(String[] args) {
+    /**
+     * Start the calculator
+     * With arguments it runs headless: each argument is a line of keystrokes in the
+     * CalculatorServer protocol, and the display after it is printed. The headless path
+     * loads no Swing or AWT classes, so it starts fast and runs without java.desktop
+     * @param args Lines of keystrokes, or none to show the calculator UI
+     */
+    public static void main(String[] args) throws IOException {
+        // Record calculations if a history file is configured
+        CalculationHistory history = CalculationHistory.openConfigured();
+        
+        if (args.length > 0) {
+            runHeadless(args, history);
+            return;
+        }
+        
+        // Publish metrics over JMX if they are enabled
+        CalculatorMetrics.registerMBeans();
+        
+        // Record keystrokes if a recording file is configured
+        KeystrokeRecorder recorder = KeystrokeRecorder.openConfigured();
+        
         // Create and display the calculator UI
-        CalculatorUI calculatorUI = new CalculatorUI();
-        calculatorUI.setVisible(true);
+        CalculatorUI.launch(history, recorder);
+    }
+    
+    /**
+     * Apply lines of keystrokes and print the display after each
+     * @param lines The lines of keystrokes
+     * @param history The history to record calculations in and close, or null for none
+     */
+    private static void runHeadless(String[] lines, CalculationHistory history) throws IOException {
+        InputHandler inputHandler = new InputHandler(new CalculationLogic());
+        if (history != null) {
+            inputHandler.setHistory(history);
+        }
+        StringBuilder keys = new StringBuilder();
+        try {
+            for (String line : lines) {
+                // Map the protocol keys, as the server does
+                keys.setLength(0);
+                for (int i = 0; i < line.length(); i++) {
+                    keys.append(CalculatorServer.toInputKey(line.charAt(i)));
+                }
+                System.out.println(inputHandler.processInputs(keys));
+            }
+        } finally {
+            // Closing forces the history out and writes its record count
+            if (history != null) {
+                history.close();
+            }
+        }
     }
 }
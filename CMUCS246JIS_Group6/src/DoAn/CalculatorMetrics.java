@@ -0,0 +1,258 @@
+package DoAn;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import DoAn.metrics.CalculatorMetricsMXBean;
+
+/**
+ * CalculatorMetrics class for the Calculator application
+ * Counters and latency histograms for CalculationLogic and InputHandler
+ *
+ * Metrics are recorded only when the JVM is started with -Dcalculator.metrics=true.
+ * ENABLED is a static final constant, so when it is false the JIT removes every
+ * probe guarded by it and the hot paths run exactly as without instrumentation
+ */
+public final class CalculatorMetrics {
+    /** Whether probes record anything, fixed at startup */
+    public static final boolean ENABLED = Boolean.getBoolean("calculator.metrics");
+
+    /** JMX domain the metrics are published under */
+    public static final String JMX_DOMAIN = "DoAn";
+
+    /**
+     * Kinds of failed calculation
+     */
+    public enum Failure {
+        /** A sum, difference or product exceeded the double range */
+        OVERFLOW,
+        /** A division had a zero divisor */
+        DIVISION_BY_ZERO,
+        /** A quotient exceeded the double range */
+        RESULT_TOO_LARGE,
+        /** A result was too large for the display */
+        OUT_OF_RANGE,
+        /** A function argument was outside its domain */
+        DOMAIN
+    }
+
+    private static final LongAdder[] CALCULATIONS = adders(Operator.values().length);
+    private static final LongAdder[] FAILURES = adders(Failure.values().length);
+
+    /** Latency of InputHandler.processInput */
+    static final LatencyHistogram PROCESS_INPUT = new LatencyHistogram();
+    /** Latency of calculating and rounding a result in InputHandler */
+    static final LatencyHistogram CALCULATE_RESULT = new LatencyHistogram();
+    /** Latency of InputHandler.formatResult */
+    static final LatencyHistogram FORMAT_RESULT = new LatencyHistogram();
+    /** Latency from a keystroke in CalculatorUI to the display showing its result */
+    static final LatencyHistogram INPUT_TO_PAINT = new LatencyHistogram();
+
+    /**
+     * Private constructor, all members are static
+     */
+    private CalculatorMetrics() {
+    }
+
+    /**
+     * Create an array of counters
+     */
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Count calculations
+     * Callers guard the probe with ENABLED
+     * @param operator The operator
+     * @param count The number of calculations
+     */
+    static void recordCalculations(Operator operator, int count) {
+        CALCULATIONS[operator.ordinal()].add(count);
+    }
+
+    /**
+     * Count a failed calculation
+     * Callers guard the probe with ENABLED
+     * @param failure The kind of failure
+     */
+    static void recordFailure(Failure failure) {
+        FAILURES[failure.ordinal()].increment();
+    }
+
+    /**
+     * Take a snapshot of all metrics
+     * @return The snapshot
+     */
+    public static Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    /**
+     * Reset all counters and histograms
+     */
+    public static void reset() {
+        for (LongAdder adder : CALCULATIONS) {
+            adder.reset();
+        }
+        for (LongAdder adder : FAILURES) {
+            adder.reset();
+        }
+        PROCESS_INPUT.reset();
+        CALCULATE_RESULT.reset();
+        FORMAT_RESULT.reset();
+        INPUT_TO_PAINT.reset();
+    }
+
+    /**
+     * Publish the metrics as MBeans on the platform MBean server
+     * Does nothing if metrics are disabled or already published
+     */
+    public static void registerMBeans() {
+        if (!ENABLED) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, new MetricsBean(), JMX_DOMAIN + ":type=CalculatorMetrics");
+            register(server, PROCESS_INPUT, JMX_DOMAIN + ":type=Latency,name=processInput");
+            register(server, CALCULATE_RESULT, JMX_DOMAIN + ":type=Latency,name=calculateResult");
+            register(server, FORMAT_RESULT, JMX_DOMAIN + ":type=Latency,name=formatResult");
+            register(server, INPUT_TO_PAINT, JMX_DOMAIN + ":type=Latency,name=inputToPaint");
+        } catch (JMException e) {
+            System.err.println("Could not publish calculator metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Register one MBean unless the name is taken
+     */
+    private static void register(MBeanServer server, Object bean, String name) throws JMException {
+        try {
+            server.registerMBean(bean, new ObjectName(name));
+        } catch (InstanceAlreadyExistsException e) {
+            // Already published
+        }
+    }
+
+    /**
+     * MBean over the static counters
+     */
+    private static final class MetricsBean implements CalculatorMetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return ENABLED;
+        }
+
+        @Override
+        public Map<String, Long> getCalculations() {
+            Map<String, Long> calculations = new LinkedHashMap<>();
+            for (Operator operator : Operator.values()) {
+                calculations.put(operator.name(), CALCULATIONS[operator.ordinal()].sum());
+            }
+            return calculations;
+        }
+
+        @Override
+        public Map<String, Long> getFailures() {
+            Map<String, Long> failures = new LinkedHashMap<>();
+            for (Failure failure : Failure.values()) {
+                failures.put(failure.name(), FAILURES[failure.ordinal()].sum());
+            }
+            return failures;
+        }
+
+        @Override
+        public void reset() {
+            CalculatorMetrics.reset();
+        }
+    }
+
+    /**
+     * An immutable copy of all metrics
+     * Counters are read one by one, so a snapshot taken while calculations run is not
+     * an atomic cut across counters
+     */
+    public static final class Snapshot {
+        private final EnumMap<Operator, Long> calculations = new EnumMap<>(Operator.class);
+        private final EnumMap<Failure, Long> failures = new EnumMap<>(Failure.class);
+        private final LatencyHistogram.Snapshot processInput = PROCESS_INPUT.snapshot();
+        private final LatencyHistogram.Snapshot calculateResult = CALCULATE_RESULT.snapshot();
+        private final LatencyHistogram.Snapshot formatResult = FORMAT_RESULT.snapshot();
+        private final LatencyHistogram.Snapshot inputToPaint = INPUT_TO_PAINT.snapshot();
+
+        /**
+         * Constructor for a Snapshot of the current metrics
+         */
+        private Snapshot() {
+            for (Operator operator : Operator.values()) {
+                calculations.put(operator, CALCULATIONS[operator.ordinal()].sum());
+            }
+            for (Failure failure : Failure.values()) {
+                failures.put(failure, FAILURES[failure.ordinal()].sum());
+            }
+        }
+
+        /**
+         * Get the number of calculations with an operator
+         * @param operator The operator
+         * @return The count, including failed calculations
+         */
+        public long calculations(Operator operator) {
+            return calculations.get(operator);
+        }
+
+        /**
+         * Get the number of failures of a kind
+         * @param failure The kind of failure
+         * @return The count
+         */
+        public long failures(Failure failure) {
+            return failures.get(failure);
+        }
+
+        /**
+         * Get the latency distribution of InputHandler.processInput
+         * @return The histogram snapshot
+         */
+        public LatencyHistogram.Snapshot processInput() {
+            return processInput;
+        }
+
+        /**
+         * Get the latency distribution of calculating results in InputHandler
+         * @return The histogram snapshot
+         */
+        public LatencyHistogram.Snapshot calculateResult() {
+            return calculateResult;
+        }
+
+        /**
+         * Get the latency distribution of InputHandler.formatResult
+         * @return The histogram snapshot
+         */
+        public LatencyHistogram.Snapshot formatResult() {
+            return formatResult;
+        }
+
+        /**
+         * Get the latency distribution from a keystroke in CalculatorUI to the paint
+         * of the display showing its result
+         * @return The histogram snapshot
+         */
+        public LatencyHistogram.Snapshot inputToPaint() {
+            return inputToPaint;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package DoAn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Headless calculator server
+ * Serves a line protocol over non-blocking NIO with one InputHandler session per
+ * connection, all on a single selector thread
+ *
+ * Protocol: every character of a line is a keystroke (digits, '.', operators, '=',
+ * 'C' for clear, 'E' for clear entry, and 'P', 'N', 'R' and 'Z' for M+, M-, MR and MC;
+ * whitespace is ignored). After each line the
+ * server answers with the display as one line. Clients may send many lines without
+ * waiting for the answers, which come back in order.
+ *
+ * Usage: CalculatorServer [port]
+ */
+public class CalculatorServer implements Runnable, Closeable {
+    /** Port used when none is given */
+    public static final int DEFAULT_PORT = 5246;
+    /** Key for "CE" in the line protocol */
+    public static final char PROTOCOL_CLEAR_ENTRY = 'E';
+
+    // Per-session buffer sizes; an answer is at most one display and a newline
+    private static final int INPUT_BUFFER_SIZE = 256;
+    private static final int OUTPUT_BUFFER_SIZE = 1024;
+
+    /**
+     * State of one connection
+     */
+    private static final class Session {
+        final SocketChannel channel;
+        final InputHandler inputHandler;
+        final ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        final ByteBuffer output = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+        String display = "0";
+
+        /**
+         * Constructor for a Session
+         * @param channel The connection
+         * @param calculationLogic The calculation logic, shared by all sessions
+         * @param history The history to record calculations in, may be null
+         * @param memory The memory bank whose register 0 the session uses, or null for
+         *        memory private to the session
+         */
+        Session(SocketChannel channel, CalculationLogic calculationLogic, CalculationHistory history, MemoryBank memory) {
+            this.channel = channel;
+            this.inputHandler = new InputHandler(calculationLogic);
+            inputHandler.setHistory(history);
+            if (memory != null) {
+                inputHandler.setMemory(memory, 0);
+            }
+        }
+    }
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    // Stateless, so one serves every session
+    private final CalculationLogic calculationLogic = new CalculationLogic();
+    private volatile boolean running = true;
+    private volatile CalculationHistory history;
+    private volatile MemoryBank memory;
+
+    /**
+     * Constructor for a CalculatorServer
+     * @param address The address to listen on, port 0 for any free port
+     * @throws IOException If the server socket cannot be opened
+     */
+    public CalculatorServer(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Get the port the server listens on
+     * @return The local port
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Record the calculations of new sessions in a history
+     * @param history The history shared by all sessions, or null for none
+     */
+    public void setHistory(CalculationHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Give new sessions a shared memory register
+     * @param memory A bank safe for concurrent use, such as a MemoryBank.Shared, whose
+     *        register 0 all new sessions use; or null for memory private to each session
+     */
+    public void setMemory(MemoryBank memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * Serve connections until the server is closed
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Calculator server stopped: " + e.getMessage());
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Handle a ready channel
+     * @param key The selection key of the channel
+     */
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+
+        Session session = (Session) key.attachment();
+        try {
+            if (key.isWritable()) {
+                // Answers were waiting for the client, keystrokes may be waiting for them
+                flush(session);
+                process(session);
+            }
+            if (key.isReadable()) {
+                if (session.channel.read(session.input) < 0) {
+                    close(key);
+                    return;
+                }
+                process(session);
+            }
+            flush(session);
+
+            // Stop reading while answers are waiting, so a slow client slows itself down
+            key.interestOps(session.output.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close(key);
+        }
+    }
+
+    /**
+     * Accept pending connections and start a session for each
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.register(selector, SelectionKey.OP_READ, new Session(channel, calculationLogic, history, memory));
+        }
+    }
+
+    /**
+     * Feed buffered keystrokes to the session and queue an answer for each line
+     * Stops early if the output buffer is full
+     * @param session The session
+     */
+    private void process(Session session) {
+        ByteBuffer input = session.input;
+        ByteBuffer output = session.output;
+        input.flip();
+        while (input.hasRemaining()) {
+            char key = (char) (input.get(input.position()) & 0xFF);
+            if (key == '\n') {
+                String display = session.display;
+                if (output.remaining() < display.length() + 1) {
+                    break;
+                }
+                for (int i = 0; i < display.length(); i++) {
+                    output.put((byte) display.charAt(i));
+                }
+                output.put((byte) '\n');
+            } else if (isKeystroke(key)) {
+                session.display = session.inputHandler.processInput(toInputKey(key));
+            }
+            input.position(input.position() + 1);
+        }
+        input.compact();
+    }
+
+    /**
+     * Check if a protocol character is a keystroke rather than whitespace
+     * @param c The character
+     * @return true if it should be passed to the InputHandler
+     */
+    static boolean isKeystroke(char c) {
+        return !Character.isWhitespace(c);
+    }
+
+    /**
+     * Map a protocol character to the key InputHandler expects
+     * @param c The character
+     * @return The key
+     */
+    static char toInputKey(char c) {
+        return c == PROTOCOL_CLEAR_ENTRY ? InputHandler.KEY_CLEAR_ENTRY : c;
+    }
+
+    /**
+     * Write queued answers as far as the connection accepts them
+     * @param session The session
+     */
+    private void flush(Session session) throws IOException {
+        ByteBuffer output = session.output;
+        if (output.position() == 0) {
+            return;
+        }
+        output.flip();
+        session.channel.write(output);
+        output.compact();
+    }
+
+    /**
+     * Close a connection
+     * @param key The selection key of the connection
+     */
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Close every connection and the server socket
+     */
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            close(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Stop the server, closing all connections
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Main method to run the server
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        CalculatorMetrics.registerMBeans();
+        CalculatorServer server = new CalculatorServer(new InetSocketAddress(port));
+        server.setHistory(CalculationHistory.openConfigured());
+        System.out.println("Calculator server listening on port " + server.getPort());
+        server.run();
+    }
+}
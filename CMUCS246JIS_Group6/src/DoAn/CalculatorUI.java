@@ -3,9 +3,15 @@ package DoAn;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * UI class for the Calculator application
@@ -13,8 +19,25 @@ import java.awt.event.KeyListener;
  */
 public class CalculatorUI extends JFrame implements KeyListener {
     private JTextField displayField;
-    private CalculationLogic calculationLogic;
+    private JPanel buttonPanel;
+    // Created and used on the evaluator thread only
     private InputHandler inputHandler;
+    private KeystrokeRecorder recorder;
+    
+    // Keystrokes are evaluated in order on this thread, off the event dispatch thread
+    private final ExecutorService evaluator = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "calculator-evaluator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Display updates are coalesced and applied at most once per frame
+    private static final long FRAME_NANOS = 16_666_667L;
+    private final AtomicReference<DisplayUpdate> pendingUpdate = new AtomicReference<>();
+    private Timer frameTimer;
+    private long lastUpdateNanos;
+    // Input time of the oldest keystroke shown by the next paint, 0 if none
+    private long unpaintedSinceNanos;
     
     // Color scheme
     private final Color DISPLAY_BG = new Color(240, 240, 240);
@@ -22,24 +45,31 @@ public class CalculatorUI extends JFrame implements KeyListener {
     private final Color OPERATOR_BG = new Color(230, 230, 250);
     private final Color EQUALS_BG = new Color(173, 216, 230);
     private final Color CLEAR_BG = new Color(255, 228, 225);
+    private final Color MEMORY_BG = new Color(230, 245, 230);
     
     /**
      * Constructor for the Calculator UI
+     * Only the frame and the display are built here; the buttons are added by a later
+     * event, so a frame shown right away appears before they are created, and the
+     * calculation logic is set up on the evaluator thread meanwhile
      */
     public CalculatorUI() {
-        // Initialize the calculation logic and input handler
-        calculationLogic = new CalculationLogic();
-        inputHandler = new InputHandler(calculationLogic);
+        // Initialize the calculation logic and input handler off the event thread,
+        // ahead of any keystroke
+        evaluator.execute(() -> inputHandler = new InputHandler(new CalculationLogic()));
         
         // Set up the frame
         setTitle("Java Calculator");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setSize(320, 450);
+        setSize(320, 520);
         setLocationRelativeTo(null);
         setResizable(false);
         
-        // Create UI components
+        // Create UI components, the buttons once the frame can be shown
         initComponents();
+        SwingUtilities.invokeLater(this::initButtons);
+        frameTimer = new Timer(0, e -> updateDisplay());
+        frameTimer.setRepeats(false);
         
         // Add key listener for keyboard support
         addKeyListener(this);
@@ -49,10 +79,18 @@ public class CalculatorUI extends JFrame implements KeyListener {
     
     /**
      * Initialize UI components
+     * The button panel is laid out empty, so the frame has its final layout before
+     * the buttons are added
      */
     private void initComponents() {
         // Set up the display field
-        displayField = new JTextField("0");
+        displayField = new JTextField("0") {
+            @Override
+            protected void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                recordPaint();
+            }
+        };
         displayField.setFont(new Font("Arial", Font.BOLD, 28));
         displayField.setHorizontalAlignment(JTextField.RIGHT);
         displayField.setEditable(false);
@@ -63,12 +101,27 @@ public class CalculatorUI extends JFrame implements KeyListener {
         ));
         
         // Create button panel with grid layout
-        JPanel buttonPanel = new JPanel();
-        buttonPanel.setLayout(new GridLayout(5, 4, 8, 8));
+        buttonPanel = new JPanel();
+        buttonPanel.setLayout(new GridLayout(6, 4, 8, 8));
         buttonPanel.setBackground(new Color(220, 220, 220));
         
+        // Set up layout
+        setLayout(new BorderLayout(10, 10));
+        add(displayField, BorderLayout.NORTH);
+        add(buttonPanel, BorderLayout.CENTER);
+        
+        // Add padding
+        ((JPanel)getContentPane()).setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+        getContentPane().setBackground(new Color(220, 220, 220));
+    }
+    
+    /**
+     * Create the buttons and add them to the button panel
+     */
+    private void initButtons() {
         // Create buttons
         String[] buttonLabels = {
+            "MC", "MR", "M-", "M+",
             "7", "8", "9", "/",
             "4", "5", "6", "*",
             "1", "2", "3", "-",
@@ -77,6 +130,7 @@ public class CalculatorUI extends JFrame implements KeyListener {
         };
         
         // Add buttons to panel
+        ButtonClickListener listener = new ButtonClickListener();
         for (String label : buttonLabels) {
             if (label.isEmpty()) {
                 JPanel emptyPanel = new JPanel();
@@ -84,19 +138,12 @@ public class CalculatorUI extends JFrame implements KeyListener {
                 buttonPanel.add(emptyPanel);
             } else {
                 JButton button = createStyledButton(label);
-                button.addActionListener(new ButtonClickListener());
+                button.addActionListener(listener);
                 buttonPanel.add(button);
             }
         }
-        
-        // Set up layout
-        setLayout(new BorderLayout(10, 10));
-        add(displayField, BorderLayout.NORTH);
-        add(buttonPanel, BorderLayout.CENTER);
-        
-        // Add padding
-        ((JPanel)getContentPane()).setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
-        getContentPane().setBackground(new Color(220, 220, 220));
+        buttonPanel.revalidate();
+        buttonPanel.repaint();
     }
     
     /**
@@ -108,18 +155,11 @@ public class CalculatorUI extends JFrame implements KeyListener {
         JButton button = new JButton(label);
         button.setFont(new Font("Arial", Font.BOLD, 18));
         button.setFocusPainted(false);
+        // Keep keyboard focus on the frame so keys work after a click
+        button.setFocusable(false);
         
         // Set button colors based on function
-        if (label.equals("=")) {
-            button.setBackground(EQUALS_BG);
-        } else if (label.equals("C") || label.equals("CE")) {
-            button.setBackground(CLEAR_BG);
-        } else if (label.equals("+") || label.equals("-") || 
-                   label.equals("*") || label.equals("/")) {
-            button.setBackground(OPERATOR_BG);
-        } else {
-            button.setBackground(BUTTON_BG);
-        }
+        button.setBackground(buttonColor(label));
         
         // Add hover effect
         button.addMouseListener(new java.awt.event.MouseAdapter() {
@@ -128,22 +168,32 @@ public class CalculatorUI extends JFrame implements KeyListener {
             }
             
             public void mouseExited(java.awt.event.MouseEvent evt) {
-                if (label.equals("=")) {
-                    button.setBackground(EQUALS_BG);
-                } else if (label.equals("C") || label.equals("CE")) {
-                    button.setBackground(CLEAR_BG);
-                } else if (label.equals("+") || label.equals("-") || 
-                           label.equals("*") || label.equals("/")) {
-                    button.setBackground(OPERATOR_BG);
-                } else {
-                    button.setBackground(BUTTON_BG);
-                }
+                button.setBackground(buttonColor(label));
             }
         });
         
         return button;
     }
     
+    /**
+     * Get the background color of a button
+     * @param label Button label
+     * @return The color for the button's function
+     */
+    private Color buttonColor(String label) {
+        if (label.equals("=")) {
+            return EQUALS_BG;
+        } else if (label.equals("C") || label.equals("CE")) {
+            return CLEAR_BG;
+        } else if (label.equals("+") || label.equals("-") || 
+                   label.equals("*") || label.equals("/")) {
+            return OPERATOR_BG;
+        } else if (label.startsWith("M")) {
+            return MEMORY_BG;
+        }
+        return BUTTON_BG;
+    }
+    
     /**
      * Inner class to handle button clicks
      */
@@ -155,46 +205,231 @@ public class CalculatorUI extends JFrame implements KeyListener {
         }
     }
     
+    /**
+     * Create and show a calculator on the event dispatch thread
+     * @param history The history to record calculations in, or null for none
+     * @param recorder The recorder to record keystrokes with, or null for none
+     */
+    public static void launch(CalculationHistory history, KeystrokeRecorder recorder) {
+        SwingUtilities.invokeLater(() -> {
+            CalculatorUI calculatorUI = new CalculatorUI();
+            if (history != null) {
+                calculatorUI.setHistory(history);
+            }
+            if (recorder != null) {
+                calculatorUI.setRecorder(recorder);
+            }
+            calculatorUI.setVisible(true);
+        });
+    }
+    
+    /**
+     * Record completed calculations in a history
+     * @param history The history to append to, or null to stop recording
+     */
+    public void setHistory(CalculationHistory history) {
+        evaluator.execute(() -> inputHandler.setHistory(history));
+    }
+    
+    /**
+     * Record keystrokes for KeystrokeReplayer
+     * Each keystroke is recorded with the time it was entered and the display it gave
+     * @param recorder The recorder, or null to stop recording
+     */
+    public void setRecorder(KeystrokeRecorder recorder) {
+        evaluator.execute(() -> this.recorder = recorder);
+    }
+    
     /**
      * Process command from button click or keyboard
+     * The command is queued for the evaluator thread, which handles commands in the
+     * order they were entered
      * @param command The command to process
      */
     private void processCommand(String command) {
-        String result = inputHandler.processInput(command);
-        displayField.setText(result.isEmpty() ? "0" : result);
-        
-        // Request focus to ensure keyboard events are captured
-        requestFocusInWindow();
+        long inputNanos = System.nanoTime();
+        evaluator.execute(() -> {
+            String result = inputHandler.processInput(command);
+            if (recorder != null) {
+                try {
+                    recorder.record(command, inputNanos, result);
+                } catch (IOException | IllegalArgumentException e) {
+                    stopRecording(e);
+                }
+            }
+            publish(result.isEmpty() ? "0" : result, inputNanos);
+        });
     }
     
-    // KeyListener implementation for keyboard support
-    @Override
-    public void keyTyped(KeyEvent e) {
-        char keyChar = e.getKeyChar();
+    /**
+     * Process text pasted from the clipboard as if it had been typed
+     * The whole paste is evaluated in one pass and shown once
+     */
+    private void paste() {
+        String text;
+        try {
+            text = (String) Toolkit.getDefaultToolkit().getSystemClipboard().getData(DataFlavor.stringFlavor);
+        } catch (UnsupportedFlavorException | IOException | IllegalStateException e) {
+            // Nothing usable on the clipboard
+            return;
+        }
         
+        // Keep only the characters that typing would accept
+        StringBuilder keys = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char key = toInputKey(text.charAt(i));
+            if (key != 0) {
+                keys.append(key);
+            }
+        }
+        
+        long inputNanos = System.nanoTime();
+        evaluator.execute(() -> {
+            String result = inputHandler.processInputs(keys);
+            if (recorder != null) {
+                try {
+                    recorder.recordBurst(keys, inputNanos, result);
+                } catch (IOException | IllegalArgumentException e) {
+                    stopRecording(e);
+                }
+            }
+            publish(result.isEmpty() ? "0" : result, inputNanos);
+        });
+    }
+    
+    /**
+     * Stop recording after a keystroke could not be recorded
+     * A replay would go out of step at the missing keystroke, so the recording ends there
+     * Called on the evaluator thread; the calculator carries on without it
+     * @param e The error
+     */
+    private void stopRecording(Exception e) {
+        System.err.println("Could not record keystrokes: " + e.getMessage());
+        try {
+            recorder.close();
+        } catch (IOException closeError) {
+            // Already reported
+        }
+        recorder = null;
+    }
+    
+    /**
+     * Map a typed character to the key InputHandler expects
+     * @param keyChar The typed character
+     * @return The key, or 0 if the character is not used
+     */
+    private static char toInputKey(char keyChar) {
         // Handle numeric keys and operators
-        if (Character.isDigit(keyChar) || keyChar == '.' || 
+        if ((keyChar >= '0' && keyChar <= '9') || keyChar == '.' || 
             keyChar == '+' || keyChar == '-' || 
             keyChar == '*' || keyChar == '/') {
-            processCommand(String.valueOf(keyChar));
+            return keyChar;
         } 
         // Handle equals (Enter key)
         else if (keyChar == '\n' || keyChar == '=') {
-            processCommand("=");
+            return '=';
         }
         // Handle clear (Escape key)
         else if (keyChar == 27) {
-            processCommand("C");
+            return InputHandler.KEY_CLEAR;
         }
         // Handle backspace (as CE)
         else if (keyChar == '\b') {
-            processCommand("CE");
+            return InputHandler.KEY_CLEAR_ENTRY;
+        }
+        return 0;
+    }
+    
+    /**
+     * Hand a new display to the event dispatch thread, called on the evaluator thread
+     * Replaces a display that has not been shown yet
+     * @param display The display
+     * @param inputNanos Input time of the keystroke
+     */
+    private void publish(String display, long inputNanos) {
+        DisplayUpdate previous = pendingUpdate.getAndUpdate(pending ->
+            new DisplayUpdate(display, pending != null ? pending.inputNanos : inputNanos));
+        if (previous == null) {
+            SwingUtilities.invokeLater(this::scheduleUpdate);
+        }
+    }
+    
+    /**
+     * Show the pending display now, or at the next frame if one was shown this frame
+     */
+    private void scheduleUpdate() {
+        long wait = lastUpdateNanos + FRAME_NANOS - System.nanoTime();
+        if (wait <= 0) {
+            updateDisplay();
+        } else {
+            frameTimer.setInitialDelay((int) ((wait + 999_999) / 1_000_000));
+            frameTimer.restart();
+        }
+    }
+    
+    /**
+     * Show the pending display
+     */
+    private void updateDisplay() {
+        DisplayUpdate update = pendingUpdate.getAndSet(null);
+        if (update == null) {
+            return;
+        }
+        lastUpdateNanos = System.nanoTime();
+        if (unpaintedSinceNanos == 0) {
+            unpaintedSinceNanos = update.inputNanos;
+        }
+        if (update.display.equals(displayField.getText())) {
+            // Nothing to repaint, the display is already up to date
+            recordPaint();
+        } else {
+            displayField.setText(update.display);
+        }
+    }
+    
+    /**
+     * Measure the input-to-paint latency once the display has been painted
+     */
+    private void recordPaint() {
+        if (unpaintedSinceNanos != 0) {
+            if (CalculatorMetrics.ENABLED) {
+                CalculatorMetrics.INPUT_TO_PAINT.record(System.nanoTime() - unpaintedSinceNanos);
+            }
+            unpaintedSinceNanos = 0;
+        }
+    }
+    
+    /**
+     * A display waiting to be shown
+     */
+    private static final class DisplayUpdate {
+        final String display;
+        // Input time of the oldest keystroke not shown yet
+        final long inputNanos;
+        
+        DisplayUpdate(String display, long inputNanos) {
+            this.display = display;
+            this.inputNanos = inputNanos;
+        }
+    }
+    
+    // KeyListener implementation for keyboard support
+    @Override
+    public void keyTyped(KeyEvent e) {
+        char key = toInputKey(e.getKeyChar());
+        if (key != 0) {
+            processCommand(String.valueOf(key));
         }
     }
     
     @Override
     public void keyPressed(KeyEvent e) {
-        // Not used, but required by KeyListener interface
+        // Handle paste (Ctrl+V, Cmd+V on macOS, or the Paste key)
+        int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+        if ((e.getKeyCode() == KeyEvent.VK_V && (e.getModifiersEx() & shortcut) != 0)
+                || e.getKeyCode() == KeyEvent.VK_PASTE) {
+            paste();
+        }
     }
     
     @Override
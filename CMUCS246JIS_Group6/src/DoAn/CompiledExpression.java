@@ -0,0 +1,202 @@
+package DoAn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CompiledExpression class for the Calculator application
+ * An expression compiled once into a tree of closures, so evaluating it again with
+ * different variable values does no parsing and allocates nothing
+ * Operations go through CalculationLogic and throw ArithmeticException as it does
+ * Instances are immutable and can be shared between threads
+ */
+public final class CompiledExpression {
+    private static final double[] NO_VARIABLES = new double[0];
+
+    /**
+     * A compiled node of the expression tree
+     */
+    interface Evaluator {
+        /**
+         * Evaluate the node
+         * @param variables Variable values by slot
+         * @return The value of the node
+         */
+        double evaluate(double[] variables);
+    }
+
+    /**
+     * A compiled node with a fixed value
+     */
+    private static final class Constant implements Evaluator {
+        private final double value;
+
+        /**
+         * Constructor for a constant node
+         * @param value The fixed value
+         */
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double evaluate(double[] variables) {
+            return value;
+        }
+    }
+
+    private final String text;
+    private final Evaluator root;
+    private final String[] variableNames;
+
+    /**
+     * Constructor for a CompiledExpression
+     */
+    private CompiledExpression(String text, Evaluator root, String[] variableNames) {
+        this.text = text;
+        this.root = root;
+        this.variableNames = variableNames;
+    }
+
+    /**
+     * Parse and compile an expression
+     * @param text The expression text, e.g. "3+4*(2-1)/5" or "price*(1+rate)"
+     * @param calculationLogic The calculation logic to evaluate operations with
+     * @return The compiled expression
+     * @throws IllegalArgumentException If the text is not a valid expression
+     */
+    public static CompiledExpression compile(String text, CalculationLogic calculationLogic) throws IllegalArgumentException {
+        Expression expression = new ExpressionParser(calculationLogic.getOperatorRegistry()).parse(text);
+        return compile(expression, calculationLogic);
+    }
+
+    /**
+     * Compile a parsed expression
+     * Variables get slots in order of first appearance
+     * @param expression The expression tree
+     * @param calculationLogic The calculation logic to evaluate operations with
+     * @return The compiled expression
+     */
+    public static CompiledExpression compile(Expression expression, CalculationLogic calculationLogic) {
+        List<String> variableNames = new ArrayList<>();
+        Evaluator root = compileNode(expression, calculationLogic, variableNames);
+        return new CompiledExpression(expression.toString(), root, variableNames.toArray(new String[0]));
+    }
+
+    /**
+     * Compile one node of the expression tree
+     * @param expression The node
+     * @param logic The calculation logic to evaluate operations with
+     * @param variableNames Variable names by slot, extended with new names
+     * @return The compiled node
+     */
+    private static Evaluator compileNode(Expression expression, CalculationLogic logic, List<String> variableNames) {
+        if (expression instanceof Expression.Literal) {
+            return new Constant(((Expression.Literal) expression).getValue());
+        }
+
+        if (expression instanceof Expression.Variable) {
+            String name = ((Expression.Variable) expression).getName();
+            int slot = variableNames.indexOf(name);
+            if (slot < 0) {
+                slot = variableNames.size();
+                variableNames.add(name);
+            }
+            int variableSlot = slot;
+            return variables -> variables[variableSlot];
+        }
+
+        if (expression instanceof Expression.Negate) {
+            Evaluator operand = compileNode(((Expression.Negate) expression).getOperand(), logic, variableNames);
+            if (operand instanceof Constant) {
+                return new Constant(-operand.evaluate(NO_VARIABLES));
+            }
+            return variables -> -operand.evaluate(variables);
+        }
+
+        Expression.Binary binary = (Expression.Binary) expression;
+        Evaluator left = compileNode(binary.getLeft(), logic, variableNames);
+        Evaluator right = compileNode(binary.getRight(), logic, variableNames);
+
+        // Fold operations on constants, unless they fail so the error is raised on evaluation
+        if (left instanceof Constant && right instanceof Constant) {
+            try {
+                return new Constant(logic.calculate(left.evaluate(NO_VARIABLES), right.evaluate(NO_VARIABLES), binary.getOperator()));
+            } catch (ArithmeticException e) {
+                // Evaluate at run time instead
+            }
+        }
+
+        // A closure per operator passes a constant Operator, so the dispatch folds away
+        switch (binary.getOperator()) {
+            case ADD:
+                return variables -> logic.calculate(left.evaluate(variables), right.evaluate(variables), Operator.ADD);
+            case SUBTRACT:
+                return variables -> logic.calculate(left.evaluate(variables), right.evaluate(variables), Operator.SUBTRACT);
+            case MULTIPLY:
+                return variables -> logic.calculate(left.evaluate(variables), right.evaluate(variables), Operator.MULTIPLY);
+            default:
+                return variables -> logic.calculate(left.evaluate(variables), right.evaluate(variables), Operator.DIVIDE);
+        }
+    }
+
+    /**
+     * Evaluate an expression without variables
+     * @return The value of the expression
+     * @throws ArithmeticException If an operation fails
+     * @throws IllegalArgumentException If the expression has variables
+     */
+    public double evaluate() throws ArithmeticException {
+        return evaluate(NO_VARIABLES);
+    }
+
+    /**
+     * Evaluate the expression
+     * @param variables Variable values by slot, see getVariableSlot
+     * @return The value of the expression
+     * @throws ArithmeticException If an operation fails
+     * @throws IllegalArgumentException If fewer values than variables are given
+     */
+    public double evaluate(double[] variables) throws ArithmeticException {
+        if (variables.length < variableNames.length) {
+            throw new IllegalArgumentException("Expected " + variableNames.length + " variable values, got " + variables.length);
+        }
+        return root.evaluate(variables);
+    }
+
+    /**
+     * Get the number of variable slots
+     * @return The number of distinct variables
+     */
+    public int getVariableCount() {
+        return variableNames.length;
+    }
+
+    /**
+     * Get the name of the variable in a slot
+     * @param slot The slot
+     * @return The variable name
+     */
+    public String getVariableName(int slot) {
+        return variableNames[slot];
+    }
+
+    /**
+     * Get the slot of a variable
+     * @param name The variable name
+     * @return The slot, or -1 if the expression has no such variable
+     */
+    public int getVariableSlot(String name) {
+        for (int i = 0; i < variableNames.length; i++) {
+            if (variableNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
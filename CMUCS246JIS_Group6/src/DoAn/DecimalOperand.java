@@ -0,0 +1,243 @@
+package DoAn;
+
+import java.math.BigDecimal;
+
+/**
+ * DecimalOperand class for the Calculator application
+ * A mutable fixed-point decimal, mantissa * 10^-scale, used for the number being
+ * typed and for displayed results so they never go through string parsing
+ */
+public class DecimalOperand {
+    /** Powers of ten that fit in a long */
+    static final long[] POWERS_OF_TEN = new long[19];
+
+    // Largest mantissa that converts to a double exactly
+    private static final long MAX_EXACT_DOUBLE = 1L << 53;
+
+    // Powers of ten that are exact in a double
+    private static final double[] DOUBLE_POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private long mantissa;
+    private int scale;
+    private boolean negative;
+    private boolean pointEntered;
+
+    /**
+     * Constructor for a zero operand
+     */
+    public DecimalOperand() {
+        clear();
+    }
+
+    /**
+     * Reset the operand to zero
+     */
+    public void clear() {
+        mantissa = 0;
+        scale = 0;
+        negative = false;
+        pointEntered = false;
+    }
+
+    /**
+     * Set the operand to an exact decimal
+     * @param mantissa The unscaled value, at least 0
+     * @param scale The number of decimal places, 0 to 18
+     * @param negative True for a negative value
+     */
+    public void set(long mantissa, int scale, boolean negative) {
+        this.mantissa = mantissa;
+        this.scale = scale;
+        this.negative = negative;
+        this.pointEntered = false;
+    }
+
+    /**
+     * Set the operand to an exact signed decimal
+     * @param signedMantissa The unscaled value
+     * @param scale The number of decimal places, 0 to 18
+     */
+    public void setSigned(long signedMantissa, int scale) {
+        set(Math.abs(signedMantissa), scale, signedMantissa < 0);
+    }
+
+    /**
+     * Copy another operand
+     * @param other The operand to copy
+     */
+    public void set(DecimalOperand other) {
+        mantissa = other.mantissa;
+        scale = other.scale;
+        negative = other.negative;
+        pointEntered = other.pointEntered;
+    }
+
+    /**
+     * Remove trailing zeros after the decimal point
+     */
+    public void stripTrailingZeros() {
+        while (scale > 0 && mantissa % 10 == 0) {
+            mantissa /= 10;
+            scale--;
+        }
+    }
+
+    /**
+     * Append a typed digit
+     * @param digit The digit, 0 to 9
+     */
+    public void appendDigit(int digit) {
+        mantissa = mantissa * 10 + digit;
+        if (pointEntered) {
+            scale++;
+        }
+    }
+
+    /**
+     * Append a typed decimal point
+     */
+    public void appendPoint() {
+        pointEntered = true;
+    }
+
+    /**
+     * Get the unscaled value
+     * @return The unscaled value, never negative
+     */
+    public long mantissa() {
+        return mantissa;
+    }
+
+    /**
+     * Get the unscaled value with its sign
+     * @return The unscaled value with the sign applied
+     */
+    public long signedMantissa() {
+        return negative ? -mantissa : mantissa;
+    }
+
+    /**
+     * Get the number of decimal places
+     * @return The number of decimal places
+     */
+    public int scale() {
+        return scale;
+    }
+
+    /**
+     * Check if the operand is negative
+     * @return True if the value is negative, including a rounded "-0"
+     */
+    public boolean isNegative() {
+        return negative;
+    }
+
+    /**
+     * Check if the operand is displayed with a decimal point
+     * @return True if a point was typed or there are decimal places
+     */
+    public boolean hasPoint() {
+        return pointEntered || scale > 0;
+    }
+
+    /**
+     * Convert to the nearest double
+     * @return The value as a double
+     */
+    public double toDouble() {
+        if (mantissa > MAX_EXACT_DOUBLE) {
+            // Both parts are no longer exact, let the library round correctly
+            return Double.parseDouble(toString());
+        }
+        // Both parts are exact, so a single division rounds correctly
+        double value = scale > 0 ? mantissa / DOUBLE_POWERS_OF_TEN[scale] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Get the number of characters needed to display the operand
+     * @return The display length
+     */
+    public int length() {
+        int digits = digitCount(mantissa);
+        int integerDigits = digits > scale ? digits - scale : 1;
+        int length = negative ? integerDigits + 1 : integerDigits;
+        return hasPoint() ? length + 1 + scale : length;
+    }
+
+    /**
+     * Write the operand as it is displayed
+     * @param buffer Buffer of at least length() characters
+     * @return The number of characters written
+     */
+    public int write(char[] buffer) {
+        int length = 0;
+        if (negative) {
+            buffer[length++] = '-';
+        }
+
+        long unit = POWERS_OF_TEN[scale];
+        length = writeDigits(mantissa / unit, 1, buffer, length);
+        if (hasPoint()) {
+            buffer[length++] = '.';
+            if (scale > 0) {
+                length = writeDigits(mantissa % unit, scale, buffer, length);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Write a non-negative number
+     * @param value The number to write
+     * @param width Minimum number of digits, padded with leading zeros
+     * @param buffer The buffer to write into
+     * @param offset Where to start writing
+     * @return The offset after the last character written
+     */
+    private static int writeDigits(long value, int width, char[] buffer, int offset) {
+        int end = offset + Math.max(width, digitCount(value));
+        for (int i = end - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Get the exact value as a BigDecimal
+     * @return The value
+     */
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(signedMantissa(), scale);
+    }
+
+    /**
+     * Count the decimal digits of a non-negative number
+     * @param value The number
+     * @return Its number of digits, at least 1
+     */
+    static int digitCount(long value) {
+        int count = 1;
+        while (count < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[count]) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        char[] buffer = new char[length()];
+        return new String(buffer, 0, write(buffer));
+    }
+}
@@ -0,0 +1,248 @@
+package DoAn;
+
+import java.math.BigInteger;
+
+/**
+ * DisplayFormatter class for the Calculator application
+ * Formats results for the display without String.format or regular expressions
+ *
+ * Fractional results are first converted to their shortest round-trip decimal digits
+ * with the Schubfach algorithm (R. Giulietti, "The Schubfach way to render doubles"),
+ * then rounded half-up to 10 decimal places, which is what "%.10f" does
+ */
+class DisplayFormatter {
+    /** Returned by format when the value cannot be displayed */
+    static final int OUT_OF_RANGE = -1;
+    /** Longest formatted result: sign, 16 integer digits, point and 10 decimals */
+    static final int MAX_LENGTH = 28;
+
+    // Display rules
+    private static final double MAX_DISPLAY_VALUE = 1e15;
+    private static final long MAX_DISPLAY_INTEGER = 1_000_000_000_000_000L;
+    private static final int MAX_FRACTION_DIGITS = 10;
+    // Values below this round to zero at 10 decimals whatever their shortest digits are
+    private static final double MIN_VISIBLE_VALUE = 4e-11;
+
+    // Schubfach constants for double
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << 52;
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+    private static final long MASK_63 = (1L << 63) - 1;
+
+    // 126-bit approximations g of 10^-k, split as g1 * 2^63 + g0
+    private static final long[] G = new long[(K_MAX - K_MIN + 1) * 2];
+
+    static {
+        // g = floor(10^-k * 2^(125 - floor(log2(10^-k)))) + 1, so that 2^125 <= g < 2^126
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            int shift = 125 - flog2pow10(-k);
+            BigInteger g = k <= 0
+                ? BigInteger.TEN.pow(-k).shiftLeft(shift)
+                : BigInteger.ONE.shiftLeft(shift).divide(BigInteger.TEN.pow(k));
+            g = g.add(BigInteger.ONE);
+            G[(k - K_MIN) * 2] = g.shiftRight(63).longValue();
+            G[(k - K_MIN) * 2 + 1] = g.longValue() & MASK_63;
+        }
+    }
+
+    // Shortest decimal of the last value: digits * 10^exponent
+    private long digits;
+    private int exponent;
+
+    // Scratch operand for format
+    private final DecimalOperand scratch = new DecimalOperand();
+
+    /**
+     * Format a result for the display
+     * Integers are written without decimals and other values with at most 10
+     * decimal places, trailing zeros removed
+     * @param value The value to format
+     * @param buffer Buffer of at least MAX_LENGTH characters to write into
+     * @return The number of characters written, or OUT_OF_RANGE if the value is
+     *         infinite, NaN or larger than 1e15
+     */
+    int format(double value, char[] buffer) {
+        if (!toDisplay(value, scratch)) {
+            return OUT_OF_RANGE;
+        }
+        return scratch.write(buffer);
+    }
+
+    /**
+     * Convert a result to the decimal that is displayed for it
+     * @param value The value to convert
+     * @param result The operand to store the displayed value in
+     * @return False if the value is infinite, NaN or larger than 1e15
+     */
+    boolean toDisplay(double value, DecimalOperand result) {
+        // Check if result is too large or small
+        if (Double.isInfinite(value) || Double.isNaN(value) ||
+            Math.abs(value) > MAX_DISPLAY_VALUE) {
+            return false;
+        }
+
+        if (value == (long) value) {
+            result.setSigned((long) value, 0);
+            return true;
+        }
+
+        double abs = Math.abs(value);
+        if (abs < MIN_VISIBLE_VALUE) {
+            result.set(0, 0, value < 0);
+            return true;
+        }
+
+        shortest(abs);
+        return round(digits, -exponent, value < 0, result);
+    }
+
+    /**
+     * Round an exact result to what is displayed for it
+     * @param result The operand to round in place
+     * @return False if the value is larger than 1e15
+     */
+    boolean round(DecimalOperand result) {
+        return round(result.mantissa(), result.scale(), result.isNegative(), result);
+    }
+
+    /**
+     * Round a decimal to what is displayed for it
+     * @param mantissa The unscaled value, at least 0
+     * @param scale The number of decimal places, at least 0
+     * @param negative True for a negative value
+     * @param result The operand to store the displayed value in
+     * @return False if the value is larger than 1e15
+     */
+    private boolean round(long mantissa, int scale, boolean negative, DecimalOperand result) {
+        long[] powersOfTen = DecimalOperand.POWERS_OF_TEN;
+
+        // Check if result is too large
+        if (scale < powersOfTen.length) {
+            long integerPart = mantissa / powersOfTen[scale];
+            if (integerPart > MAX_DISPLAY_INTEGER ||
+                integerPart == MAX_DISPLAY_INTEGER && integerPart * powersOfTen[scale] != mantissa) {
+                return false;
+            }
+        }
+
+        // Round half-up to 10 decimal places
+        if (scale > MAX_FRACTION_DIGITS) {
+            int dropped = scale - MAX_FRACTION_DIGITS;
+            if (dropped >= powersOfTen.length) {
+                mantissa = 0;
+            } else {
+                long unit = powersOfTen[dropped];
+                long rounded = mantissa / unit;
+                if (mantissa - rounded * unit >= unit / 2) {
+                    rounded++;
+                }
+                mantissa = rounded;
+            }
+            scale = MAX_FRACTION_DIGITS;
+        }
+
+        // Remove trailing zeros
+        while (scale > 0 && mantissa % 10 == 0) {
+            mantissa /= 10;
+            scale--;
+        }
+
+        result.set(mantissa, scale, negative);
+        return true;
+    }
+
+    /**
+     * Compute the shortest decimal that rounds back to a positive normal double,
+     * choosing the closest one if there are several
+     * The result is left in digits and exponent
+     * @param value The value to convert
+     */
+    private void shortest(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        int biasedExponent = (int) (bits >>> 52) & 0x7FF;
+        long c = C_MIN | (bits & (C_MIN - 1));
+        int q = Q_MIN - 1 + biasedExponent;
+
+        int out = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            // The gap below a power of two is half the gap above it
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        long g1 = G[(k - K_MIN) * 2];
+        long g0 = G[(k - K_MIN) * 2 + 1];
+
+        long vb = roundToOdd(g1, g0, cb << h);
+        long vbl = roundToOdd(g1, g0, cbl << h);
+        long vbr = roundToOdd(g1, g0, cbr << h);
+
+        // Try one digit less first
+        long s = vb >> 2;
+        if (s >= 100) {
+            long sp10 = 10 * (s / 10);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                digits = upin ? sp10 : tp10;
+                exponent = k;
+                return;
+            }
+        }
+
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            digits = uin ? s : t;
+        } else {
+            // Both candidates round back, pick the closer one
+            long cmp = vb - (s + t << 1);
+            digits = cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t;
+        }
+        exponent = k;
+    }
+
+    /**
+     * Multiply g by cp and keep the top bits, rounding to odd
+     */
+    private static long roundToOdd(long g1, long g0, long cp) {
+        long x1 = Math.multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = Math.multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    /**
+     * floor(log10(2^e))
+     */
+    private static int flog10pow2(int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    /**
+     * floor(log10(3/4 * 2^e))
+     */
+    private static int flog10threeQuartersPow2(int e) {
+        return (int) (e * 661_971_961_083L - 274_743_187_321L >> 41);
+    }
+
+    /**
+     * floor(log2(10^e))
+     */
+    private static int flog2pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+}
@@ -0,0 +1,143 @@
+package DoAn;
+
+/**
+ * Expression class for the Calculator application
+ * Abstract syntax tree of a parsed infix expression
+ * toString gives the normalized text of the expression, fully parenthesized
+ */
+public abstract class Expression {
+
+    /**
+     * A number literal
+     */
+    public static final class Literal extends Expression {
+        private final double value;
+
+        /**
+         * Constructor for a number literal
+         * @param value The value
+         */
+        public Literal(double value) {
+            this.value = value;
+        }
+
+        /**
+         * Get the value of the literal
+         * @return The value
+         */
+        public double getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return value == (long) value ? Long.toString((long) value) : Double.toString(value);
+        }
+    }
+
+    /**
+     * A named variable
+     */
+    public static final class Variable extends Expression {
+        private final String name;
+
+        /**
+         * Constructor for a variable reference
+         * @param name The variable name
+         */
+        public Variable(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Get the name of the variable
+         * @return The name
+         */
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A negated subexpression
+     */
+    public static final class Negate extends Expression {
+        private final Expression operand;
+
+        /**
+         * Constructor for a negation
+         * @param operand The expression to negate
+         */
+        public Negate(Expression operand) {
+            this.operand = operand;
+        }
+
+        /**
+         * Get the negated expression
+         * @return The operand
+         */
+        public Expression getOperand() {
+            return operand;
+        }
+
+        @Override
+        public String toString() {
+            return "(-" + operand + ")";
+        }
+    }
+
+    /**
+     * A binary operation
+     */
+    public static final class Binary extends Expression {
+        private final Operator operator;
+        private final Expression left;
+        private final Expression right;
+
+        /**
+         * Constructor for a binary operation
+         * @param operator The operator
+         * @param left The left operand
+         * @param right The right operand
+         */
+        public Binary(Operator operator, Expression left, Expression right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * Get the operator
+         * @return The operator
+         */
+        public Operator getOperator() {
+            return operator;
+        }
+
+        /**
+         * Get the left operand
+         * @return The left operand
+         */
+        public Expression getLeft() {
+            return left;
+        }
+
+        /**
+         * Get the right operand
+         * @return The right operand
+         */
+        public Expression getRight() {
+            return right;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + operator + right + ")";
+        }
+    }
+}
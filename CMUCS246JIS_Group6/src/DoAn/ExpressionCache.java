@@ -0,0 +1,227 @@
+package DoAn;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ExpressionCache class for the Calculator application
+ * A concurrent cache of compiled expressions keyed by expression text with
+ * insignificant whitespace removed, bounded by entry count and by total text length
+ *
+ * Hits only read a map and set a flag, without locking. Eviction follows the CLOCK
+ * approximation of LRU: entries used since the last sweep get a second chance, the
+ * others are evicted oldest first
+ */
+public class ExpressionCache {
+    /**
+     * A cached expression
+     */
+    private static final class Entry {
+        final String key;
+        final CompiledExpression expression;
+        final int weight;
+        volatile boolean referenced;
+
+        /**
+         * Constructor for an Entry
+         * @param key The normalized expression text
+         * @param expression The compiled expression
+         */
+        Entry(String key, CompiledExpression expression) {
+            this.key = key;
+            this.expression = expression;
+            this.weight = key.length();
+        }
+    }
+
+    private final CalculationLogic calculationLogic;
+    private final int maximumSize;
+    private final long maximumWeight;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // Eviction order, guarded by itself
+    private final ArrayDeque<Entry> clock = new ArrayDeque<>();
+    private long weight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor for an ExpressionCache
+     * @param calculationLogic The calculation logic expressions are compiled against
+     * @param maximumSize Maximum number of cached expressions
+     * @param maximumWeight Maximum total length of cached expression texts
+     * @throws IllegalArgumentException If a bound is not positive
+     */
+    public ExpressionCache(CalculationLogic calculationLogic, int maximumSize, long maximumWeight) {
+        if (maximumSize <= 0 || maximumWeight <= 0) {
+            throw new IllegalArgumentException("Cache bounds must be positive");
+        }
+        this.calculationLogic = calculationLogic;
+        this.maximumSize = maximumSize;
+        this.maximumWeight = maximumWeight;
+    }
+
+    /**
+     * Get the compiled form of an expression, compiling and caching it on a miss
+     * @param text The expression text
+     * @return The compiled expression
+     * @throws IllegalArgumentException If the text is not a valid expression
+     */
+    public CompiledExpression get(String text) throws IllegalArgumentException {
+        String key = normalize(text);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            // Only write when the bit changes, so hits on a hot entry share its cache line
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            hits.increment();
+            return entry.expression;
+        }
+
+        misses.increment();
+        Entry compiled = new Entry(key, CompiledExpression.compile(key, calculationLogic));
+        entry = entries.putIfAbsent(key, compiled);
+        if (entry != null) {
+            // Another thread compiled it first
+            return entry.expression;
+        }
+
+        synchronized (clock) {
+            clock.addLast(compiled);
+            weight += compiled.weight;
+            evict();
+        }
+        return compiled.expression;
+    }
+
+    /**
+     * Evict entries until the cache is within its bounds
+     * Must be called holding the clock lock
+     */
+    private void evict() {
+        while (clock.size() > maximumSize || weight > maximumWeight) {
+            Entry candidate = clock.pollFirst();
+            if (candidate.referenced && clock.size() > 0) {
+                // Used since the last sweep, give it a second chance
+                candidate.referenced = false;
+                clock.addLast(candidate);
+            } else {
+                entries.remove(candidate.key, candidate);
+                weight -= candidate.weight;
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Remove all cached expressions, keeping the statistics
+     */
+    public void clear() {
+        synchronized (clock) {
+            for (Entry entry : clock) {
+                entries.remove(entry.key, entry);
+            }
+            clock.clear();
+            weight = 0;
+        }
+    }
+
+    /**
+     * Normalize expression text into a cache key by removing whitespace
+     * A single space is kept between two number or name characters, since removing
+     * it would change the meaning of e.g. "1 2"
+     * @param text The expression text
+     * @return The normalized text, the text itself if it has no whitespace
+     */
+    static String normalize(String text) {
+        int length = text.length();
+        int i = 0;
+        while (i < length && !Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return text;
+        }
+
+        StringBuilder key = new StringBuilder(length);
+        key.append(text, 0, i);
+        while (i < length) {
+            char c = text.charAt(i++);
+            if (!Character.isWhitespace(c)) {
+                key.append(c);
+                continue;
+            }
+            while (i < length && Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            if (key.length() > 0 && i < length &&
+                isWordCharacter(key.charAt(key.length() - 1)) && isWordCharacter(text.charAt(i))) {
+                key.append(' ');
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Check if a character can be part of a number or variable name
+     */
+    private static boolean isWordCharacter(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+    }
+
+    /**
+     * Get the number of cached expressions
+     * @return The number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the total weight of cached expressions
+     * @return The total length of cached expression texts
+     */
+    public long weight() {
+        synchronized (clock) {
+            return weight;
+        }
+    }
+
+    /**
+     * Get the number of lookups that found a cached expression
+     * @return The hit count
+     */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of lookups that had to compile
+     * @return The miss count
+     */
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the number of expressions evicted to stay within the bounds
+     * @return The eviction count
+     */
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Get the fraction of lookups that were hits
+     * @return The hit rate, 1 if there were no lookups
+     */
+    public double hitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 1.0 : (double) hitCount / total;
+    }
+}
@@ -0,0 +1,202 @@
+package DoAn;
+
+/**
+ * ExpressionParser class for the Calculator application
+ * Parses infix expressions such as "3+4*(2-1)/5" into an Expression tree, with the
+ * usual precedence, left associativity, parentheses, unary minus and named variables
+ * The expression tree may be MAX_DEPTH deep, counting parentheses, unary signs and
+ * chained operations, so deep nesting or a very long chain is a syntax error rather
+ * than a stack overflow when the tree is compiled or printed
+ */
+public class ExpressionParser {
+    /** Deepest nesting of parentheses, unary signs and chained operations accepted */
+    public static final int MAX_DEPTH = 256;
+
+    private final OperatorRegistry operatorRegistry;
+    private String text;
+    private int position;
+    private int depth;
+
+    /**
+     * Constructor for an ExpressionParser with the standard operator symbols
+     */
+    public ExpressionParser() {
+        this(new OperatorRegistry());
+    }
+
+    /**
+     * Constructor for an ExpressionParser
+     * @param operatorRegistry The registry used to resolve operator symbols
+     */
+    public ExpressionParser(OperatorRegistry operatorRegistry) {
+        this.operatorRegistry = operatorRegistry;
+    }
+
+    /**
+     * Parse an expression
+     * @param text The expression text
+     * @return The expression tree
+     * @throws IllegalArgumentException If the text is not a valid expression
+     */
+    public Expression parse(String text) throws IllegalArgumentException {
+        this.text = text;
+        this.position = 0;
+        this.depth = 0;
+
+        Expression expression = parseBinary(0);
+        skipWhitespace();
+        if (position < text.length()) {
+            throw error("Unexpected '" + text.charAt(position) + "'");
+        }
+        return expression;
+    }
+
+    /**
+     * Parse operations whose operators bind at least as tightly as a precedence
+     * @param minPrecedence The lowest precedence to accept
+     * @return The expression tree
+     */
+    private Expression parseBinary(int minPrecedence) {
+        Expression left = parseUnary();
+        // Each operation nests the tree built so far one level deeper
+        int chained = 0;
+        while (true) {
+            skipWhitespace();
+            if (position >= text.length()) {
+                break;
+            }
+            Operator operator = operatorRegistry.lookup(text.charAt(position));
+            if (operator == null || operator.precedence() < minPrecedence) {
+                break;
+            }
+            enter();
+            chained++;
+            position++;
+            // Parsing the right side one level tighter makes operators left associative
+            Expression right = parseBinary(operator.precedence() + 1);
+            left = new Expression.Binary(operator, left, right);
+        }
+        depth -= chained;
+        return left;
+    }
+
+    /**
+     * Parse a signed number, variable or parenthesized expression
+     * @return The expression tree
+     */
+    private Expression parseUnary() {
+        skipWhitespace();
+        if (position >= text.length()) {
+            throw error("Unexpected end of expression");
+        }
+
+        char c = text.charAt(position);
+        Operator operator = operatorRegistry.lookup(c);
+        if (operator == Operator.SUBTRACT) {
+            enter();
+            position++;
+            Expression expression = new Expression.Negate(parseUnary());
+            depth--;
+            return expression;
+        } else if (operator == Operator.ADD) {
+            enter();
+            position++;
+            Expression expression = parseUnary();
+            depth--;
+            return expression;
+        } else if (c == '(') {
+            enter();
+            position++;
+            Expression expression = parseBinary(0);
+            skipWhitespace();
+            if (position >= text.length() || text.charAt(position) != ')') {
+                throw error("Missing ')'");
+            }
+            position++;
+            depth--;
+            return expression;
+        } else if (Character.isDigit(c) || c == '.') {
+            return parseNumber();
+        } else if (Character.isLetter(c) || c == '_') {
+            return parseVariable();
+        }
+        throw error("Unexpected '" + c + "'");
+    }
+
+    /**
+     * Go one level deeper into parentheses, unary signs or a chain of operations
+     * @throws IllegalArgumentException If that is deeper than MAX_DEPTH
+     */
+    private void enter() {
+        if (++depth > MAX_DEPTH) {
+            throw error("Nested more than " + MAX_DEPTH + " deep");
+        }
+    }
+
+    /**
+     * Parse a number literal with an optional fraction and exponent
+     * @return The literal
+     */
+    private Expression parseNumber() {
+        int start = position;
+        skipDigits();
+        if (position < text.length() && text.charAt(position) == '.') {
+            position++;
+            skipDigits();
+        }
+        if (position < text.length() && (text.charAt(position) == 'e' || text.charAt(position) == 'E')) {
+            position++;
+            if (position < text.length() && (text.charAt(position) == '+' || text.charAt(position) == '-')) {
+                position++;
+            }
+            skipDigits();
+        }
+
+        try {
+            return new Expression.Literal(Double.parseDouble(text.substring(start, position)));
+        } catch (NumberFormatException e) {
+            position = start;
+            throw error("Invalid number");
+        }
+    }
+
+    /**
+     * Parse a variable name
+     * @return The variable reference
+     */
+    private Expression parseVariable() {
+        int start = position;
+        while (position < text.length() &&
+               (Character.isLetterOrDigit(text.charAt(position)) || text.charAt(position) == '_')) {
+            position++;
+        }
+        return new Expression.Variable(text.substring(start, position));
+    }
+
+    /**
+     * Skip over decimal digits
+     */
+    private void skipDigits() {
+        while (position < text.length() && Character.isDigit(text.charAt(position))) {
+            position++;
+        }
+    }
+
+    /**
+     * Skip over whitespace
+     */
+    private void skipWhitespace() {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+    }
+
+    /**
+     * Create an exception for a syntax error at the current position
+     * @param message What is wrong
+     * @return The exception to throw
+     */
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + position + " in \"" + text + "\"");
+    }
+}
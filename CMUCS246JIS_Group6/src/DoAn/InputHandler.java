@@ -1,228 +1,723 @@
 package DoAn;
 
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
 /**
  * InputHandler class for the Calculator application
  * Processes user input and interacts with the calculation logic
  */
 public class InputHandler {
+    /** Key for "C", clears all input and state */
+    public static final char KEY_CLEAR = 'C';
+    /** Key for "CE", clears the current entry */
+    public static final char KEY_CLEAR_ENTRY = '\b';
+    /** Key for "M+", adds the displayed value to memory */
+    public static final char KEY_MEMORY_ADD = 'P';
+    /** Key for "M-", subtracts the displayed value from memory */
+    public static final char KEY_MEMORY_SUBTRACT = 'N';
+    /** Key for "MR", enters the value in memory */
+    public static final char KEY_MEMORY_RECALL = 'R';
+    /** Key for "MC", sets memory to zero */
+    public static final char KEY_MEMORY_CLEAR = 'Z';
+
+    // Maximum number of characters the user can type
+    private static final int MAX_INPUT_LENGTH = 15;
+    private static final String ERROR = "Error";
+    // Significant digits of a recalled value that still fit a DecimalOperand
+    private static final MathContext RECALL_CONTEXT = new MathContext(18, RoundingMode.HALF_UP);
+
     private CalculationLogic calculationLogic;
-    private StringBuilder currentInput;
-    private String currentOperator;
-    private double firstOperand;
+    private final OperatorRegistry operatorRegistry;
+    private final DisplayFormatter formatter = new DisplayFormatter();
+    private final char[] formatBuffer = new char[DisplayFormatter.MAX_LENGTH];
+    private final char[] displayBuffer = new char[DisplayFormatter.MAX_LENGTH];
+    private final DecimalOperand currentInput;
+    private String display;
+    private Operator currentOperator;
+    private final DecimalOperand firstOperand;
+    // Precision mode; null for the standard display rules
+    private final MathContext mathContext;
+    // Precision mode values too large for a DecimalOperand, null otherwise
+    private BigDecimal currentValue;
+    private BigDecimal firstValue;
+    private BigDecimal displayedValue;
+    // Where completed calculations are recorded, null for none
+    private CalculationHistory history;
+    // The memory keys use this register; the bank is created on first use
+    private MemoryBank memory;
+    private int memoryRegister;
+    // Undo: the state after the last keystroke, linked to the states before it;
+    // null while undo is disabled
+    private State undoHead;
+    // Redo: states undone since the last keystroke, most recent first
+    private StateList redoStack;
     private boolean startNewInput;
     private boolean hasResult;
     private boolean errorState;
-    
+
     /**
      * Constructor for the InputHandler
      * @param calculationLogic The calculation logic to use
      */
     public InputHandler(CalculationLogic calculationLogic) {
+        this(calculationLogic, null);
+    }
+
+    /**
+     * Constructor for the InputHandler with a precision mode
+     * Results are rounded to the precision instead of to 10 decimal places and have no
+     * size limit; they stay on exact long arithmetic while they fit and only fall back
+     * to BigDecimal when they do not
+     * @param calculationLogic The calculation logic to use
+     * @param mathContext The precision of results, or null for the standard display
+     *        of 10 decimal places up to 1e15
+     */
+    public InputHandler(CalculationLogic calculationLogic, MathContext mathContext) {
         this.calculationLogic = calculationLogic;
-        this.currentInput = new StringBuilder("0");
-        this.currentOperator = "";
-        this.firstOperand = 0;
+        this.mathContext = mathContext;
+        this.operatorRegistry = calculationLogic.getOperatorRegistry();
+        this.currentInput = new DecimalOperand();
+        this.currentOperator = null;
+        this.firstOperand = new DecimalOperand();
         this.startNewInput = true;
         this.hasResult = false;
         this.errorState = false;
     }
-    
+
+    /**
+     * Record completed calculations in a history
+     * @param history The history to append to, or null to stop recording
+     */
+    public void setHistory(CalculationHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Use a register of a memory bank for the memory keys
+     * Without this, the memory keys use a register private to this InputHandler.
+     * Memory is not part of the state, so undo and restore leave it unchanged
+     * @param memory The memory bank, such as a MemoryBank.Shared for memory that
+     *        several sessions add to
+     * @param register The register number
+     * @throws IndexOutOfBoundsException If the bank has no such register
+     */
+    public void setMemory(MemoryBank memory, int register) {
+        if (register < 0 || register >= memory.size()) {
+            throw new IndexOutOfBoundsException("No memory register " + register);
+        }
+        this.memory = memory;
+        this.memoryRegister = register;
+    }
+
     /**
      * Process input from the UI
      * @param input The input string from button press
      * @return The string to display
      */
     public String processInput(String input) {
+        if (input.length() == 1) {
+            return processInput(input.charAt(0));
+        } else if (input.equals("CE")) {
+            return processInput(KEY_CLEAR_ENTRY);
+        } else if (input.equals("M+")) {
+            return processInput(KEY_MEMORY_ADD);
+        } else if (input.equals("M-")) {
+            return processInput(KEY_MEMORY_SUBTRACT);
+        } else if (input.equals("MR")) {
+            return processInput(KEY_MEMORY_RECALL);
+        } else if (input.equals("MC")) {
+            return processInput(KEY_MEMORY_CLEAR);
+        }
+
+        // Unknown input still resets the error state
+        if (errorState) {
+            clearAll();
+            recordUndo();
+        }
+        return display();
+    }
+
+    /**
+     * Process a single keystroke
+     * Keystrokes that leave the display unchanged allocate nothing
+     * @param key A digit, '.', an operator, '=', KEY_CLEAR, KEY_CLEAR_ENTRY or one of
+     *        the memory keys
+     * @return The string to display
+     */
+    public String processInput(char key) {
+        if (CalculatorMetrics.ENABLED) {
+            long start = System.nanoTime();
+            String display = handleKey(key);
+            CalculatorMetrics.PROCESS_INPUT.record(System.nanoTime() - start);
+            return display;
+        }
+        return handleKey(key);
+    }
+
+    /**
+     * Process a burst of keystrokes, such as pasted text, in one pass
+     * Gives the same display as processInput(char) for each keystroke in turn, but only
+     * the final display is built, and the whole burst is a single step for undo
+     * @param keys Keystrokes as for processInput(char); whitespace is skipped
+     * @return The string to display after the last keystroke
+     */
+    public String processInputs(CharSequence keys) {
+        for (int i = 0, length = keys.length(); i < length; i++) {
+            char key = keys.charAt(i);
+            if (!Character.isWhitespace(key)) {
+                applyKey(key);
+            }
+        }
+        recordUndo();
+        return display();
+    }
+
+    /**
+     * Apply a single keystroke, recording the new state for undo
+     * @param key The keystroke
+     * @return The string to display
+     */
+    private String handleKey(char key) {
+        applyKey(key);
+        recordUndo();
+        return display();
+    }
+
+    /**
+     * Keep the state for undo if undo is enabled and the state has changed
+     */
+    private void recordUndo() {
+        if (undoHead != null && !undoHead.matches(this)) {
+            undoHead = new State(this, undoHead);
+            redoStack = null;
+        }
+    }
+
+    /**
+     * Apply a single keystroke without building the display
+     * @param key The keystroke
+     */
+    private void applyKey(char key) {
         // Reset error state if any button is pressed
         if (errorState) {
-            errorState = false;
             clearAll();
         }
-        
+
         // Handle different types of input
-        if (isNumeric(input) || input.equals(".")) {
-            return handleNumericInput(input);
-        } else if (isOperator(input)) {
-            return handleOperatorInput(input);
-        } else if (input.equals("=")) {
-            return calculateResult();
-        } else if (input.equals("C")) {
-            return clearAll();
-        } else if (input.equals("CE")) {
-            return clearEntry();
+        Operator operator = operatorRegistry.lookup(key);
+        if (isNumeric(key) || key == '.') {
+            handleNumericInput(key);
+        } else if (operator != null) {
+            handleOperatorInput(operator);
+        } else if (key == '=') {
+            calculateResult();
+        } else if (key == KEY_CLEAR) {
+            clearAll();
+        } else if (key == KEY_CLEAR_ENTRY) {
+            clearEntry();
+        } else if (key == KEY_MEMORY_ADD || key == KEY_MEMORY_SUBTRACT ||
+                   key == KEY_MEMORY_RECALL || key == KEY_MEMORY_CLEAR) {
+            handleMemoryInput(key);
         }
-        
-        return currentInput.toString();
     }
-    
+
+    /**
+     * Enable or disable undo and redo
+     * While enabled, every keystroke that changes the state keeps the previous state,
+     * which takes constant space per keystroke; disabling drops all kept states
+     * @param enabled True to keep states for undo
+     */
+    public void setUndoEnabled(boolean enabled) {
+        if (!enabled) {
+            undoHead = null;
+            redoStack = null;
+        } else if (undoHead == null) {
+            undoHead = new State(this, null);
+        }
+    }
+
+    /**
+     * Check if there is a state to go back to
+     * @return True if undo would change the state
+     */
+    public boolean canUndo() {
+        return undoHead != null && undoHead.previous != null;
+    }
+
+    /**
+     * Check if there is an undone state to go forward to
+     * @return True if redo would change the state
+     */
+    public boolean canRedo() {
+        return redoStack != null;
+    }
+
+    /**
+     * Go back to the state before the last keystroke that changed it
+     * @return The string to display
+     */
+    public String undo() {
+        if (canUndo()) {
+            redoStack = new StateList(undoHead, redoStack);
+            undoHead = undoHead.previous;
+            undoHead.restoreTo(this);
+        }
+        return display();
+    }
+
+    /**
+     * Go forward to the state last undone
+     * @return The string to display
+     */
+    public String redo() {
+        if (canRedo()) {
+            undoHead = redoStack.state;
+            redoStack = redoStack.next;
+            undoHead.restoreTo(this);
+        }
+        return display();
+    }
+
+    /**
+     * Take an immutable snapshot of the state
+     * If undo is enabled the snapshot shares the states before it
+     * @return The snapshot
+     */
+    public State snapshot() {
+        if (undoHead != null) {
+            return undoHead;
+        }
+        return new State(this, null);
+    }
+
+    /**
+     * Go to a snapshot of this or another InputHandler
+     * With undo enabled, the states before the snapshot become the undo history and
+     * the redo history is dropped
+     * @param state The snapshot
+     * @return The string to display
+     */
+    public String restore(State state) {
+        state.restoreTo(this);
+        redoStack = null;
+        if (undoHead != null) {
+            undoHead = state;
+        }
+        return display();
+    }
+
+    /**
+     * Create an independent InputHandler with the same state, history settings and
+     * undo and redo histories, which are shared rather than copied
+     * Private memory is copied and shared memory stays shared
+     * @return The new InputHandler
+     */
+    public InputHandler fork() {
+        InputHandler fork = new InputHandler(calculationLogic, mathContext);
+        snapshot().restoreTo(fork);
+        fork.history = history;
+        if (memory != null) {
+            fork.memory = memory.fork();
+            fork.memoryRegister = memoryRegister;
+        }
+        fork.undoHead = undoHead;
+        fork.redoStack = redoStack;
+        return fork;
+    }
+
     /**
      * Handle numeric input (digits and decimal point)
      * @param input The numeric input
-     * @return The updated display string
      */
-    private String handleNumericInput(String input) {
+    private void handleNumericInput(char input) {
         // Start new input after operator or result
         if (startNewInput || hasResult) {
-            currentInput = new StringBuilder();
+            currentInput.clear();
+            currentValue = null;
             startNewInput = false;
             hasResult = false;
         }
-        
+
         // Handle decimal point
-        if (input.equals(".") && currentInput.toString().contains(".")) {
-            return currentInput.toString();
+        if (input == '.' && currentInput.hasPoint()) {
+            return;
         }
-        
-        // Handle initial decimal point
-        if (input.equals(".") && currentInput.length() == 0) {
-            currentInput.append("0.");
-        } else {
-            // Prevent leading zeros
-            if (currentInput.toString().equals("0") && !input.equals(".")) {
-                currentInput = new StringBuilder();
-            }
-            currentInput.append(input);
-        }
-        
+
         // Limit input length to prevent overflow
-        if (currentInput.length() > 15) {
-            currentInput.deleteCharAt(currentInput.length() - 1);
+        if (currentInput.length() >= MAX_INPUT_LENGTH) {
+            return;
+        }
+
+        // Leading zeros disappear since the digit is added arithmetically
+        if (input == '.') {
+            currentInput.appendPoint();
+        } else {
+            currentInput.appendDigit(input - '0');
         }
-        
-        return currentInput.toString();
     }
-    
+
     /**
      * Handle operator input (+, -, *, /)
      * @param operator The operator input
-     * @return The updated display string
      */
-    private String handleOperatorInput(String operator) {
+    private void handleOperatorInput(Operator operator) {
         // If we already have an operator and a first operand
-        if (!currentOperator.isEmpty() && !startNewInput) {
+        if (currentOperator != null && !startNewInput) {
             calculateResult();
-        }
-        
-        // Store the first operand and operator
-        if (currentInput.length() > 0) {
-            try {
-                firstOperand = Double.parseDouble(currentInput.toString());
-            } catch (NumberFormatException e) {
-                errorState = true;
-                return "Error";
+            if (errorState) {
+                return;
             }
         }
-        
+
+        // Store the first operand and operator
+        firstOperand.set(currentInput);
+        firstValue = currentValue;
         currentOperator = operator;
         startNewInput = true;
         hasResult = false;
-        
-        return currentInput.toString();
     }
-    
+
     /**
      * Calculate the result of the operation
-     * @return The result as a string
+     * The result replaces the current input as the value that is displayed, which is
+     * also the value used by a following operation
      */
-    private String calculateResult() {
-        if (currentOperator.isEmpty() || startNewInput) {
-            return currentInput.toString();
+    private void calculateResult() {
+        if (currentOperator == null || startNewInput) {
+            return;
         }
-        
-        double secondOperand;
-        try {
-            secondOperand = Double.parseDouble(currentInput.toString());
-        } catch (NumberFormatException e) {
-            errorState = true;
-            return "Error";
+
+        long start = CalculatorMetrics.ENABLED ? System.nanoTime() : 0;
+        Operator operator = currentOperator;
+        double first = 0;
+        double second = 0;
+        if (history != null) {
+            first = firstValue != null ? firstValue.doubleValue() : firstOperand.toDouble();
+            second = currentValue != null ? currentValue.doubleValue() : currentInput.toDouble();
         }
-        
+
         try {
-            double result = calculationLogic.calculate(firstOperand, secondOperand, currentOperator);
-            currentInput = new StringBuilder(formatResult(result));
-            firstOperand = result; // Store result as first operand for chaining operations
-            currentOperator = "";
+            boolean displayable;
+            if (mathContext != null) {
+                displayable = calculatePrecise();
+            } else if (calculationLogic.calculateExact(firstOperand, currentInput, currentOperator, currentInput)) {
+                displayable = formatter.round(currentInput);
+            } else {
+                double result = calculationLogic.calculate(firstOperand.toDouble(), currentInput.toDouble(), currentOperator);
+                displayable = formatter.toDisplay(result, currentInput);
+            }
+            errorState = !displayable;
+            currentOperator = null;
             startNewInput = true;
             hasResult = true;
+            if (CalculatorMetrics.ENABLED && !displayable) {
+                CalculatorMetrics.recordFailure(CalculatorMetrics.Failure.OUT_OF_RANGE);
+            }
         } catch (ArithmeticException e) {
-            currentInput = new StringBuilder("Error");
-            currentOperator = "";
+            currentOperator = null;
             startNewInput = true;
             errorState = true;
         }
-        
-        return currentInput.toString();
+        if (history != null) {
+            double result = currentValue != null ? currentValue.doubleValue() : currentInput.toDouble();
+            history.append(first, operator, second, result, errorState);
+        }
+        if (CalculatorMetrics.ENABLED) {
+            CalculatorMetrics.CALCULATE_RESULT.record(System.nanoTime() - start);
+        }
     }
-    
+
+    /**
+     * Calculate the result of the operation in precision mode
+     * @return True, precision mode results are never too large to display
+     * @throws ArithmeticException If the calculation fails
+     */
+    private boolean calculatePrecise() throws ArithmeticException {
+        BigDecimal result;
+        if (firstValue == null && currentValue == null &&
+            calculationLogic.calculateExact(firstOperand, currentInput, currentOperator, currentInput)) {
+            // The exact result is kept as it is if it is within the precision
+            int precision = mathContext.getPrecision();
+            if (precision == 0 || DecimalOperand.digitCount(currentInput.mantissa()) <= precision) {
+                currentInput.stripTrailingZeros();
+                return true;
+            }
+            result = currentInput.toBigDecimal().round(mathContext);
+        } else {
+            BigDecimal first = firstValue != null ? firstValue : firstOperand.toBigDecimal();
+            BigDecimal second = currentValue != null ? currentValue : currentInput.toBigDecimal();
+            result = calculationLogic.calculate(first, second, currentOperator, mathContext);
+        }
+
+        setCurrentValue(result);
+        return true;
+    }
+
+    /**
+     * Make a value the current input, on the long path if it fits and as a
+     * BigDecimal if it does not
+     * @param value The value
+     */
+    private void setCurrentValue(BigDecimal value) {
+        // Go back to the long path if the value fits
+        value = value.stripTrailingZeros();
+        if (value.scale() < 0 && value.precision() - value.scale() < DecimalOperand.POWERS_OF_TEN.length) {
+            value = value.setScale(0);
+        }
+        if (value.scale() >= 0 && value.scale() < DecimalOperand.POWERS_OF_TEN.length &&
+            value.unscaledValue().bitLength() < Long.SIZE) {
+            currentInput.setSigned(value.unscaledValue().longValue(), value.scale());
+            currentValue = null;
+        } else {
+            currentValue = value;
+        }
+    }
+
+    /**
+     * Handle memory input (M+, M-, MR, MC)
+     * M+ and M- leave the display as it is, but like a result it is replaced by the
+     * next digit; MR enters the value in memory as if it had been typed
+     * @param key The memory key
+     */
+    private void handleMemoryInput(char key) {
+        if (memory == null) {
+            memory = new MemoryBank.Session(1);
+        }
+        if (key == KEY_MEMORY_CLEAR) {
+            memory.clear(memoryRegister);
+        } else if (key == KEY_MEMORY_RECALL) {
+            recall(memory.recall(memoryRegister));
+        } else {
+            BigDecimal value = currentValue != null ? currentValue : currentInput.toBigDecimal();
+            memory.add(memoryRegister, key == KEY_MEMORY_ADD ? value : value.negate());
+            hasResult = true;
+        }
+    }
+
+    /**
+     * Enter a recalled value as the current input
+     * The value is rounded like a result, or for precision mode to the precision
+     * @param value The value
+     */
+    private void recall(BigDecimal value) {
+        if (mathContext != null) {
+            setCurrentValue(value.round(mathContext));
+        } else {
+            setCurrentValue(value.round(RECALL_CONTEXT));
+            if (currentValue != null) {
+                // Too large for the display
+                currentValue = null;
+                errorState = true;
+            } else {
+                errorState = !formatter.round(currentInput);
+            }
+        }
+        startNewInput = false;
+        hasResult = true;
+    }
+
     /**
      * Clear all input and state
-     * @return Empty string
      */
-    private String clearAll() {
-        currentInput = new StringBuilder("0");
-        currentOperator = "";
-        firstOperand = 0;
+    private void clearAll() {
+        currentInput.clear();
+        currentValue = null;
+        firstValue = null;
+        currentOperator = null;
+        firstOperand.clear();
         startNewInput = true;
         hasResult = false;
         errorState = false;
-        return "0";
     }
-    
+
     /**
      * Clear current entry
-     * @return Empty string or current input
      */
-    private String clearEntry() {
-        if (startNewInput) {
-            return currentInput.toString();
+    private void clearEntry() {
+        if (!startNewInput) {
+            currentInput.clear();
+            currentValue = null;
+        }
+    }
+
+    /**
+     * Get the display string, creating a new one only if the display has changed
+     * @return The string to display
+     */
+    private String display() {
+        if (errorState) {
+            display = ERROR;
+            displayedValue = null;
+        } else if (currentValue != null) {
+            if (currentValue != displayedValue) {
+                display = currentValue.toString();
+                displayedValue = currentValue;
+            }
         } else {
-            currentInput = new StringBuilder("0");
-            return "0";
+            displayedValue = null;
+            int length = currentInput.write(displayBuffer);
+            if (!displayMatches(length)) {
+                display = new String(displayBuffer, 0, length);
+            }
         }
+        return display;
     }
-    
+
     /**
-     * Check if input is numeric
-     * @param input The input to check
-     * @return True if numeric
+     * Check if the cached display string matches the display buffer
+     * @param length The length of the display buffer content
+     * @return True if the cached display can be reused
      */
-    private boolean isNumeric(String input) {
-        return input.matches("[0-9]");
+    private boolean displayMatches(int length) {
+        if (display == null || display.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (display.charAt(i) != displayBuffer[i]) {
+                return false;
+            }
+        }
+        return true;
     }
-    
+
     /**
-     * Check if input is an operator
+     * Check if input is numeric
      * @param input The input to check
-     * @return True if operator
+     * @return True if numeric
      */
-    private boolean isOperator(String input) {
-        return input.equals("+") || input.equals("-") || 
-               input.equals("*") || input.equals("/");
+    private boolean isNumeric(char input) {
+        return input >= '0' && input <= '9';
     }
-    
+
     /**
      * Format the result to avoid unnecessary decimal places
      * @param result The result to format
      * @return Formatted result string
      */
-    private String formatResult(double result) {
-        // Check if result is too large or small
-        if (Double.isInfinite(result) || Double.isNaN(result) || 
-            Math.abs(result) > 1e15) {
+    String formatResult(double result) {
+        long start = CalculatorMetrics.ENABLED ? System.nanoTime() : 0;
+        int length = formatter.format(result, formatBuffer);
+        if (CalculatorMetrics.ENABLED) {
+            CalculatorMetrics.FORMAT_RESULT.record(System.nanoTime() - start);
+        }
+        if (length == DisplayFormatter.OUT_OF_RANGE) {
+            if (CalculatorMetrics.ENABLED) {
+                CalculatorMetrics.recordFailure(CalculatorMetrics.Failure.OUT_OF_RANGE);
+            }
             errorState = true;
-            return "Error";
+            return ERROR;
         }
-        
-        // Format result to remove unnecessary decimal zeros
-        if (result == (long) result) {
-            return String.format("%d", (long) result);
-        } else {
-            // Limit decimal places to 10 for readability
-            String formatted = String.format("%.10f", result);
-            // Remove trailing zeros
-            formatted = formatted.replaceAll("0*$", "").replaceAll("\\.$", "");
-            return formatted;
+        return new String(formatBuffer, 0, length);
+    }
+
+    /**
+     * An immutable snapshot of the state of an InputHandler
+     * Each snapshot links to the snapshot before it, so a chain of snapshots is shared
+     * by every handler and snapshot that refers to it
+     */
+    public static final class State {
+        private final long currentMantissa;
+        private final int currentScale;
+        private final boolean currentNegative;
+        private final boolean currentPoint;
+        private final BigDecimal currentValue;
+        private final long firstMantissa;
+        private final int firstScale;
+        private final boolean firstNegative;
+        private final boolean firstPoint;
+        private final BigDecimal firstValue;
+        private final Operator currentOperator;
+        private final boolean startNewInput;
+        private final boolean hasResult;
+        private final boolean errorState;
+        private final State previous;
+
+        /**
+         * Constructor for a State
+         * @param handler The handler to take the state of
+         * @param previous The state before it, null for none
+         */
+        private State(InputHandler handler, State previous) {
+            DecimalOperand current = handler.currentInput;
+            DecimalOperand first = handler.firstOperand;
+            this.currentMantissa = current.mantissa();
+            this.currentScale = current.scale();
+            this.currentNegative = current.isNegative();
+            this.currentPoint = current.hasPoint();
+            this.currentValue = handler.currentValue;
+            this.firstMantissa = first.mantissa();
+            this.firstScale = first.scale();
+            this.firstNegative = first.isNegative();
+            this.firstPoint = first.hasPoint();
+            this.firstValue = handler.firstValue;
+            this.currentOperator = handler.currentOperator;
+            this.startNewInput = handler.startNewInput;
+            this.hasResult = handler.hasResult;
+            this.errorState = handler.errorState;
+            this.previous = previous;
+        }
+
+        /**
+         * Check if a handler is in this state
+         * @param handler The handler
+         * @return True if the handler state equals this state
+         */
+        private boolean matches(InputHandler handler) {
+            DecimalOperand current = handler.currentInput;
+            DecimalOperand first = handler.firstOperand;
+            return currentMantissa == current.mantissa() && currentScale == current.scale() &&
+                   currentNegative == current.isNegative() && currentPoint == current.hasPoint() &&
+                   currentValue == handler.currentValue &&
+                   firstMantissa == first.mantissa() && firstScale == first.scale() &&
+                   firstNegative == first.isNegative() && firstPoint == first.hasPoint() &&
+                   firstValue == handler.firstValue && currentOperator == handler.currentOperator &&
+                   startNewInput == handler.startNewInput && hasResult == handler.hasResult &&
+                   errorState == handler.errorState;
+        }
+
+        /**
+         * Put a handler in this state
+         * @param handler The handler
+         */
+        private void restoreTo(InputHandler handler) {
+            restoreOperand(handler.currentInput, currentMantissa, currentScale, currentNegative, currentPoint);
+            restoreOperand(handler.firstOperand, firstMantissa, firstScale, firstNegative, firstPoint);
+            handler.currentValue = currentValue;
+            handler.firstValue = firstValue;
+            handler.currentOperator = currentOperator;
+            handler.startNewInput = startNewInput;
+            handler.hasResult = hasResult;
+            handler.errorState = errorState;
+        }
+
+        /**
+         * Set an operand including whether a point was typed
+         */
+        private static void restoreOperand(DecimalOperand operand, long mantissa, int scale, boolean negative, boolean point) {
+            operand.set(mantissa, scale, negative);
+            if (point) {
+                operand.appendPoint();
+            }
         }
     }
-}
 
+    /**
+     * An immutable list of states
+     */
+    private static final class StateList {
+        final State state;
+        final StateList next;
+
+        /**
+         * Constructor for a StateList
+         * @param state The first state
+         * @param next The rest of the list, null for none
+         */
+        StateList(State state, StateList next) {
+            this.state = state;
+            this.next = next;
+        }
+    }
+}
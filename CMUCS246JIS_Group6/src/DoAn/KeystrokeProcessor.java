@@ -0,0 +1,356 @@
+package DoAn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * KeystrokeProcessor class for the Calculator application
+ * A Flow.Processor that applies keystroke events to an InputHandler and publishes the
+ * resulting displays to one subscriber
+ *
+ * Keystrokes are applied as soon as they arrive, on the thread of the upstream
+ * publisher. Displays go downstream on an executor in batches: each DisplayBatch holds
+ * every display since the previous one, so a subscriber that falls behind, such as a
+ * history writer, catches up in a few large events rather than losing any. Upstream
+ * demand follows downstream demand: at most CAPACITY keystrokes are requested and not
+ * yet delivered, so a subscriber that stops requesting makes the publisher wait, and
+ * memory does not grow with the backlog
+ *
+ * A subscriber that only needs the latest display, such as a UI, can use the
+ * CONFLATED mode instead: an undelivered display is replaced by the next one, the same
+ * way CalculatorUI coalesces display updates, and the publisher is never held up
+ */
+public class KeystrokeProcessor implements Flow.Processor<Character, KeystrokeProcessor.DisplayBatch> {
+    /** Keystrokes requested from upstream and not yet delivered downstream, at most */
+    static final int CAPACITY = 256;
+
+    /**
+     * How displays are delivered to the subscriber
+     */
+    public enum Mode {
+        /**
+         * Every display, in batches; a subscriber that does not request holds up the publisher
+         */
+        BATCHED,
+        /**
+         * Only the latest display; the publisher is never held up
+         */
+        CONFLATED
+    }
+
+    private final InputHandler inputHandler;
+    private final Executor executor;
+    private final Mode mode;
+
+    // Upstream; the counters are only used by the thread delivering keystrokes
+    private volatile Flow.Subscription upstream;
+    private long keystrokes;
+    private int untilDrain;
+    // Keystrokes applied, which is what CONFLATED mode requests more against
+    private volatile long applied;
+
+    // Displays not yet delivered, guarded by the lock
+    private final Object lock = new Object();
+    private ArrayList<String> displays = new ArrayList<>();
+    private long lastKeystroke;
+
+    // Downstream
+    private final AtomicReference<Flow.Subscriber<? super DisplayBatch>> subscriber = new AtomicReference<>();
+    private volatile boolean subscribed;
+    private final AtomicLong demand = new AtomicLong();
+    // Number of times the drain was requested, the drain runs while it is not 0
+    private final AtomicInteger drainRequests = new AtomicInteger();
+    private volatile boolean done;
+    private volatile Throwable error;
+    private volatile boolean cancelled;
+
+    // Only used by the drain loop, which also makes every call on the upstream subscription
+    private boolean terminated;
+    private boolean upstreamCancelled;
+    private long requested;
+    private long delivered;
+
+    /**
+     * Constructor for a KeystrokeProcessor delivering every display on the common
+     * fork-join pool
+     * @param inputHandler The input handler to drive, not to be used elsewhere while
+     *        keystrokes arrive
+     */
+    public KeystrokeProcessor(InputHandler inputHandler) {
+        this(inputHandler, ForkJoinPool.commonPool(), Mode.BATCHED);
+    }
+
+    /**
+     * Constructor for a KeystrokeProcessor
+     * @param inputHandler The input handler to drive, not to be used elsewhere while
+     *        keystrokes arrive
+     * @param executor The executor that delivers events to the subscriber
+     * @param mode Whether every display or only the latest is delivered
+     */
+    public KeystrokeProcessor(InputHandler inputHandler, Executor executor, Mode mode) {
+        this.inputHandler = Objects.requireNonNull(inputHandler);
+        this.executor = Objects.requireNonNull(executor);
+        this.mode = Objects.requireNonNull(mode);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        // Only one upstream publisher
+        if (upstream != null || done) {
+            subscription.cancel();
+            return;
+        }
+        untilDrain = CAPACITY / 2;
+        upstream = subscription;
+        // The drain loop makes the first request
+        drain();
+    }
+
+    /**
+     * Apply a keystroke
+     * @param key A keystroke as for InputHandler.processInput(char)
+     */
+    @Override
+    public void onNext(Character key) {
+        Objects.requireNonNull(key);
+        if (done || cancelled) {
+            return;
+        }
+        String display = inputHandler.processInput(key.charValue());
+        keystrokes++;
+        boolean wasEmpty;
+        synchronized (lock) {
+            wasEmpty = displays.isEmpty();
+            if (mode == Mode.CONFLATED) {
+                displays.clear();
+            }
+            displays.add(display);
+            lastKeystroke = keystrokes;
+        }
+        applied = keystrokes;
+
+        // Drain when there is something new to deliver, and every half batch so the
+        // drain loop can request more in CONFLATED mode
+        if (--untilDrain == 0) {
+            untilDrain = CAPACITY / 2;
+            drain();
+        } else if (wasEmpty) {
+            drain();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = Objects.requireNonNull(throwable);
+        done = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        done = true;
+        drain();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super DisplayBatch> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (!this.subscriber.compareAndSet(null, subscriber)) {
+            // Only one subscriber, the displays are not shared
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("KeystrokeProcessor already has a subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new DisplaySubscription());
+        subscribed = true;
+        drain();
+    }
+
+    /**
+     * Request a run of the drain loop on the executor
+     * If it is already running it loops once more instead
+     */
+    private void drain() {
+        if (drainRequests.getAndIncrement() == 0) {
+            executor.execute(this::drainLoop);
+        }
+    }
+
+    /**
+     * Deliver the pending displays and terminal signals the subscriber is ready for,
+     * and request as many keystrokes from upstream as there is room for
+     * Runs on one thread at a time, so signals to the subscriber and calls on the
+     * upstream subscription are serial
+     */
+    private void drainLoop() {
+        int requests = 1;
+        do {
+            if (subscribed && !terminated) {
+                Flow.Subscriber<? super DisplayBatch> target = subscriber.get();
+                if (cancelled) {
+                    take();
+                } else if (error != null) {
+                    terminated = true;
+                    take();
+                    target.onError(error);
+                } else {
+                    if (demand.get() > 0) {
+                        DisplayBatch batch = take();
+                        if (batch != null) {
+                            if (demand.get() != Long.MAX_VALUE) {
+                                demand.decrementAndGet();
+                            }
+                            delivered = batch.keystrokes();
+                            target.onNext(batch);
+                        }
+                    }
+                    if (done && isEmpty()) {
+                        terminated = true;
+                        target.onComplete();
+                    }
+                }
+            }
+            requestUpstream();
+            requests = drainRequests.addAndGet(-requests);
+        } while (requests != 0);
+    }
+
+    /**
+     * Top up or cancel the upstream subscription
+     * Only called by the drain loop
+     */
+    private void requestUpstream() {
+        Flow.Subscription subscription = upstream;
+        if (subscription == null || upstreamCancelled) {
+            return;
+        }
+        if (cancelled || error != null) {
+            upstreamCancelled = true;
+            subscription.cancel();
+            return;
+        }
+        if (done) {
+            return;
+        }
+        // Keystrokes requested and not yet delivered, or in CONFLATED mode not yet applied
+        long consumed = mode == Mode.BATCHED ? delivered : applied;
+        long room = CAPACITY - (requested - consumed);
+        if (room >= CAPACITY / 2) {
+            requested += room;
+            subscription.request(room);
+        }
+    }
+
+    /**
+     * Take the displays not yet delivered
+     * @return The displays, or null if there are none
+     */
+    private DisplayBatch take() {
+        synchronized (lock) {
+            if (displays.isEmpty()) {
+                return null;
+            }
+            DisplayBatch batch = new DisplayBatch(Collections.unmodifiableList(displays), lastKeystroke);
+            displays = new ArrayList<>();
+            return batch;
+        }
+    }
+
+    /**
+     * Check if every display was delivered
+     * @return True if none is waiting
+     */
+    private boolean isEmpty() {
+        synchronized (lock) {
+            return displays.isEmpty();
+        }
+    }
+
+    /**
+     * The subscription of the downstream subscriber
+     */
+    private final class DisplaySubscription implements Flow.Subscription {
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Request must be positive: " + n);
+                done = true;
+            } else {
+                demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            done = true;
+            drain();
+        }
+    }
+
+    /**
+     * The displays after one or more keystrokes
+     */
+    public static final class DisplayBatch {
+        private final List<String> displays;
+        private final long keystrokes;
+
+        /**
+         * Constructor for a DisplayBatch
+         * @param displays The displays, oldest first
+         * @param keystrokes The number of keystrokes applied up to the last display
+         */
+        DisplayBatch(List<String> displays, long keystrokes) {
+            this.displays = displays;
+            this.keystrokes = keystrokes;
+        }
+
+        /**
+         * Get the displays, one per keystroke since the previous batch, or in
+         * CONFLATED mode only the latest
+         * @return The displays, oldest first
+         */
+        public List<String> displays() {
+            return displays;
+        }
+
+        /**
+         * Get the latest display
+         * @return The string to display
+         */
+        public String lastDisplay() {
+            return displays.get(displays.size() - 1);
+        }
+
+        /**
+         * Get the number of keystrokes applied up to the latest display, counting from
+         * the first keystroke the processor received
+         * @return The keystroke count
+         */
+        public long keystrokes() {
+            return keystrokes;
+        }
+
+        @Override
+        public String toString() {
+            return keystrokes + ": " + displays;
+        }
+    }
+}
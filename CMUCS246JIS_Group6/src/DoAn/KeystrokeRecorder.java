@@ -0,0 +1,348 @@
+package DoAn;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * KeystrokeRecorder class for the Calculator application
+ * Records the keystrokes of a session in a compact binary form, for KeystrokeReplayer
+ *
+ * A recording is a header, a stream of 4-bit tokens and a trailer. Each keystroke is
+ * a token for the key followed by the milliseconds since the previous keystroke,
+ * written 3 bits to a token with the high bit set on all but the last. The 15 most
+ * common keys have a token of their own, the others an escape token and a second
+ * token. A quick keystroke therefore takes one or two bytes where a line of text
+ * takes ten or more. Pastes are recorded between two burst tokens, as they are
+ * processed in one pass. The trailer holds the keystroke count, a checksum of the
+ * displays shown and the last display, so a replay can be checked against the
+ * session; a recording cut short without its trailer can still be replayed
+ *
+ * Instances are thread-safe; output is buffered and written out by close()
+ */
+public class KeystrokeRecorder implements Closeable {
+    // File layout: a header, the tokens, an end token and the trailer
+    static final int MAGIC = 0x43414B52;
+    static final int VERSION = 1;
+
+    // Tokens for the common keys; 0 to 9 are the digits
+    static final int TOKEN_POINT = 10;
+    static final int TOKEN_ADD = 11;
+    static final int TOKEN_SUBTRACT = 12;
+    static final int TOKEN_MULTIPLY = 13;
+    static final int TOKEN_EQUALS = 14;
+    static final int TOKEN_ESCAPE = 15;
+
+    // Tokens that follow TOKEN_ESCAPE
+    static final int ESCAPED_DIVIDE = 0;
+    static final int ESCAPED_CLEAR = 1;
+    static final int ESCAPED_CLEAR_ENTRY = 2;
+    static final int ESCAPED_MEMORY_ADD = 3;
+    static final int ESCAPED_MEMORY_SUBTRACT = 4;
+    static final int ESCAPED_MEMORY_RECALL = 5;
+    static final int ESCAPED_MEMORY_CLEAR = 6;
+    static final int ESCAPED_BURST = 7;
+    static final int ESCAPED_END = 15;
+
+    // Delta timestamps, 3 bits to a token
+    static final int DELTA_BITS = 3;
+    static final int DELTA_MORE = 8;
+
+    /** System property naming the recording file of the calculator UI */
+    public static final String RECORD_PROPERTY = "calculator.record";
+
+    private final DataOutputStream output;
+    private final long startNanos;
+    // Token waiting for a second one to fill a byte, or -1
+    private int pendingToken = -1;
+    private long lastMillis;
+    private long keystrokes;
+    private long checksum = DisplayChecksum.INITIAL;
+    private String lastDisplay = "";
+    private boolean closed;
+
+    /**
+     * Constructor for a KeystrokeRecorder starting now
+     * @param output The stream to write to, closed with the recorder
+     * @throws IOException If the header cannot be written
+     */
+    public KeystrokeRecorder(OutputStream output) throws IOException {
+        this.output = new DataOutputStream(new BufferedOutputStream(output));
+        startNanos = System.nanoTime();
+        this.output.writeInt(MAGIC);
+        this.output.writeInt(VERSION);
+        this.output.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Open the recording file named by the calculator.record system property
+     * The recording is completed and closed when the JVM exits
+     * @return The recorder, or null if no recording file is configured
+     * @throws IOException If the file cannot be created
+     */
+    public static KeystrokeRecorder openConfigured() throws IOException {
+        String file = System.getProperty(RECORD_PROPERTY);
+        if (file == null || file.isEmpty()) {
+            return null;
+        }
+        KeystrokeRecorder recorder = open(Paths.get(file));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                System.err.println("Could not close keystroke recording: " + e.getMessage());
+            }
+        }, "keystroke-recorder-close"));
+        return recorder;
+    }
+
+    /**
+     * Create a recording file, replacing any existing file
+     * @param file The recording file
+     * @return The recorder
+     * @throws IOException If the file cannot be created
+     */
+    public static KeystrokeRecorder open(Path file) throws IOException {
+        OutputStream stream = Files.newOutputStream(file);
+        try {
+            return new KeystrokeRecorder(stream);
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Record a keystroke
+     * Keystrokes recorded after close are dropped
+     * @param input The input, as for InputHandler.processInput(String)
+     * @param inputNanos System.nanoTime() when the key was entered
+     * @param display The display InputHandler returned for it
+     * @throws IOException If the recording cannot be written
+     * @throws IllegalArgumentException If the input is not a calculator key
+     */
+    public synchronized void record(String input, long inputNanos, String display) throws IOException {
+        if (closed) {
+            return;
+        }
+        char key = toKey(input);
+        checkKey(key);
+        writeKey(key, inputNanos);
+        event(display);
+    }
+
+    /**
+     * Record a burst of keystrokes processed in one pass, such as pasted text
+     * The keys are checked before any is written, so an invalid burst is not recorded
+     * Keystrokes recorded after close are dropped
+     * @param keys The keystrokes, as for InputHandler.processInputs
+     * @param inputNanos System.nanoTime() when the keys were entered
+     * @param display The display InputHandler returned for them
+     * @throws IOException If the recording cannot be written
+     * @throws IllegalArgumentException If a key is not a calculator key
+     */
+    public synchronized void recordBurst(CharSequence keys, long inputNanos, String display) throws IOException {
+        if (closed) {
+            return;
+        }
+        for (int i = 0; i < keys.length(); i++) {
+            char key = keys.charAt(i);
+            if (!Character.isWhitespace(key)) {
+                checkKey(key);
+            }
+        }
+        writeToken(TOKEN_ESCAPE);
+        writeToken(ESCAPED_BURST);
+        for (int i = 0; i < keys.length(); i++) {
+            char key = keys.charAt(i);
+            if (!Character.isWhitespace(key)) {
+                writeKey(key, inputNanos);
+            }
+        }
+        writeToken(TOKEN_ESCAPE);
+        writeToken(ESCAPED_BURST);
+        event(display);
+    }
+
+    /**
+     * Write the end token and the trailer and close the stream
+     * Calling close again has no effect
+     * @throws IOException If the recording cannot be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeToken(TOKEN_ESCAPE);
+            writeToken(ESCAPED_END);
+            if (pendingToken >= 0) {
+                writeToken(0);
+            }
+            output.writeLong(keystrokes);
+            output.writeLong(checksum);
+            output.writeUTF(lastDisplay);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Map an input to the key InputHandler.processInput(char) takes for it
+     * @param input The input, as for InputHandler.processInput(String)
+     * @return The key
+     * @throws IllegalArgumentException If the input is not a calculator key
+     */
+    private static char toKey(String input) {
+        if (input.length() == 1) {
+            return input.charAt(0);
+        }
+        switch (input) {
+            case "CE":
+                return InputHandler.KEY_CLEAR_ENTRY;
+            case "M+":
+                return InputHandler.KEY_MEMORY_ADD;
+            case "M-":
+                return InputHandler.KEY_MEMORY_SUBTRACT;
+            case "MR":
+                return InputHandler.KEY_MEMORY_RECALL;
+            case "MC":
+                return InputHandler.KEY_MEMORY_CLEAR;
+            default:
+                throw new IllegalArgumentException("Not a calculator key: " + input);
+        }
+    }
+
+    /**
+     * Check that a key can be recorded, before any of its tokens are written
+     * @param key The key
+     * @throws IllegalArgumentException If the key is not a calculator key
+     */
+    private static void checkKey(char key) {
+        if (key >= '0' && key <= '9') {
+            return;
+        }
+        switch (key) {
+            case '.':
+            case '+':
+            case '-':
+            case '*':
+            case '=':
+            case '/':
+            case InputHandler.KEY_CLEAR:
+            case InputHandler.KEY_CLEAR_ENTRY:
+            case InputHandler.KEY_MEMORY_ADD:
+            case InputHandler.KEY_MEMORY_SUBTRACT:
+            case InputHandler.KEY_MEMORY_RECALL:
+            case InputHandler.KEY_MEMORY_CLEAR:
+                return;
+            default:
+                throw new IllegalArgumentException("Not a calculator key: " + key);
+        }
+    }
+
+    /**
+     * Write a keystroke and the time since the previous one
+     * @param key The key
+     * @param inputNanos System.nanoTime() when the key was entered
+     */
+    private void writeKey(char key, long inputNanos) throws IOException {
+        if (key >= '0' && key <= '9') {
+            writeToken(key - '0');
+        } else {
+            switch (key) {
+                case '.': writeToken(TOKEN_POINT); break;
+                case '+': writeToken(TOKEN_ADD); break;
+                case '-': writeToken(TOKEN_SUBTRACT); break;
+                case '*': writeToken(TOKEN_MULTIPLY); break;
+                case '=': writeToken(TOKEN_EQUALS); break;
+                default: writeEscaped(key); break;
+            }
+        }
+
+        // Milliseconds since the start, so rounding does not add up over a session
+        long millis = Math.max(lastMillis, (inputNanos - startNanos) / 1_000_000);
+        long delta = millis - lastMillis;
+        lastMillis = millis;
+        while (delta >= DELTA_MORE) {
+            writeToken((int) (delta & (DELTA_MORE - 1)) | DELTA_MORE);
+            delta >>>= DELTA_BITS;
+        }
+        writeToken((int) delta);
+        keystrokes++;
+    }
+
+    /**
+     * Write a key that has no token of its own
+     * @param key The key
+     */
+    private void writeEscaped(char key) throws IOException {
+        int escaped;
+        switch (key) {
+            case '/': escaped = ESCAPED_DIVIDE; break;
+            case InputHandler.KEY_CLEAR: escaped = ESCAPED_CLEAR; break;
+            case InputHandler.KEY_CLEAR_ENTRY: escaped = ESCAPED_CLEAR_ENTRY; break;
+            case InputHandler.KEY_MEMORY_ADD: escaped = ESCAPED_MEMORY_ADD; break;
+            case InputHandler.KEY_MEMORY_SUBTRACT: escaped = ESCAPED_MEMORY_SUBTRACT; break;
+            case InputHandler.KEY_MEMORY_RECALL: escaped = ESCAPED_MEMORY_RECALL; break;
+            case InputHandler.KEY_MEMORY_CLEAR: escaped = ESCAPED_MEMORY_CLEAR; break;
+            default: throw new IllegalArgumentException("Not a calculator key: " + key);
+        }
+        writeToken(TOKEN_ESCAPE);
+        writeToken(escaped);
+    }
+
+    /**
+     * Write a token, two to a byte with the first in the high bits
+     * @param token The token, 0 to 15
+     */
+    private void writeToken(int token) throws IOException {
+        if (pendingToken < 0) {
+            pendingToken = token;
+        } else {
+            output.write(pendingToken << 4 | token);
+            pendingToken = -1;
+        }
+    }
+
+    /**
+     * Account for a display shown to the user
+     * @param display The display
+     */
+    private void event(String display) {
+        checksum = DisplayChecksum.update(checksum, display);
+        lastDisplay = display;
+    }
+
+    /**
+     * Checksum of a sequence of displays, FNV-1a over their characters
+     */
+    static final class DisplayChecksum {
+        static final long INITIAL = 0xcbf29ce484222325L;
+        private static final long PRIME = 0x100000001b3L;
+
+        private DisplayChecksum() {
+        }
+
+        /**
+         * Add a display to a checksum
+         * @param checksum The checksum of the displays before it
+         * @param display The display
+         * @return The checksum including the display
+         */
+        static long update(long checksum, String display) {
+            for (int i = 0; i < display.length(); i++) {
+                checksum = (checksum ^ display.charAt(i)) * PRIME;
+            }
+            // Separator, so "1","2" and "12" differ
+            return (checksum ^ 0xFFFF) * PRIME;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package DoAn;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * KeystrokeReplayer class for the Calculator application
+ * Feeds a recording made by KeystrokeRecorder back into an InputHandler, either at
+ * the pace it was recorded at or as fast as possible, and checks that the displays
+ * match those of the recorded session
+ *
+ * The recording is decoded in full before the replay starts, so a flat-out replay
+ * measures InputHandler alone
+ *
+ * Usage: KeystrokeReplayer recording [paced]
+ * Exits with status 1 if the displays do not match
+ */
+public class KeystrokeReplayer {
+
+    /**
+     * Constructor for a KeystrokeReplayer, only the static methods are used
+     */
+    private KeystrokeReplayer() {
+    }
+
+    /**
+     * Main method to replay a recording
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: KeystrokeReplayer recording [paced]");
+            System.exit(2);
+        }
+        boolean paced = args.length > 1 && args[1].equals("paced");
+
+        Recording recording = read(Paths.get(args[0]));
+        System.out.println("Replaying " + recording + (paced ? " at the recorded pace..." : " flat-out..."));
+        Result result = replay(recording, new InputHandler(new CalculationLogic()), paced);
+        System.out.println(result);
+        if (result.matches() == Boolean.FALSE) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Read a recording file
+     * @param file The recording file
+     * @return The recording
+     * @throws IOException If the file cannot be read or is not a recording
+     */
+    public static Recording read(Path file) throws IOException {
+        try (InputStream input = Files.newInputStream(file)) {
+            return read(input);
+        }
+    }
+
+    /**
+     * Read a recording
+     * A recording cut short keeps the keystrokes up to the last complete one, and
+     * cannot be checked
+     * @param stream The stream to read, not closed
+     * @return The recording
+     * @throws IOException If the stream cannot be read or is not a recording
+     */
+    public static Recording read(InputStream stream) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(stream));
+        if (input.readInt() != KeystrokeRecorder.MAGIC || input.readInt() != KeystrokeRecorder.VERSION) {
+            throw new IOException("Not a keystroke recording");
+        }
+        long startMillis = input.readLong();
+
+        TokenReader tokens = new TokenReader(input);
+        char[] keys = new char[1024];
+        long[] millis = new long[keys.length];
+        int[] eventEnds = new int[keys.length];
+        int count = 0;
+        int events = 0;
+        int burstStart = -1;
+        long elapsed = 0;
+        boolean complete = false;
+        while (true) {
+            // Key
+            int token = tokens.next();
+            char key;
+            if (token < 0) {
+                break;
+            } else if (token == KeystrokeRecorder.TOKEN_ESCAPE) {
+                int escaped = tokens.next();
+                if (escaped < 0) {
+                    break;
+                } else if (escaped == KeystrokeRecorder.ESCAPED_END) {
+                    complete = burstStart < 0;
+                    break;
+                } else if (escaped == KeystrokeRecorder.ESCAPED_BURST) {
+                    if (burstStart < 0) {
+                        burstStart = count;
+                        continue;
+                    }
+                    // A burst is one event
+                    burstStart = -1;
+                    if (events == eventEnds.length) {
+                        eventEnds = Arrays.copyOf(eventEnds, events * 2);
+                    }
+                    eventEnds[events++] = count;
+                    continue;
+                }
+                key = escapedKey(escaped);
+            } else {
+                key = primaryKey(token);
+            }
+
+            // Milliseconds since the previous keystroke
+            long delta = 0;
+            int shift = 0;
+            do {
+                token = tokens.next();
+                if (token < 0) {
+                    break;
+                }
+                delta |= (long) (token & (KeystrokeRecorder.DELTA_MORE - 1)) << shift;
+                shift += KeystrokeRecorder.DELTA_BITS;
+            } while ((token & KeystrokeRecorder.DELTA_MORE) != 0 && shift < Long.SIZE);
+            if (token < 0) {
+                break;
+            }
+            elapsed += delta;
+
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                millis = Arrays.copyOf(millis, count * 2);
+            }
+            keys[count] = key;
+            millis[count++] = elapsed;
+            if (burstStart < 0) {
+                if (events == eventEnds.length) {
+                    eventEnds = Arrays.copyOf(eventEnds, events * 2);
+                }
+                eventEnds[events++] = count;
+            }
+        }
+
+        // Keep only complete events of a recording cut short
+        if (!complete) {
+            count = events == 0 ? 0 : eventEnds[events - 1];
+            return new Recording(startMillis, keys, millis, count, eventEnds, events, false, 0, 0, null);
+        }
+        try {
+            long keystrokes = input.readLong();
+            long checksum = input.readLong();
+            String lastDisplay = input.readUTF();
+            return new Recording(startMillis, keys, millis, count, eventEnds, events, true, keystrokes, checksum, lastDisplay);
+        } catch (EOFException e) {
+            return new Recording(startMillis, keys, millis, count, eventEnds, events, false, 0, 0, null);
+        }
+    }
+
+    /**
+     * Get the key of a token that has its own
+     * @param token The token, not TOKEN_ESCAPE
+     * @return The key
+     */
+    private static char primaryKey(int token) {
+        switch (token) {
+            case KeystrokeRecorder.TOKEN_POINT: return '.';
+            case KeystrokeRecorder.TOKEN_ADD: return '+';
+            case KeystrokeRecorder.TOKEN_SUBTRACT: return '-';
+            case KeystrokeRecorder.TOKEN_MULTIPLY: return '*';
+            case KeystrokeRecorder.TOKEN_EQUALS: return '=';
+            default: return (char) ('0' + token);
+        }
+    }
+
+    /**
+     * Get the key of a token that follows TOKEN_ESCAPE
+     * @param escaped The token
+     * @return The key
+     * @throws IOException If the token is not a key
+     */
+    private static char escapedKey(int escaped) throws IOException {
+        switch (escaped) {
+            case KeystrokeRecorder.ESCAPED_DIVIDE: return '/';
+            case KeystrokeRecorder.ESCAPED_CLEAR: return InputHandler.KEY_CLEAR;
+            case KeystrokeRecorder.ESCAPED_CLEAR_ENTRY: return InputHandler.KEY_CLEAR_ENTRY;
+            case KeystrokeRecorder.ESCAPED_MEMORY_ADD: return InputHandler.KEY_MEMORY_ADD;
+            case KeystrokeRecorder.ESCAPED_MEMORY_SUBTRACT: return InputHandler.KEY_MEMORY_SUBTRACT;
+            case KeystrokeRecorder.ESCAPED_MEMORY_RECALL: return InputHandler.KEY_MEMORY_RECALL;
+            case KeystrokeRecorder.ESCAPED_MEMORY_CLEAR: return InputHandler.KEY_MEMORY_CLEAR;
+            default: throw new IOException("Corrupt keystroke recording: unknown token " + escaped);
+        }
+    }
+
+    /**
+     * Replay a recording
+     * @param recording The recording
+     * @param inputHandler The input handler, in the state the recorded session started in
+     * @param paced True to enter each keystroke at its recorded time, false to enter
+     *        them as fast as possible
+     * @return The result
+     */
+    public static Result replay(Recording recording, InputHandler inputHandler, boolean paced) {
+        long checksum = KeystrokeRecorder.DisplayChecksum.INITIAL;
+        String display = null;
+        long start = System.nanoTime();
+        int from = 0;
+        for (int event = 0; event < recording.events; event++) {
+            int to = recording.eventEnds[event];
+            if (paced && to > from) {
+                // Wait for the recorded time of the event
+                long due = start + recording.millis[to - 1] * 1_000_000;
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            display = to - from == 1
+                ? inputHandler.processInput(recording.keys[from])
+                : inputHandler.processInputs(CharBuffer.wrap(recording.keys, from, to - from));
+            checksum = KeystrokeRecorder.DisplayChecksum.update(checksum, display);
+            from = to;
+        }
+        long nanos = System.nanoTime() - start;
+
+        Boolean matches = null;
+        if (recording.complete) {
+            matches = recording.expectedKeystrokes == recording.count && recording.expectedChecksum == checksum;
+        }
+        return new Result(recording.count, nanos, display, matches);
+    }
+
+    /**
+     * Reads 4-bit tokens, two to a byte with the first in the high bits
+     */
+    private static final class TokenReader {
+        private final DataInputStream input;
+        // Second token of the last byte read, or -1
+        private int pending = -1;
+
+        TokenReader(DataInputStream input) {
+            this.input = input;
+        }
+
+        /**
+         * Read the next token
+         * @return The token, or -1 at the end of the stream
+         */
+        int next() throws IOException {
+            if (pending >= 0) {
+                int token = pending;
+                pending = -1;
+                return token;
+            }
+            int read = input.read();
+            if (read < 0) {
+                return -1;
+            }
+            pending = read & 0xF;
+            return read >>> 4;
+        }
+    }
+
+    /**
+     * A decoded recording
+     */
+    public static final class Recording {
+        private final long startMillis;
+        private final char[] keys;
+        // Milliseconds from the start of the recording to each keystroke
+        private final long[] millis;
+        private final int count;
+        // Index after the last keystroke of each event that showed a display
+        private final int[] eventEnds;
+        private final int events;
+        private final boolean complete;
+        private final long expectedKeystrokes;
+        private final long expectedChecksum;
+        private final String expectedDisplay;
+
+        Recording(long startMillis, char[] keys, long[] millis, int count, int[] eventEnds, int events,
+                  boolean complete, long expectedKeystrokes, long expectedChecksum, String expectedDisplay) {
+            this.startMillis = startMillis;
+            this.keys = keys;
+            this.millis = millis;
+            this.count = count;
+            this.eventEnds = eventEnds;
+            this.events = events;
+            this.complete = complete;
+            this.expectedKeystrokes = expectedKeystrokes;
+            this.expectedChecksum = expectedChecksum;
+            this.expectedDisplay = expectedDisplay;
+        }
+
+        /**
+         * Get the number of keystrokes
+         * @return The number of keystrokes
+         */
+        public int keystrokes() {
+            return count;
+        }
+
+        /**
+         * Get the keystrokes
+         * @return The keys, as for InputHandler.processInput(char)
+         */
+        public String keys() {
+            return new String(keys, 0, count);
+        }
+
+        /**
+         * Get the recorded time of a keystroke
+         * @param index The keystroke index
+         * @return Milliseconds from the start of the recording
+         * @throws IndexOutOfBoundsException If there is no such keystroke
+         */
+        public long millis(int index) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("No keystroke " + index);
+            }
+            return millis[index];
+        }
+
+        /**
+         * Get the time the recording started
+         * @return The start time in milliseconds since the epoch
+         */
+        public long startMillis() {
+            return startMillis;
+        }
+
+        /**
+         * Check if the recording has its trailer, so a replay can be checked
+         * @return false if the recording was cut short
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Get the last display of the recorded session
+         * @return The display, or null if the recording was cut short
+         */
+        public String lastDisplay() {
+            return expectedDisplay;
+        }
+
+        @Override
+        public String toString() {
+            long duration = count == 0 ? 0 : millis[count - 1];
+            return count + " keystrokes over " + duration + " ms" + (complete ? "" : " (cut short)");
+        }
+    }
+
+    /**
+     * The outcome of a replay
+     */
+    public static final class Result {
+        private final long keystrokes;
+        private final long nanos;
+        private final String lastDisplay;
+        private final Boolean matches;
+
+        Result(long keystrokes, long nanos, String lastDisplay, Boolean matches) {
+            this.keystrokes = keystrokes;
+            this.nanos = nanos;
+            this.lastDisplay = lastDisplay;
+            this.matches = matches;
+        }
+
+        /**
+         * Check if the displays matched the recorded session
+         * @return True or false, or null if the recording was cut short
+         */
+        public Boolean matches() {
+            return matches;
+        }
+
+        /**
+         * Get the last display of the replay
+         * @return The display, or null if there were no keystrokes
+         */
+        public String lastDisplay() {
+            return lastDisplay;
+        }
+
+        /**
+         * Get the replay rate
+         * @return Keystrokes per second
+         */
+        public double keystrokesPerSecond() {
+            return nanos == 0 ? 0 : keystrokes * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            String check = matches == null ? "not checked, the recording was cut short"
+                : matches ? "displays match" : "DISPLAYS DIFFER";
+            return String.format("%d keystrokes in %.1f ms, %.0f keystrokes/s, %s",
+                keystrokes, nanos / 1e6, keystrokesPerSecond(), check);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package DoAn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import DoAn.metrics.LatencyHistogramMXBean;
+
+/**
+ * LatencyHistogram class for the Calculator application
+ * A lock-free histogram of nanosecond latencies with log-linear buckets, in the
+ * style of HDR histograms: values below 32 are exact and larger values fall in one
+ * of 16 buckets per power of two, so percentiles are within 6.25% of the true value
+ * Recording never allocates or blocks and can be done from any number of threads
+ */
+public final class LatencyHistogram implements LatencyHistogramMXBean {
+    // Values below this are counted exactly
+    private static final int EXACT_LIMIT = 32;
+    // Buckets per power of two above the exact range
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int BUCKET_COUNT = bucketIndex(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency
+     * @param nanos The latency in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketIndex(value));
+        total.add(value);
+        // Only contend on the maximum when it actually grows
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Reset the histogram
+     * Values recorded concurrently with a reset may be partly kept
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        max.set(0);
+    }
+
+    /**
+     * Take a copy of the current distribution
+     * @return The snapshot
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, total.sum(), max.get());
+    }
+
+    @Override
+    public long getCount() {
+        return snapshot().count();
+    }
+
+    @Override
+    public double getMeanNanos() {
+        return snapshot().mean();
+    }
+
+    @Override
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    @Override
+    public long getP50Nanos() {
+        return snapshot().percentile(50);
+    }
+
+    @Override
+    public long getP90Nanos() {
+        return snapshot().percentile(90);
+    }
+
+    @Override
+    public long getP99Nanos() {
+        return snapshot().percentile(99);
+    }
+
+    @Override
+    public long getP999Nanos() {
+        return snapshot().percentile(99.9);
+    }
+
+    /**
+     * Get the bucket a value is counted in
+     * @param value A non-negative value
+     * @return The bucket index
+     */
+    static int bucketIndex(long value) {
+        if (value < EXACT_LIMIT) {
+            return (int) value;
+        }
+        // Keep the top 5 bits; the shift selects the power of two
+        int shift = 63 - SUB_BUCKET_BITS - Long.numberOfLeadingZeros(value);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * Get the largest value counted in a bucket
+     * @param index The bucket index
+     * @return The upper bound of the bucket
+     */
+    static long bucketUpperBound(int index) {
+        if (index < EXACT_LIMIT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long subBucket = (index & ((1 << SUB_BUCKET_BITS) - 1)) + (1 << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * An immutable copy of a histogram
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        /**
+         * Constructor for a Snapshot
+         * @param counts Counts by bucket
+         * @param total Sum of the recorded values
+         * @param max Largest recorded value
+         */
+        private Snapshot(long[] counts, long total, long max) {
+            long count = 0;
+            for (long bucket : counts) {
+                count += bucket;
+            }
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        /**
+         * Get the number of recorded values
+         * @return The count
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * Get the mean of the recorded values
+         * @return The mean in nanoseconds, 0 if nothing was recorded
+         */
+        public double mean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * Get the largest recorded value
+         * @return The maximum in nanoseconds
+         */
+        public long max() {
+            return max;
+        }
+
+        /**
+         * Get a percentile of the recorded values
+         * @param percentile The percentile, between 0 and 100
+         * @return The upper bound of the bucket holding the percentile, at most the
+         *         maximum; 0 if nothing was recorded
+         */
+        public long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
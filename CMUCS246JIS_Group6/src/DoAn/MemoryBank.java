@@ -0,0 +1,269 @@
+package DoAn;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * MemoryBank class for the Calculator application
+ * Numbered memory registers for the M+, M-, MR and MC keys, holding exact decimals
+ *
+ * A Session bank belongs to one InputHandler and is plain fields. A Shared bank is
+ * safe for any number of sessions at once and lock-free: each register is striped
+ * over cells like LongAdder, so concurrent additions rarely touch the same cell, and
+ * recall reads a consistent snapshot of the cells rather than a sum that may mix
+ * half-applied updates. Decimal addition is exact, so the value does not depend on
+ * the order additions were made in
+ */
+public abstract class MemoryBank {
+
+    /**
+     * Constructor for a MemoryBank, only the banks here extend it
+     */
+    MemoryBank() {
+    }
+
+    /**
+     * Get the number of registers
+     * @return The number of registers
+     */
+    public abstract int size();
+
+    /**
+     * Add to a register
+     * @param register The register number, from 0
+     * @param value The value to add, negative to subtract
+     * @throws IndexOutOfBoundsException If there is no such register
+     */
+    public abstract void add(int register, BigDecimal value);
+
+    /**
+     * Get the value of a register
+     * @param register The register number, from 0
+     * @return The value, zero if nothing was added since it was cleared
+     * @throws IndexOutOfBoundsException If there is no such register
+     */
+    public abstract BigDecimal recall(int register);
+
+    /**
+     * Set a register to zero
+     * @param register The register number, from 0
+     * @throws IndexOutOfBoundsException If there is no such register
+     */
+    public abstract void clear(int register);
+
+    /**
+     * Get the bank for a session forked from a session using this bank
+     * @return A copy of a session bank, or this bank if it is shared
+     */
+    public abstract MemoryBank fork();
+
+    /**
+     * Registers of a single session, not safe for use by several threads
+     */
+    public static final class Session extends MemoryBank {
+        private final BigDecimal[] values;
+
+        /**
+         * Constructor for a Session bank with all registers zero
+         * @param size The number of registers
+         */
+        public Session(int size) {
+            values = new BigDecimal[size];
+            Arrays.fill(values, BigDecimal.ZERO);
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        @Override
+        public void add(int register, BigDecimal value) {
+            values[register] = values[register].add(value);
+        }
+
+        @Override
+        public BigDecimal recall(int register) {
+            return values[register];
+        }
+
+        @Override
+        public void clear(int register) {
+            values[register] = BigDecimal.ZERO;
+        }
+
+        @Override
+        public MemoryBank fork() {
+            Session fork = new Session(values.length);
+            System.arraycopy(values, 0, fork.values, 0, values.length);
+            return fork;
+        }
+    }
+
+    /**
+     * Registers shared by sessions on any number of threads
+     *
+     * Each register is a generation of cells, and each thread adds to the cell its
+     * thread hashes to, moving on to another cell when a compare-and-set fails.
+     * Cells are immutable and replaced on every update, so a recall that reads the
+     * same cell objects twice in a row has seen all of them at one instant in between.
+     * Clear seals every cell of the generation, after which additions go to a new,
+     * zero generation; threads that find a sealed cell help to finish the clear, so
+     * no thread ever waits for another
+     */
+    public static final class Shared extends MemoryBank {
+        // References per cell, so that cells of different threads are on different
+        // cache lines
+        private static final int PADDING = 16;
+        // Marks a cell of a cleared generation
+        private static final Cell SEALED = new Cell(null);
+
+        private final AtomicReferenceArray<Generation> registers;
+        private final int stripes;
+
+        /**
+         * Constructor for a Shared bank with all registers zero and a cell per
+         * processor, rounded up to a power of two
+         * @param size The number of registers
+         */
+        public Shared(int size) {
+            this(size, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)));
+        }
+
+        /**
+         * Constructor for a Shared bank with a given number of cells per register
+         * @param size The number of registers
+         * @param stripes The number of cells per register, a power of two
+         */
+        Shared(int size, int stripes) {
+            if (Integer.bitCount(stripes) != 1) {
+                throw new IllegalArgumentException("Stripes must be a power of two: " + stripes);
+            }
+            this.stripes = stripes;
+            registers = new AtomicReferenceArray<>(size);
+            for (int i = 0; i < size; i++) {
+                registers.set(i, new Generation(stripes));
+            }
+        }
+
+        @Override
+        public int size() {
+            return registers.length();
+        }
+
+        @Override
+        public void add(int register, BigDecimal value) {
+            int stripe = System.identityHashCode(Thread.currentThread()) & (stripes - 1);
+            while (true) {
+                Generation generation = registers.get(register);
+                int index = stripe * PADDING;
+                Cell cell = generation.cells.get(index);
+                if (cell == SEALED) {
+                    finishClear(register, generation);
+                    continue;
+                }
+                Cell updated = new Cell(cell == null ? value : cell.value.add(value));
+                if (generation.cells.compareAndSet(index, cell, updated)) {
+                    return;
+                }
+                // Another thread updated the cell, try the next one
+                stripe = (stripe + 1) & (stripes - 1);
+            }
+        }
+
+        @Override
+        public BigDecimal recall(int register) {
+            Cell[] first = new Cell[stripes];
+            while (true) {
+                Generation generation = registers.get(register);
+                if (!collect(register, generation, first)) {
+                    continue;
+                }
+
+                // Read the cells again, the snapshot holds if none of them changed
+                BigDecimal sum = BigDecimal.ZERO;
+                boolean unchanged = true;
+                for (int i = 0; i < stripes && unchanged; i++) {
+                    Cell cell = generation.cells.get(i * PADDING);
+                    unchanged = cell == first[i];
+                    if (cell != null && unchanged) {
+                        sum = sum.add(cell.value);
+                    }
+                }
+                if (unchanged) {
+                    return sum;
+                }
+            }
+        }
+
+        /**
+         * Read every cell of a generation
+         * @param register The register number
+         * @param generation The generation
+         * @param cells Array to read the cells into
+         * @return False if the generation is being cleared, after helping to clear it
+         */
+        private boolean collect(int register, Generation generation, Cell[] cells) {
+            for (int i = 0; i < stripes; i++) {
+                Cell cell = generation.cells.get(i * PADDING);
+                if (cell == SEALED) {
+                    finishClear(register, generation);
+                    return false;
+                }
+                cells[i] = cell;
+            }
+            return true;
+        }
+
+        @Override
+        public void clear(int register) {
+            finishClear(register, registers.get(register));
+        }
+
+        /**
+         * Seal every cell of a generation, then replace it with a zero generation
+         * Called by the thread clearing the register and by any thread that finds a
+         * sealed cell; additions that landed before a cell was sealed are cleared
+         * @param register The register number
+         * @param generation The generation to clear
+         */
+        private void finishClear(int register, Generation generation) {
+            for (int i = 0; i < stripes; i++) {
+                int index = i * PADDING;
+                Cell cell;
+                do {
+                    cell = generation.cells.get(index);
+                } while (cell != SEALED && !generation.cells.compareAndSet(index, cell, SEALED));
+            }
+            registers.compareAndSet(register, generation, new Generation(stripes));
+        }
+
+        @Override
+        public MemoryBank fork() {
+            return this;
+        }
+
+        /**
+         * The cells of a register between two clears, null cells are zero
+         */
+        private static final class Generation {
+            final AtomicReferenceArray<Cell> cells;
+
+            Generation(int stripes) {
+                cells = new AtomicReferenceArray<>(stripes * PADDING);
+            }
+        }
+
+        /**
+         * The value of a cell, a new object for every update
+         */
+        private static final class Cell {
+            final BigDecimal value;
+
+            Cell(BigDecimal value) {
+                this.value = value;
+            }
+        }
+    }
+}
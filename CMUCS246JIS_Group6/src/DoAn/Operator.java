@@ -0,0 +1,48 @@
+package DoAn;
+
+/**
+ * Operator enum for the Calculator application
+ * The binary operators CalculationLogic can perform
+ */
+public enum Operator {
+    ADD('+', 1),
+    SUBTRACT('-', 1),
+    MULTIPLY('*', 2),
+    DIVIDE('/', 2);
+
+    private final char symbol;
+    private final String symbolString;
+    private final int precedence;
+
+    /**
+     * Constructor for an Operator
+     * @param symbol The key that enters the operator
+     * @param precedence Binding strength in expressions, higher binds tighter
+     */
+    Operator(char symbol, int precedence) {
+        this.symbol = symbol;
+        this.symbolString = String.valueOf(symbol);
+        this.precedence = precedence;
+    }
+
+    /**
+     * Get the key that enters the operator
+     * @return The operator symbol
+     */
+    public char symbol() {
+        return symbol;
+    }
+
+    /**
+     * Get the binding strength of the operator in expressions
+     * @return The precedence, higher binds tighter
+     */
+    public int precedence() {
+        return precedence;
+    }
+
+    @Override
+    public String toString() {
+        return symbolString;
+    }
+}
@@ -0,0 +1,53 @@
+package DoAn;
+
+/**
+ * OperatorRegistry class for the Calculator application
+ * Maps input symbols to operators with a table lookup, so callers that receive text
+ * can resolve an Operator once and dispatch on it from then on
+ */
+public class OperatorRegistry {
+    // Symbols are limited to Latin-1 so the table stays small
+    private static final int TABLE_SIZE = 256;
+
+    private final Operator[] operators = new Operator[TABLE_SIZE];
+
+    /**
+     * Constructor for a registry with each operator under its own symbol
+     */
+    public OperatorRegistry() {
+        for (Operator operator : Operator.values()) {
+            register(operator.symbol(), operator);
+        }
+    }
+
+    /**
+     * Register an additional symbol for an operator, e.g. 'x' for MULTIPLY
+     * @param symbol The symbol, a Latin-1 character
+     * @param operator The operator it enters
+     * @throws IllegalArgumentException If the symbol is outside Latin-1
+     */
+    public void register(char symbol, Operator operator) {
+        if (symbol >= TABLE_SIZE) {
+            throw new IllegalArgumentException("Operator symbol must be a Latin-1 character: " + symbol);
+        }
+        operators[symbol] = operator;
+    }
+
+    /**
+     * Look up the operator for a symbol
+     * @param symbol The symbol
+     * @return The operator, or null if the symbol is not an operator
+     */
+    public Operator lookup(char symbol) {
+        return symbol < TABLE_SIZE ? operators[symbol] : null;
+    }
+
+    /**
+     * Look up the operator for a symbol given as a string
+     * @param symbol The symbol
+     * @return The operator, or null if the symbol is not an operator
+     */
+    public Operator lookup(String symbol) {
+        return symbol.length() == 1 ? lookup(symbol.charAt(0)) : null;
+    }
+}
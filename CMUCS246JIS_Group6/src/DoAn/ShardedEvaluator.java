@@ -0,0 +1,585 @@
+package DoAn;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sharded evaluator for recorded calculator sessions
+ * Evaluates the same files as BatchEvaluator, but in worker JVMs rather than threads,
+ * so the heap and garbage collection of one process do not limit a large batch
+ *
+ * The input is cut into shards at session boundaries, as BatchEvaluator cuts chunks.
+ * Each worker is a JVM started from the same classes, connected over a Unix-domain
+ * socket, and evaluates one shard at a time. A shard is framed as its length and its
+ * bytes, the answer as its line count, its length and its bytes. Answers are written
+ * in input order, and only a bounded window of shards is outstanding. A worker that
+ * crashes, or does not answer a shard within the shard timeout, is stopped and
+ * restarted and its shard is given to the next free worker; a shard that fails on
+ * MAX_ATTEMPTS workers fails the batch, as does a worker that cannot be started
+ * MAX_ATTEMPTS times in a row once no other worker is left
+ *
+ * Usage: ShardedEvaluator input output [workers]
+ */
+public class ShardedEvaluator {
+    // Attempts at a shard before the batch fails
+    static final int MAX_ATTEMPTS = 3;
+    // Time a new worker has to connect
+    private static final long CONNECT_TIMEOUT_MILLIS = 30_000;
+    // Time a worker has to take a shard and answer it
+    private static final long DEFAULT_SHARD_TIMEOUT_MILLIS = 300_000;
+    // Argument that starts a worker rather than a coordinator
+    private static final String WORKER_ARGUMENT = "--worker";
+    // Size of a frame header
+    private static final int REQUEST_HEADER_SIZE = 4;
+    private static final int RESPONSE_HEADER_SIZE = 8;
+
+    /** System property making a worker exit when given its nth shard, for testing */
+    static final String EXIT_AFTER_PROPERTY = "calculator.worker.exitAfter";
+    /** System property making a worker hang when given its nth shard, for testing */
+    static final String HANG_AFTER_PROPERTY = "calculator.worker.hangAfter";
+
+    /**
+     * A piece of the input and the answers for it
+     */
+    private static final class Shard {
+        final long start;
+        final long end;
+        final CompletableFuture<BatchEvaluator.Output> result = new CompletableFuture<>();
+        int attempts;
+
+        Shard(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // Tells a worker thread to stop
+    private static final Shard STOP = new Shard(0, 0);
+
+    private final int workers;
+    private final List<String> workerOptions;
+    private final long shardSize;
+    private final long shardTimeoutMillis;
+
+    // State of the batch being evaluated
+    private final LinkedBlockingDeque<Shard> queue = new LinkedBlockingDeque<>();
+    private final AtomicInteger liveWorkers = new AtomicInteger();
+    private final AtomicInteger redispatched = new AtomicInteger();
+    private final AtomicReference<IOException> workerFailure = new AtomicReference<>();
+
+    /**
+     * Constructor for a ShardedEvaluator
+     * @param workers The number of worker JVMs
+     * @param workerOptions JVM options for the workers, such as a heap size
+     */
+    public ShardedEvaluator(int workers, List<String> workerOptions) {
+        this(workers, workerOptions, 0);
+    }
+
+    /**
+     * Constructor for a ShardedEvaluator with a fixed shard size
+     * @param workers The number of worker JVMs
+     * @param workerOptions JVM options for the workers, such as a heap size
+     * @param shardSize Target shard size in bytes, 0 to derive it from the file size
+     */
+    ShardedEvaluator(int workers, List<String> workerOptions, long shardSize) {
+        this(workers, workerOptions, shardSize, DEFAULT_SHARD_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Constructor for a ShardedEvaluator with a fixed shard size and shard timeout
+     * @param workers The number of worker JVMs
+     * @param workerOptions JVM options for the workers, such as a heap size
+     * @param shardSize Target shard size in bytes, 0 to derive it from the file size
+     * @param shardTimeoutMillis Time a worker has to answer a shard before it is stopped
+     */
+    ShardedEvaluator(int workers, List<String> workerOptions, long shardSize, long shardTimeoutMillis) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Need at least one worker: " + workers);
+        }
+        if (shardTimeoutMillis < 1) {
+            throw new IllegalArgumentException("Shard timeout must be positive: " + shardTimeoutMillis);
+        }
+        this.workers = workers;
+        this.workerOptions = List.copyOf(workerOptions);
+        this.shardSize = shardSize;
+        this.shardTimeoutMillis = shardTimeoutMillis;
+    }
+
+    /**
+     * Evaluate every session of a file and write the answers to another file
+     * Workers are started for the batch and stopped when it is done
+     * @param input The keystroke file
+     * @param output The file to write the answers to, replaced if it exists
+     * @return The number of answered lines
+     * @throws IOException If a file cannot be read or written, or the workers failed
+     */
+    public synchronized long evaluate(Path input, Path output) throws IOException {
+        queue.clear();
+        redispatched.set(0);
+        workerFailure.set(null);
+        Path sockets = Files.createTempDirectory("calculator-workers");
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Thread> threads = new ArrayList<>();
+            liveWorkers.set(workers);
+            for (int i = 0; i < workers; i++) {
+                Worker worker = new Worker(in, sockets.resolve("worker-" + i + ".sock"));
+                Thread thread = new Thread(worker, "calculator-shard-worker-" + i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+            try {
+                return evaluate(in, out);
+            } finally {
+                // Stop the workers before the input is closed, each thread stops its own
+                for (int i = 0; i < threads.size(); i++) {
+                    queue.addFirst(STOP);
+                }
+                for (Thread thread : threads) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        } finally {
+            for (int i = 0; i < workers; i++) {
+                Files.deleteIfExists(sockets.resolve("worker-" + i + ".sock"));
+            }
+            Files.deleteIfExists(sockets);
+        }
+    }
+
+    /**
+     * Cut the input into shards for the workers and write their answers in order
+     * @param in The keystroke file
+     * @param out The file to write the answers to
+     * @return The number of answered lines
+     * @throws IOException If a file cannot be read or written, a session is too long
+     *         for a shard, or the workers failed
+     */
+    private long evaluate(FileChannel in, FileChannel out) throws IOException {
+        long size = in.size();
+        long target = shardSize > 0 ? shardSize : BatchEvaluator.chunkSize(size, workers);
+        int window = workers * 2;
+
+        // Keep a window of shards outstanding and write them out in order
+        ArrayDeque<Shard> pending = new ArrayDeque<>();
+        long lines = 0;
+        long start = 0;
+        while (start < size || !pending.isEmpty()) {
+            while (start < size && pending.size() < window) {
+                long end = BatchEvaluator.nextBoundary(in, Math.min(size, start + target), size);
+                // A shard is framed with an int length, and can only end at a session boundary
+                if (end - start > Integer.MAX_VALUE) {
+                    throw new IOException("Shard at byte " + start + " is " + (end - start) +
+                        " bytes, a session must end within " + Integer.MAX_VALUE + " bytes");
+                }
+                Shard shard = new Shard(start, end);
+                pending.addLast(shard);
+                queue.addLast(shard);
+                start = end;
+            }
+            BatchEvaluator.Output answers = await(pending.removeFirst());
+            ByteBuffer buffer = ByteBuffer.wrap(answers.bytes, 0, answers.length);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            lines += answers.lines;
+        }
+        return lines;
+    }
+
+    /**
+     * Get the number of times a shard was given to another worker after a crash in
+     * the last batch
+     * @return The number of redispatched shards
+     */
+    public int redispatched() {
+        return redispatched.get();
+    }
+
+    /**
+     * Wait for the answers to a shard
+     * @param shard The shard
+     * @return The answers
+     * @throws IOException If the shard failed or no worker is left to evaluate it
+     */
+    private BatchEvaluator.Output await(Shard shard) throws IOException {
+        while (true) {
+            try {
+                return shard.result.get(100, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (liveWorkers.get() == 0) {
+                    IOException failure = workerFailure.get();
+                    throw new IOException(failure == null ? "All workers failed"
+                        : "All workers failed: " + failure.getMessage(), failure);
+                }
+            } catch (ExecutionException e) {
+                throw (IOException) e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for workers", e);
+            }
+        }
+    }
+
+    /**
+     * Build the command that starts a worker with the classes of this JVM
+     * @param socket The socket the worker connects to
+     * @return The command
+     */
+    private List<String> workerCommand(Path socket) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(workerOptions);
+        Module module = ShardedEvaluator.class.getModule();
+        if (module.isNamed()) {
+            command.add("-p");
+            command.add(System.getProperty("jdk.module.path"));
+            command.add("-m");
+            command.add(module.getName() + "/" + ShardedEvaluator.class.getName());
+        } else {
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ShardedEvaluator.class.getName());
+        }
+        command.add(WORKER_ARGUMENT);
+        command.add(socket.toString());
+        return command;
+    }
+
+    /**
+     * Runs one worker JVM and gives it shards from the queue, restarting it when it
+     * crashes
+     */
+    private final class Worker implements Runnable {
+        private final FileChannel input;
+        private final Path socket;
+        private final ByteBuffer header = ByteBuffer.allocate(RESPONSE_HEADER_SIZE);
+        private ServerSocketChannel server;
+        private Selector selector;
+        private Process process;
+        private SocketChannel channel;
+        private SelectionKey key;
+
+        Worker(FileChannel input, Path socket) {
+            this.input = input;
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            // Starts that failed in a row, the worker gives up after MAX_ATTEMPTS
+            int failedStarts = 0;
+            Shard shard = null;
+            try {
+                while (true) {
+                    shard = queue.take();
+                    if (shard == STOP) {
+                        return;
+                    }
+                    boolean started = channel != null;
+                    try {
+                        if (!started) {
+                            start();
+                            started = true;
+                        }
+                        BatchEvaluator.Output answers = evaluate(shard);
+                        failedStarts = 0;
+                        shard.result.complete(answers);
+                    } catch (IOException e) {
+                        stop();
+                        if (started) {
+                            failed(shard, e);
+                        } else {
+                            // The shard was never sent, so it goes back without an attempt
+                            queue.addFirst(shard);
+                            if (++failedStarts >= MAX_ATTEMPTS) {
+                                workerFailure.compareAndSet(null, new IOException(
+                                    "Worker could not be started " + MAX_ATTEMPTS + " times in a row: " + e.getMessage(), e));
+                                return;
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                // A bug or an Error such as OutOfMemoryError; fail the shard in hand
+                // rather than leave the coordinator waiting for it
+                IOException failure = new IOException("Worker thread failed: " + e, e);
+                workerFailure.compareAndSet(null, failure);
+                if (shard != null) {
+                    shard.result.completeExceptionally(failure);
+                }
+            } finally {
+                // However the thread ends, the coordinator must not wait on it
+                liveWorkers.decrementAndGet();
+                stop();
+                try {
+                    if (server != null) {
+                        server.close();
+                    }
+                    if (selector != null) {
+                        selector.close();
+                    }
+                } catch (IOException e) {
+                    // Nothing more to do with it
+                }
+            }
+        }
+
+        /**
+         * Start the worker JVM and wait for it to connect
+         */
+        private void start() throws IOException {
+            if (server == null) {
+                server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                server.bind(UnixDomainSocketAddress.of(socket));
+                server.configureBlocking(false);
+                selector = Selector.open();
+            }
+            process = new ProcessBuilder(workerCommand(socket))
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MILLIS);
+            while ((channel = server.accept()) == null) {
+                if (!process.isAlive()) {
+                    throw new IOException("Worker exited with status " + process.exitValue() + " before connecting");
+                }
+                if (System.nanoTime() > deadline) {
+                    throw new IOException("Worker did not connect within " + CONNECT_TIMEOUT_MILLIS + " ms");
+                }
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while starting a worker", e);
+                }
+            }
+            // Non-blocking, so a shard can time out while waiting on the worker
+            channel.configureBlocking(false);
+            key = channel.register(selector, 0);
+        }
+
+        /**
+         * Send a shard to the worker and read the answers
+         * @param shard The shard
+         * @return The answers
+         */
+        private BatchEvaluator.Output evaluate(Shard shard) throws IOException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shardTimeoutMillis);
+            int length = (int) (shard.end - shard.start);
+            ByteBuffer request = ByteBuffer.allocate(REQUEST_HEADER_SIZE).putInt(length).flip();
+            transfer(request, true, deadline);
+            if (length > 0) {
+                transfer(input.map(FileChannel.MapMode.READ_ONLY, shard.start, length), true, deadline);
+            }
+
+            header.clear();
+            transfer(header, false, deadline);
+            BatchEvaluator.Output answers = new BatchEvaluator.Output();
+            answers.lines = header.getInt(0);
+            answers.length = header.getInt(4);
+            if (answers.lines < 0 || answers.length < 0) {
+                throw new IOException("Corrupt answer from worker");
+            }
+            answers.bytes = new byte[answers.length];
+            transfer(ByteBuffer.wrap(answers.bytes), false, deadline);
+            return answers;
+        }
+
+        /**
+         * Write or read a whole buffer, waiting for the worker at most until a deadline
+         * A worker that misses the deadline is killed, as it may not exit when disconnected
+         * @param buffer The buffer to write from or read into
+         * @param write True to write the buffer, false to read it
+         * @param deadline System.nanoTime() by which the buffer must be transferred
+         * @throws IOException If the connection fails or closes, or the deadline passes
+         */
+        private void transfer(ByteBuffer buffer, boolean write, long deadline) throws IOException {
+            while (buffer.hasRemaining()) {
+                int transferred = write ? channel.write(buffer) : channel.read(buffer);
+                if (transferred < 0) {
+                    throw new EOFException("Connection closed");
+                }
+                if (transferred == 0) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        process.destroyForcibly();
+                        throw new IOException("Worker did not answer within " + shardTimeoutMillis + " ms");
+                    }
+                    key.interestOps(write ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                    selector.select(remaining);
+                    selector.selectedKeys().clear();
+                }
+            }
+        }
+
+        /**
+         * Put a shard back on the queue after its worker failed, or fail it after
+         * MAX_ATTEMPTS
+         * @param shard The shard
+         * @param e The failure
+         */
+        private void failed(Shard shard, IOException e) {
+            if (++shard.attempts >= MAX_ATTEMPTS) {
+                shard.result.completeExceptionally(new IOException(
+                    "Shard at byte " + shard.start + " failed on " + MAX_ATTEMPTS + " workers: " + e.getMessage(), e));
+            } else {
+                // To the front, so the answers written next are not held up
+                redispatched.incrementAndGet();
+                queue.addFirst(shard);
+            }
+        }
+
+        /**
+         * Disconnect and stop the worker JVM
+         * Closing the connection makes a healthy worker exit
+         */
+        private void stop() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // The worker is stopped below anyway
+                }
+                channel = null;
+                key = null;
+            }
+            if (process != null) {
+                try {
+                    if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                        process.destroyForcibly().waitFor();
+                    }
+                } catch (InterruptedException e) {
+                    process.destroyForcibly();
+                    Thread.currentThread().interrupt();
+                }
+                process = null;
+            }
+        }
+    }
+
+    /**
+     * Read until a buffer is full
+     * @param channel The channel to read
+     * @param buffer The buffer
+     * @throws EOFException If the channel ends first
+     */
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * Evaluate shards sent by a coordinator until it disconnects
+     * @param socket The socket of the coordinator
+     */
+    private static void runWorker(Path socket) throws IOException {
+        int exitAfter = Integer.getInteger(EXIT_AFTER_PROPERTY, 0);
+        int hangAfter = Integer.getInteger(HANG_AFTER_PROPERTY, 0);
+        CalculationLogic calculationLogic = new CalculationLogic();
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            ByteBuffer header = ByteBuffer.allocate(RESPONSE_HEADER_SIZE);
+            ByteBuffer shard = ByteBuffer.allocate(1 << 16);
+            for (int shards = 1; ; shards++) {
+                // Read a shard, or stop when the coordinator is done
+                header.clear().limit(REQUEST_HEADER_SIZE);
+                try {
+                    readFully(channel, header);
+                } catch (EOFException e) {
+                    return;
+                }
+                int length = header.getInt(0);
+                if (length > shard.capacity()) {
+                    shard = ByteBuffer.allocate(Math.max(length, shard.capacity() * 2));
+                }
+                shard.clear().limit(length);
+                readFully(channel, shard);
+                if (shards == exitAfter) {
+                    // Crash in the middle of a shard
+                    System.exit(1);
+                }
+                if (shards == hangAfter) {
+                    // Stop answering without exiting
+                    try {
+                        Thread.sleep(Long.MAX_VALUE);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+
+                BatchEvaluator.ChunkEvaluator evaluator = new BatchEvaluator.ChunkEvaluator(calculationLogic);
+                shard.flip();
+                evaluator.evaluate(shard);
+                BatchEvaluator.Output answers = evaluator.finish();
+
+                header.clear();
+                header.putInt(answers.lines).putInt(answers.length).flip();
+                ByteBuffer body = ByteBuffer.wrap(answers.bytes, 0, answers.length);
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (body.hasRemaining()) {
+                    channel.write(body);
+                }
+            }
+        }
+    }
+
+    /**
+     * Main method to run a batch, or a worker when started by a coordinator
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals(WORKER_ARGUMENT)) {
+            runWorker(Paths.get(args[1]));
+            return;
+        }
+        if (args.length < 2) {
+            System.err.println("Usage: ShardedEvaluator input output [workers]");
+            System.exit(2);
+        }
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        ShardedEvaluator evaluator = new ShardedEvaluator(workers, List.of());
+        long start = System.nanoTime();
+        long lines = evaluator.evaluate(Paths.get(args[0]), Paths.get(args[1]));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Evaluated %d lines in %.3f s (%.0f lines/s) on %d workers, %d shards redispatched%n",
+            lines, seconds, lines / seconds, workers, evaluator.redispatched());
+    }
+}
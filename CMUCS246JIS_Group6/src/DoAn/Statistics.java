@@ -0,0 +1,338 @@
+package DoAn;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Statistics class for the Calculator application
+ * Count, sum, mean, variance, minimum and maximum of a column of numbers
+ *
+ * Sums are accumulated exactly rather than compensated, in a fixed-point accumulator
+ * wide enough for any double and its square (U. Kulisch's long accumulator). An
+ * exact sum does not depend on the order of additions, so combining the states of
+ * chunks gives the same state in any grouping: results are identical however a
+ * parallel stream or a fork-join pool splits the input. Results are rounded once,
+ * when they are read
+ */
+public final class Statistics implements DoubleConsumer {
+    // Chunk size below which a parallel aggregation runs sequentially
+    private static final int SEQUENTIAL_THRESHOLD = 1 << 14;
+    // Doubles are integers of up to 53 bits times 2^-1074 and up, squares times 2^-2148 and up
+    private static final BigDecimal VALUE_UNIT = new BigDecimal(Double.MIN_VALUE);
+    private static final BigDecimal SQUARE_UNIT = VALUE_UNIT.multiply(VALUE_UNIT);
+    // Bits of the largest value or square, plus 64 bits for carries of up to 2^64 values
+    private static final int VALUE_BITS = 2098 + 64;
+    private static final int SQUARE_BITS = 4196 + 64;
+
+    private final ExactSum sum = new ExactSum(VALUE_BITS, VALUE_UNIT);
+    private final ExactSum sumOfSquares = new ExactSum(SQUARE_BITS, SQUARE_UNIT);
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Constructor for empty Statistics
+     */
+    public Statistics() {
+    }
+
+    /**
+     * Add a value
+     * @param value The value
+     * @throws IllegalArgumentException If the value is infinite or not a number
+     */
+    @Override
+    public void accept(double value) {
+        if (!Double.isFinite(value)) {
+            throw new IllegalArgumentException("Value is not finite: " + value);
+        }
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+
+        // value = mantissa * 2^(shift - 1074), and value^2 = mantissa^2 * 2^(2 * shift - 2148)
+        long bits = Double.doubleToRawLongBits(value);
+        int exponent = (int) (bits >>> 52) & 0x7FF;
+        long mantissa = bits & 0xFFFFFFFFFFFFFL;
+        int shift = 0;
+        if (exponent != 0) {
+            mantissa |= 1L << 52;
+            shift = exponent - 1;
+        }
+        sum.add(mantissa, shift, bits < 0);
+        sumOfSquares.add(Math.multiplyHigh(mantissa, mantissa), mantissa * mantissa, 2 * shift);
+    }
+
+    /**
+     * Add all values of a range of an array
+     * @param values The values
+     * @param from The first index
+     * @param to The index after the last
+     * @return These statistics
+     * @throws IllegalArgumentException If a value is infinite or not a number
+     */
+    public Statistics accept(double[] values, int from, int to) {
+        for (int i = from; i < to; i++) {
+            accept(values[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Add the values of other statistics
+     * @param other The statistics to add, left unchanged
+     * @return These statistics
+     */
+    public Statistics combine(Statistics other) {
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum.add(other.sum);
+        sumOfSquares.add(other.sumOfSquares);
+        return this;
+    }
+
+    /**
+     * Get the number of values
+     * @return The count
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Get the sum of the values
+     * @return The exact sum, correctly rounded
+     * @throws ArithmeticException If the sum is too large for a double
+     */
+    public double sum() throws ArithmeticException {
+        return checkResult(sum.exact().doubleValue());
+    }
+
+    /**
+     * Get the mean of the values
+     * @return The mean
+     * @throws ArithmeticException If there are no values
+     */
+    public double mean() throws ArithmeticException {
+        checkCount(1);
+        return sum.exact().divide(BigDecimal.valueOf(count), MathContext.DECIMAL128).doubleValue();
+    }
+
+    /**
+     * Get the sample variance of the values, the sum of squared deviations from the
+     * mean divided by count - 1
+     * @return The variance
+     * @throws ArithmeticException If there are fewer than two values, or the variance is
+     *         too large for a double
+     */
+    public double variance() throws ArithmeticException {
+        checkCount(2);
+        // (n * sum of squares - sum^2) / (n * (n - 1)), exact up to the division
+        BigDecimal n = BigDecimal.valueOf(count);
+        BigDecimal sumValue = sum.exact();
+        BigDecimal deviations = n.multiply(sumOfSquares.exact()).subtract(sumValue.multiply(sumValue));
+        return checkResult(deviations.divide(n.multiply(n.subtract(BigDecimal.ONE)), MathContext.DECIMAL128).doubleValue());
+    }
+
+    /**
+     * Get the smallest value
+     * @return The minimum
+     * @throws ArithmeticException If there are no values
+     */
+    public double min() throws ArithmeticException {
+        checkCount(1);
+        return min;
+    }
+
+    /**
+     * Get the largest value
+     * @return The maximum
+     * @throws ArithmeticException If there are no values
+     */
+    public double max() throws ArithmeticException {
+        checkCount(1);
+        return max;
+    }
+
+    /**
+     * Check that there are enough values for a statistic
+     * @param required The number of values required
+     * @throws ArithmeticException If there are fewer
+     */
+    private void checkCount(long required) throws ArithmeticException {
+        if (count < required) {
+            throw new ArithmeticException(required == 1 ? "No values" : "Not enough values");
+        }
+    }
+
+    /**
+     * Check that a rounded result is finite
+     * @param result The result
+     * @return The result
+     * @throws ArithmeticException If it is infinite
+     */
+    private static double checkResult(double result) throws ArithmeticException {
+        if (Double.isInfinite(result)) {
+            if (CalculatorMetrics.ENABLED) {
+                CalculatorMetrics.recordFailure(CalculatorMetrics.Failure.OVERFLOW);
+            }
+            throw new ArithmeticException("Overflow error");
+        }
+        return result;
+    }
+
+    /**
+     * Fork-join task aggregating a range of an array
+     */
+    static final class AggregateTask extends RecursiveTask<Statistics> {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] values;
+        private final int from;
+        private final int to;
+
+        /**
+         * Constructor for an AggregateTask
+         * @param values The values
+         * @param from The first index
+         * @param to The index after the last
+         */
+        AggregateTask(double[] values, int from, int to) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Statistics compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                return new Statistics().accept(values, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            AggregateTask right = new AggregateTask(values, middle, to);
+            right.fork();
+            Statistics left = new AggregateTask(values, from, middle).compute();
+            return left.combine(right.join());
+        }
+    }
+
+    /**
+     * An exact sum of multiples of a power of two, as a fixed-point number in 32-bit
+     * digits held in longs
+     * Digits absorb additions without carrying until they could overflow, so adding a
+     * value costs a few integer additions whatever the magnitudes summed
+     */
+    private static final class ExactSum {
+        private static final long DIGIT_MASK = 0xFFFFFFFFL;
+        // Additions a digit absorbs before carries must be propagated
+        private static final int CARRY_LIMIT = 1 << 30;
+
+        private final long[] digits;
+        private final BigDecimal unit;
+        private int uncarried;
+
+        /**
+         * Constructor for a zero ExactSum
+         * @param bits The number of bits of the largest sum, including room for carries
+         * @param unit The value of the lowest bit
+         */
+        ExactSum(int bits, BigDecimal unit) {
+            this.digits = new long[(bits + 31) / 32 + 1];
+            this.unit = unit;
+        }
+
+        /**
+         * Add an integer of up to 53 bits
+         * @param magnitude The integer
+         * @param shift The bit position of its lowest bit
+         * @param negative Whether to subtract it instead
+         */
+        void add(long magnitude, int shift, boolean negative) {
+            int i = shift >>> 5;
+            int bit = shift & 31;
+            // Java shifts by 32 - bit modulo 64, so bit 0 moves nothing into the next digit
+            long low = (magnitude << bit) & DIGIT_MASK;
+            long middle = (magnitude >>> (32 - bit)) & DIGIT_MASK;
+            long high = (magnitude >>> 32) >>> (32 - bit);
+            if (negative) {
+                digits[i] -= low;
+                digits[i + 1] -= middle;
+                digits[i + 2] -= high;
+            } else {
+                digits[i] += low;
+                digits[i + 1] += middle;
+                digits[i + 2] += high;
+            }
+            if (++uncarried == CARRY_LIMIT) {
+                carry();
+            }
+        }
+
+        /**
+         * Add a non-negative integer of up to 106 bits
+         * @param high The upper 64 bits of the integer
+         * @param low The lower 64 bits of the integer
+         * @param shift The bit position of its lowest bit
+         */
+        void add(long high, long low, int shift) {
+            int i = shift >>> 5;
+            int bit = shift & 31;
+            long d0 = low & DIGIT_MASK;
+            long d1 = low >>> 32;
+            long d2 = high & DIGIT_MASK;
+            long d3 = high >>> 32;
+            digits[i] += (d0 << bit) & DIGIT_MASK;
+            digits[i + 1] += ((d1 << bit) | (d0 >>> (32 - bit))) & DIGIT_MASK;
+            digits[i + 2] += ((d2 << bit) | (d1 >>> (32 - bit))) & DIGIT_MASK;
+            digits[i + 3] += ((d3 << bit) | (d2 >>> (32 - bit))) & DIGIT_MASK;
+            digits[i + 4] += d3 >>> (32 - bit);
+            if (++uncarried == CARRY_LIMIT) {
+                carry();
+            }
+        }
+
+        /**
+         * Add another exact sum with the same unit
+         * @param other The sum to add
+         */
+        void add(ExactSum other) {
+            carry();
+            for (int i = 0; i < digits.length; i++) {
+                digits[i] += other.digits[i];
+            }
+            uncarried = other.uncarried;
+            if (uncarried >= CARRY_LIMIT / 2) {
+                carry();
+            }
+        }
+
+        /**
+         * Propagate carries so that every digit but the top one is in [0, 2^32)
+         */
+        private void carry() {
+            for (int i = 0; i < digits.length - 1; i++) {
+                long carry = digits[i] >> 32;
+                digits[i] -= carry << 32;
+                digits[i + 1] += carry;
+            }
+            uncarried = 0;
+        }
+
+        /**
+         * Get the sum as a BigDecimal
+         * @return The exact sum
+         */
+        BigDecimal exact() {
+            carry();
+            BigInteger units = BigInteger.valueOf(digits[digits.length - 1]);
+            for (int i = digits.length - 2; i >= 0; i--) {
+                units = units.shiftLeft(32).add(BigInteger.valueOf(digits[i]));
+            }
+            return new BigDecimal(units).multiply(unit);
+        }
+    }
+}
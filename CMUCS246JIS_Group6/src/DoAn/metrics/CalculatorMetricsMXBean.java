@@ -0,0 +1,34 @@
+package DoAn.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the Calculator counters
+ * Latency histograms are published as separate LatencyHistogramMXBeans
+ * The MXBean interfaces are the only exported package, so JMX can call them while
+ * the rest of the calculator stays internal to the module
+ */
+public interface CalculatorMetricsMXBean {
+    /**
+     * Check if the probes are compiled in
+     * @return True if metrics are being recorded
+     */
+    boolean isEnabled();
+
+    /**
+     * Get the number of calculations per operator
+     * @return Calculation counts keyed by operator name
+     */
+    Map<String, Long> getCalculations();
+
+    /**
+     * Get the number of failed calculations per kind of failure
+     * @return Failure counts keyed by failure name
+     */
+    Map<String, Long> getFailures();
+
+    /**
+     * Reset all counters and histograms
+     */
+    void reset();
+}
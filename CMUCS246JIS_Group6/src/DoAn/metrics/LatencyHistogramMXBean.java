@@ -0,0 +1,54 @@
+package DoAn.metrics;
+
+/**
+ * JMX view of a LatencyHistogram
+ * Latencies are in nanoseconds
+ */
+public interface LatencyHistogramMXBean {
+    /**
+     * Get the number of recorded latencies
+     * @return The count
+     */
+    long getCount();
+
+    /**
+     * Get the mean latency
+     * @return The mean in nanoseconds
+     */
+    double getMeanNanos();
+
+    /**
+     * Get the largest latency
+     * @return The maximum in nanoseconds
+     */
+    long getMaxNanos();
+
+    /**
+     * Get the median latency
+     * @return The 50th percentile in nanoseconds
+     */
+    long getP50Nanos();
+
+    /**
+     * Get the 90th percentile latency
+     * @return The 90th percentile in nanoseconds
+     */
+    long getP90Nanos();
+
+    /**
+     * Get the 99th percentile latency
+     * @return The 99th percentile in nanoseconds
+     */
+    long getP99Nanos();
+
+    /**
+     * Get the 99.9th percentile latency
+     * @return The 99.9th percentile in nanoseconds
+     */
+    long getP999Nanos();
+
+    /**
+     * Reset the histogram
+     */
+    void reset();
+}
@@ -5,5 +5,11 @@
  * 
  */
 module CMUCS246JIS_Group6 {
-	requires java.desktop;
+	// Only CalculatorUI uses Swing, the headless core runs without java.desktop
+	requires static transitive java.desktop;
+	requires java.management;
+	requires jdk.management;
+
+	// Lets JMX call the metrics MBeans, the calculator itself is not exported
+	exports DoAn.metrics;
 }
\ No newline at end of file
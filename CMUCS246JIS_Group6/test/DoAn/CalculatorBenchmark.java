@@ -0,0 +1,949 @@
+package DoAn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Micro-benchmark suite for the Calculator hot paths
+ * Measures throughput, average time and allocation per operation for
+ * CalculationLogic.calculate, InputHandler.processInput and formatResult,
+ * and the error of the scientific functions against java.lang.Math
+ *
+ * Allocation is the bytes the measuring threads allocated over the measurement
+ * iterations, as reported by ThreadMXBean, and the garbage collections and their time
+ * over the same iterations are reported next to it, so a change that starts to
+ * allocate on a hot path shows up in both
+ *
+ * Usage: CalculatorBenchmark [filter]
+ * Only benchmarks whose name contains the filter are run
+ */
+public class CalculatorBenchmark {
+
+    // Harness settings
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 200_000_000L;
+    private static final int BATCH_SIZE = 1 << 12;
+
+    // Operand tables, indexed with a mask so the JIT cannot constant-fold
+    private static final int OPERAND_MASK = 63;
+    private static final double[] LEFT = new double[OPERAND_MASK + 1];
+    private static final double[] RIGHT = new double[OPERAND_MASK + 1];
+    private static final double[] WHOLE_LEFT = new double[OPERAND_MASK + 1];
+    private static final double[] WHOLE_RIGHT = new double[OPERAND_MASK + 1];
+    // Arguments of the scientific functions, more of them so branches are not learned
+    private static final int FUNCTION_MASK = 1023;
+
+    // Records written to a history file before it is replaced
+    private static final int HISTORY_RECORDS = 1 << 20;
+    
+    // Sink for results so the measured work is not eliminated
+    private static volatile long sink;
+
+    /**
+     * A unit of benchmarked work
+     */
+    interface Workload {
+        /**
+         * Run the operation a number of times
+         * @param operations Number of operations to run
+         * @return A checksum of the results
+         */
+        long run(int operations);
+    }
+
+    /**
+     * Main method to run benchmarks
+     */
+    public static void main(String[] args) {
+        String filter = args.length > 0 ? args[0] : "";
+
+        for (int i = 0; i <= OPERAND_MASK; i++) {
+            LEFT[i] = 1 + i * 1.5;
+            RIGHT[i] = 1 + (OPERAND_MASK - i) * 0.25;
+            WHOLE_LEFT[i] = 1 + i * 1_000_003L;
+            WHOLE_RIGHT[i] = 1 + (OPERAND_MASK - i) * 7;
+        }
+
+        System.out.println("Running Calculator Benchmarks...");
+        System.out.printf("%-34s %16s %12s %12s %8s %8s%n", "Benchmark", "Throughput/s", "Avg ns/op", "Alloc B/op",
+            "GCs", "GC ms");
+
+        benchmarkCalculate(filter);
+        benchmarkBulkCalculate(filter);
+        benchmarkOverflowChecks(filter);
+        benchmarkFunctions(filter);
+        benchmarkStatistics(filter);
+        benchmarkProcessInput(filter);
+        benchmarkFormatResult(filter);
+        benchmarkExpressions(filter);
+        benchmarkHistory(filter);
+        benchmarkRecording(filter);
+        benchmarkMemory(filter);
+
+        System.out.println("All benchmarks completed.");
+    }
+
+    /**
+     * Benchmark each operator of CalculationLogic.calculate, by symbol and by Operator
+     */
+    private static void benchmarkCalculate(String filter) {
+        CalculationLogic logic = new CalculationLogic();
+
+        for (String operator : new String[] {"+", "-", "*", "/"}) {
+            run("calculate " + operator, filter, operations -> {
+                long checksum = 0;
+                for (int i = 0; i < operations; i++) {
+                    int index = i & OPERAND_MASK;
+                    checksum += (long) logic.calculate(LEFT[index], RIGHT[index], operator);
+                }
+                return checksum;
+            });
+        }
+
+        for (Operator operator : Operator.values()) {
+            run("calculate " + operator.name(), filter, operations -> {
+                long checksum = 0;
+                for (int i = 0; i < operations; i++) {
+                    int index = i & OPERAND_MASK;
+                    checksum += (long) logic.calculate(LEFT[index], RIGHT[index], operator);
+                }
+                return checksum;
+            });
+        }
+        
+        // Whole numbers, which take the long path
+        for (Operator operator : Operator.values()) {
+            run("calculate whole " + operator.name(), filter, operations -> {
+                long checksum = 0;
+                for (int i = 0; i < operations; i++) {
+                    int index = i & OPERAND_MASK;
+                    checksum += (long) logic.calculate(WHOLE_LEFT[index], WHOLE_RIGHT[index], operator);
+                }
+                return checksum;
+            });
+        }
+        
+        BigDecimal[] left = new BigDecimal[OPERAND_MASK + 1];
+        BigDecimal[] right = new BigDecimal[OPERAND_MASK + 1];
+        for (int i = 0; i <= OPERAND_MASK; i++) {
+            left[i] = BigDecimal.valueOf(LEFT[i]);
+            right[i] = BigDecimal.valueOf(RIGHT[i]);
+        }
+        for (Operator operator : Operator.values()) {
+            run("calculate BigDecimal " + operator.name(), filter, operations -> {
+                long checksum = 0;
+                for (int i = 0; i < operations; i++) {
+                    int index = i & OPERAND_MASK;
+                    checksum += logic.calculate(left[index], right[index], operator, MathContext.DECIMAL128).scale();
+                }
+                return checksum;
+            });
+        }
+    }
+
+    /**
+     * Benchmark the bulk calculate overloads, one operation per element
+     */
+    private static void benchmarkBulkCalculate(String filter) {
+        CalculationLogic logic = new CalculationLogic();
+        int size = 1024;
+        double[] first = new double[size];
+        double[] second = new double[size];
+        double[] results = new double[size];
+        int[] failedIndices = new int[size];
+        Operator[] mixed = new Operator[size];
+        for (int i = 0; i < size; i++) {
+            first[i] = LEFT[i & OPERAND_MASK];
+            second[i] = RIGHT[i & OPERAND_MASK];
+            mixed[i] = Operator.values()[(i / 64) % Operator.values().length];
+        }
+
+        for (Operator operator : Operator.values()) {
+            run("calculate bulk " + operator.name(), filter, operations -> {
+                long checksum = 0;
+                for (int done = 0; done < operations; done += size) {
+                    checksum += logic.calculate(first, second, operator, results, failedIndices);
+                }
+                return checksum + (long) results[size - 1];
+            });
+        }
+        run("calculate bulk mixed", filter, operations -> {
+            long checksum = 0;
+            for (int done = 0; done < operations; done += size) {
+                checksum += logic.calculate(first, second, mixed, results, failedIndices);
+            }
+            return checksum + (long) results[size - 1];
+        });
+    }
+
+    /**
+     * Benchmark the scientific functions in both accuracy modes and in java.lang.Math,
+     * then report the largest difference of each mode from java.lang.Math
+     */
+    private static void benchmarkFunctions(String filter) {
+        CalculationLogic logic = new CalculationLogic();
+        Random random = new Random(18);
+        double[] angles = new double[FUNCTION_MASK + 1];
+        double[] exponents = new double[FUNCTION_MASK + 1];
+        double[] positives = new double[FUNCTION_MASK + 1];
+        double[] bases = new double[FUNCTION_MASK + 1];
+        double[] powers = new double[FUNCTION_MASK + 1];
+        for (int i = 0; i <= FUNCTION_MASK; i++) {
+            angles[i] = -10 + 20 * random.nextDouble();
+            exponents[i] = -700 + 1400 * random.nextDouble();
+            positives[i] = Math.exp(-690 + 1380 * random.nextDouble());
+            bases[i] = 0.5 + 100 * random.nextDouble();
+            powers[i] = -50 + 100 * random.nextDouble();
+        }
+
+        for (Accuracy accuracy : Accuracy.values()) {
+            run("sqrt " + accuracy.name(), filter, operations -> {
+                double sum = 0;
+                for (int i = 0; i < operations; i++) {
+                    sum += logic.sqrt(positives[i & FUNCTION_MASK], accuracy);
+                }
+                return (long) sum;
+            });
+        }
+        run("sqrt Math", filter, operations -> {
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                sum += Math.sqrt(positives[i & FUNCTION_MASK]);
+            }
+            return (long) sum;
+        });
+        for (Accuracy accuracy : Accuracy.values()) {
+            run("sin " + accuracy.name(), filter, operations -> {
+                double sum = 0;
+                for (int i = 0; i < operations; i++) {
+                    sum += logic.sin(angles[i & FUNCTION_MASK], accuracy);
+                }
+                return (long) sum;
+            });
+        }
+        run("sin Math", filter, operations -> {
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                sum += Math.sin(angles[i & FUNCTION_MASK]);
+            }
+            return (long) sum;
+        });
+        for (Accuracy accuracy : Accuracy.values()) {
+            run("cos " + accuracy.name(), filter, operations -> {
+                double sum = 0;
+                for (int i = 0; i < operations; i++) {
+                    sum += logic.cos(angles[i & FUNCTION_MASK], accuracy);
+                }
+                return (long) sum;
+            });
+        }
+        run("cos Math", filter, operations -> {
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                sum += Math.cos(angles[i & FUNCTION_MASK]);
+            }
+            return (long) sum;
+        });
+        for (Accuracy accuracy : Accuracy.values()) {
+            run("tan " + accuracy.name(), filter, operations -> {
+                double sum = 0;
+                for (int i = 0; i < operations; i++) {
+                    sum += logic.tan(angles[i & FUNCTION_MASK], accuracy);
+                }
+                return (long) sum;
+            });
+        }
+        run("tan Math", filter, operations -> {
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                sum += Math.tan(angles[i & FUNCTION_MASK]);
+            }
+            return (long) sum;
+        });
+        for (Accuracy accuracy : Accuracy.values()) {
+            run("exp " + accuracy.name(), filter, operations -> {
+                double sum = 0;
+                for (int i = 0; i < operations; i++) {
+                    sum += logic.exp(exponents[i & FUNCTION_MASK], accuracy);
+                }
+                return (long) sum;
+            });
+        }
+        run("exp Math", filter, operations -> {
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                sum += Math.exp(exponents[i & FUNCTION_MASK]);
+            }
+            return (long) sum;
+        });
+        for (Accuracy accuracy : Accuracy.values()) {
+            run("ln " + accuracy.name(), filter, operations -> {
+                double sum = 0;
+                for (int i = 0; i < operations; i++) {
+                    sum += logic.ln(positives[i & FUNCTION_MASK], accuracy);
+                }
+                return (long) sum;
+            });
+        }
+        run("ln Math", filter, operations -> {
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                sum += Math.log(positives[i & FUNCTION_MASK]);
+            }
+            return (long) sum;
+        });
+        for (Accuracy accuracy : Accuracy.values()) {
+            run("pow " + accuracy.name(), filter, operations -> {
+                double sum = 0;
+                for (int i = 0; i < operations; i++) {
+                    sum += logic.pow(bases[i & FUNCTION_MASK], powers[i & FUNCTION_MASK], accuracy);
+                }
+                return (long) sum;
+            });
+        }
+        run("pow Math", filter, operations -> {
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                sum += Math.pow(bases[i & FUNCTION_MASK], powers[i & FUNCTION_MASK]);
+            }
+            return (long) sum;
+        });
+
+        // Largest differences in ULP of the java.lang.Math result
+        reportError("sqrt", filter, positives, x -> logic.sqrt(x, Accuracy.FAST), x -> logic.sqrt(x, Accuracy.STRICT), Math::sqrt);
+        reportError("sin", filter, angles, x -> logic.sin(x, Accuracy.FAST), x -> logic.sin(x, Accuracy.STRICT), Math::sin);
+        reportError("cos", filter, angles, x -> logic.cos(x, Accuracy.FAST), x -> logic.cos(x, Accuracy.STRICT), Math::cos);
+        reportError("tan", filter, angles, x -> logic.tan(x, Accuracy.FAST), x -> logic.tan(x, Accuracy.STRICT), Math::tan);
+        reportError("exp", filter, exponents, x -> logic.exp(x, Accuracy.FAST), x -> logic.exp(x, Accuracy.STRICT), Math::exp);
+        reportError("ln", filter, positives, x -> logic.ln(x, Accuracy.FAST), x -> logic.ln(x, Accuracy.STRICT), Math::log);
+        reportError("pow", filter, powers, y -> logic.pow(Math.PI, y, Accuracy.FAST), y -> logic.pow(Math.PI, y, Accuracy.STRICT), y -> Math.pow(Math.PI, y));
+    }
+
+    /**
+     * Print the largest differences of the FAST and STRICT modes from java.lang.Math
+     * over many random arguments in the range of a benchmark's arguments
+     */
+    private static void reportError(String name, String filter, double[] arguments, DoubleUnaryOperator fast,
+                                    DoubleUnaryOperator strict, DoubleUnaryOperator math) {
+        name += " max ULP vs Math";
+        if (!name.contains(filter)) {
+            return;
+        }
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double argument : arguments) {
+            min = Math.min(min, argument);
+            max = Math.max(max, argument);
+        }
+        boolean logarithmic = min > 0;
+        Random random = new Random(18);
+        double fastError = 0;
+        double strictError = 0;
+        for (int i = 0; i < 1_000_000; i++) {
+            double x = logarithmic
+                ? Math.exp(Math.log(min) + (Math.log(max) - Math.log(min)) * random.nextDouble())
+                : min + (max - min) * random.nextDouble();
+            double expected = math.applyAsDouble(x);
+            fastError = Math.max(fastError, Math.abs(fast.applyAsDouble(x) - expected) / Math.ulp(expected));
+            strictError = Math.max(strictError, Math.abs(strict.applyAsDouble(x) - expected) / Math.ulp(expected));
+        }
+        System.out.printf("%-34s %16s %12.2f %12.2f%n", name, "FAST/STRICT", fastError, strictError);
+    }
+
+    /**
+     * Benchmark aggregate statistics against a plain sum, sequentially and in parallel
+     * Each operation is one value
+     */
+    private static void benchmarkStatistics(String filter) {
+        Random random = new Random(19);
+        double[] values = new double[1 << 16];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12));
+        }
+
+        run("statistics plain sum", filter, operations -> {
+            double sum = 0;
+            for (int i = 0; i < operations; i++) {
+                sum += values[i & (values.length - 1)];
+            }
+            return (long) sum;
+        });
+        // Only accumulation is measured, reading results rounds big decimals
+        Statistics statistics = new Statistics();
+        run("statistics sequential", filter, operations -> {
+            for (int done = 0; done < operations; done += values.length) {
+                statistics.accept(values, 0, Math.min(values.length, operations - done));
+            }
+            return statistics.count();
+        });
+        run("statistics parallel", filter, operations -> {
+            long checksum = 0;
+            for (int done = 0; done < operations; done += values.length) {
+                int to = Math.min(values.length, operations - done);
+                checksum += ForkJoinPool.commonPool().invoke(new Statistics.AggregateTask(values, 0, to)).count();
+            }
+            return checksum;
+        });
+    }
+
+    /**
+     * Benchmark the overflow-check branches of CalculationLogic
+     */
+    private static void benchmarkOverflowChecks(String filter) {
+        CalculationLogic logic = new CalculationLogic();
+
+        // Checks evaluated near the limit but not triggered
+        run("calculate + near limit", filter, operations -> {
+            long checksum = 0;
+            for (int i = 0; i < operations; i++) {
+                checksum += (long) Math.getExponent(logic.calculate(Double.MAX_VALUE / 2, LEFT[i & OPERAND_MASK], "+"));
+            }
+            return checksum;
+        });
+        run("calculate * near limit", filter, operations -> {
+            long checksum = 0;
+            for (int i = 0; i < operations; i++) {
+                checksum += (long) Math.getExponent(logic.calculate(Double.MAX_VALUE / 128, RIGHT[i & OPERAND_MASK], "*"));
+            }
+            return checksum;
+        });
+
+        // Checks triggered, including the cost of the thrown exception
+        run("calculate + overflow", filter, operations -> failures(logic, Double.MAX_VALUE, Double.MAX_VALUE, "+", operations));
+        run("calculate - overflow", filter, operations -> failures(logic, -Double.MAX_VALUE, Double.MAX_VALUE, "-", operations));
+        run("calculate * overflow", filter, operations -> failures(logic, Double.MAX_VALUE, 2, "*", operations));
+        run("calculate / by zero", filter, operations -> failures(logic, 5, 0, "/", operations));
+        run("calculate / too large", filter, operations -> failures(logic, 5, Double.MIN_VALUE, "/", operations));
+    }
+
+    /**
+     * Count the calculations that fail with an ArithmeticException
+     */
+    private static long failures(CalculationLogic logic, double a, double b, String operator, int operations) {
+        long failures = 0;
+        for (int i = 0; i < operations; i++) {
+            try {
+                logic.calculate(a, b, operator);
+            } catch (ArithmeticException e) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Benchmark InputHandler.processInput with digit, operator and equals sequences
+     */
+    private static void benchmarkProcessInput(String filter) {
+        String[] digits = {"C", "1", "2", "3", "4", "5", "6", "7", "8", "9", ".", "5"};
+        String[] operators = {"C", "7", "+", "-", "*", "/", "+"};
+        String[] equals = {"C", "1", "2", "+", "3", "4", "=", "*", "2", "="};
+
+        run("processInput digits", filter, keystrokes(digits));
+        run("processInput operators", filter, keystrokes(operators));
+        run("processInput equals", filter, keystrokes(equals));
+        run("processInput equals precision", filter, keystrokes(equals, MathContext.DECIMAL128));
+        
+        // Keeping a snapshot per keystroke for undo, restarted now and then so the
+        // undo history does not fill the heap
+        InputHandler undoHandler = new InputHandler(new CalculationLogic());
+        Workload undoKeystrokes = keystrokes(undoHandler, equals);
+        run("processInput equals undo", filter, operations -> {
+            undoHandler.setUndoEnabled(false);
+            undoHandler.setUndoEnabled(true);
+            return undoKeystrokes.run(operations);
+        });
+        
+        // Quotients and products beyond a long need BigDecimal
+        String[] divide = {"C", "1", "0", "/", "3", "="};
+        String[] grow = {"C", "9", "9", "9", "9", "9", "9", "9", "9", "9", "*", "9", "9", "9", "9", "9", "9", "9", "9", "9", "=", "*", "7", "="};
+        run("processInput divide", filter, keystrokes(divide));
+        run("processInput divide precision", filter, keystrokes(divide, MathContext.DECIMAL128));
+        run("processInput large precision", filter, keystrokes(grow, MathContext.DECIMAL128));
+        
+        // The equals sequence as one pasted burst of a batch of keystrokes
+        StringBuilder burst = new StringBuilder(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            burst.append(equals[i % equals.length]);
+        }
+        String burstKeys = burst.toString();
+        InputHandler burstHandler = new InputHandler(new CalculationLogic());
+        run("processInputs burst", filter, operations -> {
+            long checksum = 0;
+            for (int done = 0; done < operations; done += burstKeys.length()) {
+                checksum += burstHandler.processInputs(burstKeys).length();
+            }
+            return checksum;
+        });
+        
+        // The same keystrokes pushed through a KeystrokeProcessor, whose subscriber takes
+        // every display it can on the common pool
+        pipeline("pipeline keystrokes", filter, KeystrokeProcessor.Mode.BATCHED, burstKeys);
+        pipeline("pipeline keystrokes, conflated", filter, KeystrokeProcessor.Mode.CONFLATED, burstKeys);
+    }
+
+    /**
+     * Benchmark keystrokes pushed through a KeystrokeProcessor in a delivery mode
+     * Each operation is one of the BATCH_SIZE keys, repeated
+     */
+    private static void pipeline(String name, String filter, KeystrokeProcessor.Mode mode, String keys) {
+        KeystrokeProcessor processor = new KeystrokeProcessor(new InputHandler(new CalculationLogic()),
+            ForkJoinPool.commonPool(), mode);
+        LongAdder delivered = new LongAdder();
+        processor.subscribe(new Flow.Subscriber<KeystrokeProcessor.DisplayBatch>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(KeystrokeProcessor.DisplayBatch batch) {
+                delivered.add(batch.displays().size());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        processor.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        run(name, filter, operations -> {
+            for (int i = 0; i < operations; i++) {
+                processor.onNext(keys.charAt(i & (BATCH_SIZE - 1)));
+            }
+            return delivered.sum();
+        });
+    }
+
+    /**
+     * Create a workload that replays a keystroke sequence through a fresh InputHandler
+     * Each operation is one keystroke
+     */
+    private static Workload keystrokes(String[] sequence) {
+        return keystrokes(sequence, null);
+    }
+    
+    /**
+     * Create a workload that replays a keystroke sequence through a fresh InputHandler
+     * in a precision mode, null for the standard mode
+     */
+    private static Workload keystrokes(String[] sequence, MathContext mathContext) {
+        return keystrokes(new InputHandler(new CalculationLogic(), mathContext), sequence);
+    }
+    
+    /**
+     * Create a workload that replays a keystroke sequence through an InputHandler
+     */
+    private static Workload keystrokes(InputHandler inputHandler, String[] sequence) {
+        return operations -> {
+            long checksum = 0;
+            for (int i = 0; i < operations; i++) {
+                checksum += inputHandler.processInput(sequence[i % sequence.length]).length();
+            }
+            return checksum;
+        };
+    }
+
+    /**
+     * Benchmark InputHandler.formatResult for integer, fractional and error results
+     */
+    private static void benchmarkFormatResult(String filter) {
+        InputHandler inputHandler = new InputHandler(new CalculationLogic());
+
+        run("formatResult integer", filter, operations -> {
+            long checksum = 0;
+            for (int i = 0; i < operations; i++) {
+                checksum += inputHandler.formatResult(LEFT[i & OPERAND_MASK] * 2).length();
+            }
+            return checksum;
+        });
+        run("formatResult fraction", filter, operations -> {
+            long checksum = 0;
+            for (int i = 0; i < operations; i++) {
+                checksum += inputHandler.formatResult(LEFT[i & OPERAND_MASK] / 3).length();
+            }
+            return checksum;
+        });
+        run("formatResult error", filter, operations -> {
+            long checksum = 0;
+            for (int i = 0; i < operations; i++) {
+                checksum += inputHandler.formatResult(1e16 * LEFT[i & OPERAND_MASK]).length();
+            }
+            return checksum;
+        });
+    }
+
+    /**
+     * Benchmark parsing an expression against a cache hit and evaluating it once compiled
+     */
+    private static void benchmarkExpressions(String filter) {
+        CalculationLogic logic = new CalculationLogic();
+        String text = "(a + 4) * (b - 1) / 5 + a * b";
+        CompiledExpression expression = CompiledExpression.compile(text, logic);
+        double[] variables = new double[expression.getVariableCount()];
+
+        run("expression compile", filter, operations -> {
+            long checksum = 0;
+            for (int i = 0; i < operations; i++) {
+                checksum += CompiledExpression.compile(text, logic).getVariableCount();
+            }
+            return checksum;
+        });
+        ExpressionCache cache = new ExpressionCache(logic, 1024, 1 << 16);
+        run("expression cache hit", filter, operations -> {
+            long checksum = 0;
+            for (int i = 0; i < operations; i++) {
+                checksum += cache.get(text).getVariableCount();
+            }
+            return checksum;
+        });
+        run("expression evaluate", filter, operations -> {
+            long checksum = 0;
+            for (int i = 0; i < operations; i++) {
+                variables[0] = LEFT[i & OPERAND_MASK];
+                variables[1] = RIGHT[i & OPERAND_MASK];
+                checksum += (long) expression.evaluate(variables);
+            }
+            return checksum;
+        });
+    }
+
+    /**
+     * Benchmark recording results in a history file
+     * The file is replaced now and then so it does not fill the disk
+     */
+    private static void benchmarkHistory(String filter) {
+        if (!"history append".contains(filter) && !"processInput equals history".contains(filter)) {
+            return;
+        }
+        
+        CalculationHistory[] history = new CalculationHistory[1];
+        Path[] file = new Path[1];
+        Runnable rotate = () -> {
+            try {
+                if (history[0] != null) {
+                    history[0].close();
+                    Files.delete(file[0]);
+                }
+                file[0] = Files.createTempFile("calculator-history", ".log");
+                history[0] = CalculationHistory.open(file[0]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        rotate.run();
+        
+        run("history append", filter, operations -> {
+            if (history[0].size() > HISTORY_RECORDS) {
+                rotate.run();
+            }
+            CalculationHistory log = history[0];
+            for (int i = 0; i < operations; i++) {
+                int index = i & OPERAND_MASK;
+                log.append(LEFT[index], Operator.ADD, RIGHT[index], LEFT[index] + RIGHT[index], false);
+            }
+            return log.size();
+        });
+        
+        String[] equals = {"C", "1", "2", "+", "3", "4", "=", "*", "2", "="};
+        InputHandler inputHandler = new InputHandler(new CalculationLogic());
+        Workload workload = keystrokes(inputHandler, equals);
+        run("processInput equals history", filter, operations -> {
+            if (history[0].size() > HISTORY_RECORDS) {
+                rotate.run();
+            }
+            inputHandler.setHistory(history[0]);
+            return workload.run(operations);
+        });
+        
+        try {
+            history[0].close();
+            Files.delete(file[0]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Benchmark recording keystrokes, without the cost of writing them out
+     */
+    private static void benchmarkRecording(String filter) {
+        if (!"record keystrokes".contains(filter)) {
+            return;
+        }
+        
+        // Keys and the displays they give, as CalculatorUI records them
+        String[] sequence = {"C", "1", "2", "+", "3", "4", "=", "*", "2", "=", "M+", "MR"};
+        String[] displays = new String[sequence.length];
+        InputHandler inputHandler = new InputHandler(new CalculationLogic());
+        for (int i = 0; i < sequence.length; i++) {
+            displays[i] = inputHandler.processInput(sequence[i]);
+        }
+        
+        try {
+            KeystrokeRecorder recorder = new KeystrokeRecorder(OutputStream.nullOutputStream());
+            run("record keystrokes", filter, operations -> {
+                long inputNanos = System.nanoTime();
+                try {
+                    for (int i = 0; i < operations; i++) {
+                        int index = i % sequence.length;
+                        recorder.record(sequence[index], inputNanos + i * 150_000_000L, displays[index]);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return operations;
+            });
+            recorder.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Benchmark M+ on a shared memory register from many threads at once, striped,
+     * with a single cell, and behind a lock
+     */
+    private static void benchmarkMemory(String filter) {
+        BigDecimal step = new BigDecimal("0.1");
+        for (int threads : new int[] {1, 4, 16}) {
+            MemoryBank.Shared striped = new MemoryBank.Shared(1, 64);
+            runContended("memory striped " + threads + " threads", filter, threads, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    striped.add(0, step);
+                }
+                return operations;
+            });
+            MemoryBank.Shared single = new MemoryBank.Shared(1, 1);
+            runContended("memory one cell " + threads + " threads", filter, threads, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    single.add(0, step);
+                }
+                return operations;
+            });
+            MemoryBank.Session locked = new MemoryBank.Session(1);
+            runContended("memory locked " + threads + " threads", filter, threads, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    synchronized (locked) {
+                        locked.add(0, step);
+                    }
+                }
+                return operations;
+            });
+        }
+        
+        // Recall while other threads add
+        MemoryBank.Shared shared = new MemoryBank.Shared(1, 64);
+        Thread[] writers = new Thread[3];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    shared.add(0, step);
+                }
+            });
+            writers[i].setDaemon(true);
+        }
+        if ("memory recall 3 writers".contains(filter)) {
+            for (Thread writer : writers) {
+                writer.start();
+            }
+        }
+        run("memory recall 3 writers", filter, operations -> {
+            long checksum = 0;
+            for (int i = 0; i < operations; i++) {
+                checksum += shared.recall(0).scale();
+            }
+            return checksum;
+        });
+        for (Thread writer : writers) {
+            writer.interrupt();
+        }
+    }
+
+    /**
+     * Warm up and measure a workload on several threads at once, then print its
+     * results; the average time is per operation of one thread
+     * @param name Benchmark name
+     * @param filter Only run if the name contains this filter
+     * @param threads The number of threads
+     * @param workload The work to measure, run by every thread
+     */
+    static void runContended(String name, String filter, int threads, Workload workload) {
+        if (!name.contains(filter)) {
+            return;
+        }
+
+        // Threads run batches until told to stop, counting those of the measurement
+        AtomicInteger phase = new AtomicInteger();
+        LongAdder measured = new LongAdder();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                long checksum = 0;
+                int current;
+                while ((current = phase.get()) < 2) {
+                    checksum += workload.run(BATCH_SIZE);
+                    if (current == 1) {
+                        measured.add(BATCH_SIZE);
+                    }
+                }
+                sink += checksum;
+            });
+            workers[i].start();
+        }
+        long[] threadIds = new long[threads];
+        for (int i = 0; i < threads; i++) {
+            threadIds[i] = workers[i].getId();
+        }
+        try {
+            Thread.sleep(WARMUP_ITERATIONS * ITERATION_NANOS / 1_000_000);
+            long allocatedBefore = allocatedBytes(threadIds);
+            long[] gcBefore = collections();
+            phase.set(1);
+            long start = System.nanoTime();
+            Thread.sleep(MEASUREMENT_ITERATIONS * ITERATION_NANOS / 1_000_000);
+            long before = measured.sum();
+            long elapsed = System.nanoTime() - start;
+            long allocated = allocatedBytes(threadIds) - allocatedBefore;
+            long[] gcAfter = collections();
+            phase.set(2);
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            // Allocation between the phase changes and the readings is counted too, a
+            // batch or so per thread
+            report(name, before, elapsed, elapsed * threads, allocatedBefore < 0 ? -1 : allocated, gcBefore, gcAfter);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Warm up and measure a workload, then print its results
+     * @param name Benchmark name
+     * @param filter Only run if the name contains this filter
+     * @param workload The work to measure
+     */
+    static void run(String name, String filter, Workload workload) {
+        if (!name.contains(filter)) {
+            return;
+        }
+
+        // Warm up so the measurement sees compiled code
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            measureTime(workload);
+        }
+
+        // Throughput, average time and allocation are views of the same measurement
+        long[] thread = {Thread.currentThread().getId()};
+        long allocatedBefore = allocatedBytes(thread);
+        long[] gcBefore = collections();
+        long operations = 0;
+        long elapsed = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long[] iteration = measureTime(workload);
+            operations += iteration[0];
+            elapsed += iteration[1];
+        }
+        long allocated = allocatedBytes(thread) - allocatedBefore;
+        long[] gcAfter = collections();
+
+        report(name, operations, elapsed, elapsed, allocatedBefore < 0 ? -1 : allocated, gcBefore, gcAfter);
+    }
+
+    /**
+     * Print the results of a benchmark
+     * @param operations Operations measured
+     * @param elapsed Wall clock nanoseconds of the measurement
+     * @param busy Nanoseconds spent by all measuring threads together
+     * @param allocated Bytes allocated by the measuring threads, or -1 if unknown
+     * @param gcBefore Collections and their milliseconds before the measurement
+     * @param gcAfter Collections and their milliseconds after the measurement
+     */
+    private static void report(String name, long operations, long elapsed, long busy, long allocated,
+                               long[] gcBefore, long[] gcAfter) {
+        double throughput = operations * 1e9 / elapsed;
+        double averageTime = (double) busy / operations;
+        double allocation = allocated < 0 ? Double.NaN : (double) allocated / operations;
+        System.out.printf("%-34s %16.0f %12.2f %12.2f %8d %8d%n", name, throughput, averageTime, allocation,
+            gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+    }
+
+    /**
+     * Run batches of a workload for one iteration
+     * @return The number of operations and the elapsed nanoseconds
+     */
+    private static long[] measureTime(Workload workload) {
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink += workload.run(BATCH_SIZE);
+            operations += BATCH_SIZE;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        return new long[] {operations, elapsed};
+    }
+
+    /**
+     * Get the bytes allocated so far by some threads
+     * @param threadIds The thread ids
+     * @return The total, or -1 if the JVM cannot report allocation
+     */
+    private static long allocatedBytes(long[] threadIds) {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threadIds)) {
+            if (bytes < 0) {
+                return -1;
+            }
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Get the garbage collections so far, over all collectors
+     * @return The number of collections and their total milliseconds
+     */
+    private static long[] collections() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return new long[] {count, millis};
+    }
+}
@@ -0,0 +1,440 @@
+package DoAn;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Differential fuzz tester for the Calculator keystroke handling
+ * Generates random keystroke sequences, runs them through InputHandler on all cores
+ * and compares every display with an independent reference model written with
+ * strings and BigDecimal. A failing sequence is shrunk to one from which no keystroke
+ * can be removed before it is reported
+ *
+ * Each case is generated from the seed and its index alone, so a run is reproducible
+ * whatever the number of threads
+ *
+ * Usage: CalculatorFuzzer [cases] [seed] [threads]
+ * Exits with status 1 if a mismatch was found
+ */
+public class CalculatorFuzzer {
+
+    // Cases a worker takes at a time
+    private static final int CHUNK_SIZE = 1 << 12;
+    // Longest generated keystroke sequence
+    private static final int MAX_KEYS = 40;
+    // Interval between progress reports of the command line run
+    private static final long PROGRESS_SECONDS = 10;
+
+    /**
+     * Main method to run the fuzz tester
+     */
+    public static void main(String[] args) throws InterruptedException {
+        long cases = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000L;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        System.out.println("Fuzzing " + cases + " keystroke sequences with seed " + seed + " on " + threads + " threads...");
+        Result result = run(cases, seed, threads, PROGRESS_SECONDS);
+        System.out.println(result);
+        if (result.failure() != null) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Run cases until all passed or one failed
+     * @param cases The number of cases
+     * @param seed The seed the cases are generated from
+     * @param threads The number of worker threads
+     * @param progressSeconds Seconds between progress reports on standard output, or 0
+     *        for none
+     * @return The result
+     * @throws InterruptedException If interrupted while waiting for the workers
+     */
+    static Result run(long cases, long seed, int threads, long progressSeconds) throws InterruptedException {
+        AtomicLong nextCase = new AtomicLong();
+        AtomicLong keystrokes = new AtomicLong();
+        AtomicLong casesRun = new AtomicLong();
+        AtomicReference<Failure> failure = new AtomicReference<>();
+        long start = System.nanoTime();
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "calculator-fuzzer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < threads; i++) {
+            workers.execute(() -> {
+                char[] keys = new char[MAX_KEYS];
+                long count = 0;
+                long run = 0;
+                // Take chunks of cases until they run out or some case failed
+                long first;
+                while (failure.get() == null && (first = nextCase.getAndAdd(CHUNK_SIZE)) < cases) {
+                    long last = Math.min(first + CHUNK_SIZE, cases);
+                    for (long index = first; index < last; index++) {
+                        int length = generate(seed, index, keys);
+                        count += length;
+                        run++;
+                        if (check(keys, length) != null) {
+                            failure.compareAndSet(null, shrink(index, Arrays.copyOf(keys, length)));
+                            break;
+                        }
+                    }
+                }
+                keystrokes.addAndGet(count);
+                casesRun.addAndGet(run);
+            });
+        }
+        workers.shutdown();
+
+        // Report progress while the workers run
+        long timeout = progressSeconds > 0 ? progressSeconds : Long.MAX_VALUE;
+        while (!workers.awaitTermination(timeout, TimeUnit.SECONDS)) {
+            long done = Math.min(nextCase.get(), cases);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("  %d cases, %.0f cases/s%n", done, done / seconds);
+        }
+        return new Result(casesRun.get(), keystrokes.get(), System.nanoTime() - start, failure.get());
+    }
+
+    /**
+     * Generate the keystrokes of a case
+     * Digits are most frequent so that operands of all lengths appear
+     * @param seed The seed of the run
+     * @param index The index of the case
+     * @param keys Buffer of at least MAX_KEYS keys to write into
+     * @return The number of keystrokes
+     */
+    static int generate(long seed, long index, char[] keys) {
+        SplittableRandom random = new SplittableRandom(seed ^ index * 0x9E3779B97F4A7C15L);
+        int length = 1 + random.nextInt(MAX_KEYS);
+        for (int i = 0; i < length; i++) {
+            int kind = random.nextInt(100);
+            if (kind < 55) {
+                keys[i] = (char) ('0' + random.nextInt(10));
+            } else if (kind < 60) {
+                keys[i] = '.';
+            } else if (kind < 80) {
+                keys[i] = "+-*/".charAt(random.nextInt(4));
+            } else if (kind < 92) {
+                keys[i] = '=';
+            } else if (kind < 96) {
+                keys[i] = InputHandler.KEY_CLEAR_ENTRY;
+            } else {
+                keys[i] = InputHandler.KEY_CLEAR;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Run keystrokes through InputHandler and the reference model
+     * Every display after a single keystroke is compared, and so is the display after
+     * the whole sequence as one burst. An exception from either side is a mismatch too
+     * @param keys The keystrokes
+     * @param length The number of keystrokes
+     * @return A description of the first mismatch, or null if there is none
+     */
+    static String check(char[] keys, int length) {
+        InputHandler inputHandler = new InputHandler(new CalculationLogic());
+        ReferenceCalculator reference = new ReferenceCalculator();
+        String actual = "0";
+        int i = 0;
+        try {
+            for (; i < length; i++) {
+                actual = inputHandler.processInput(keys[i]);
+                String expected = reference.processInput(keys[i]);
+                if (!actual.equals(expected)) {
+                    return "after key " + (i + 1) + " expected \"" + expected + "\" but was \"" + actual + "\"";
+                }
+            }
+            String burst = new InputHandler(new CalculationLogic()).processInputs(new String(keys, 0, length));
+            if (!burst.equals(actual)) {
+                return "as one burst expected \"" + actual + "\" but was \"" + burst + "\"";
+            }
+        } catch (RuntimeException e) {
+            return (i < length ? "after key " + (i + 1) : "as one burst") + " threw " + e;
+        }
+        return null;
+    }
+
+    /**
+     * Shrink a failing case by removing keystrokes while it still fails, in chunks
+     * from half the sequence down to single keystrokes
+     * @param index The index of the case
+     * @param keys The failing keystrokes
+     * @return The failure with the shortest sequence found
+     */
+    static Failure shrink(long index, char[] keys) {
+        for (int chunk = keys.length / 2; chunk >= 1; chunk /= 2) {
+            int start = 0;
+            while (start + chunk <= keys.length) {
+                char[] candidate = new char[keys.length - chunk];
+                System.arraycopy(keys, 0, candidate, 0, start);
+                System.arraycopy(keys, start + chunk, candidate, start, candidate.length - start);
+                if (check(candidate, candidate.length) != null) {
+                    keys = candidate;
+                } else {
+                    start += chunk;
+                }
+            }
+        }
+        return new Failure(index, keys, check(keys, keys.length));
+    }
+
+    /**
+     * Name a keystroke as it appears on its button
+     * @param key The keystroke
+     * @return The button label
+     */
+    private static String label(char key) {
+        if (key == InputHandler.KEY_CLEAR_ENTRY) {
+            return "CE";
+        }
+        return String.valueOf(key);
+    }
+
+    /**
+     * The outcome of a run
+     */
+    static final class Result {
+        private final long cases;
+        private final long keystrokes;
+        private final long nanos;
+        private final Failure failure;
+
+        Result(long cases, long keystrokes, long nanos, Failure failure) {
+            this.cases = cases;
+            this.keystrokes = keystrokes;
+            this.nanos = nanos;
+            this.failure = failure;
+        }
+
+        /**
+         * Get the failure found
+         * @return The failure, or null if every case passed
+         */
+        Failure failure() {
+            return failure;
+        }
+
+        /**
+         * Get the number of cases run
+         * @return The number of cases the workers ran
+         */
+        long cases() {
+            return cases;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = nanos / 1e9;
+            String summary = String.format("%d cases, %d keystrokes in %.1f s: %.0f cases/s, %.0f keystrokes/s",
+                cases, keystrokes, seconds, cases / seconds, keystrokes / seconds);
+            return failure == null ? summary + ", no mismatches" : summary + "\n" + failure;
+        }
+    }
+
+    /**
+     * A failing case, shrunk
+     */
+    static final class Failure {
+        private final long index;
+        private final char[] keys;
+        private final String mismatch;
+
+        Failure(long index, char[] keys, String mismatch) {
+            this.index = index;
+            this.keys = keys;
+            this.mismatch = mismatch;
+        }
+
+        /**
+         * Get the shrunk keystrokes
+         * @return The keystrokes
+         */
+        char[] keys() {
+            return keys.clone();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder labels = new StringBuilder();
+            for (char key : keys) {
+                labels.append(labels.length() > 0 ? " " : "").append(label(key));
+            }
+            return "Mismatch in case " + index + ", shrunk to [" + labels + "]: " + mismatch;
+        }
+    }
+
+    /**
+     * Reference model of the calculator keystroke rules
+     * Kept deliberately simple and separate from InputHandler: the entry is the display
+     * string, and results are calculated with BigDecimal or plain double arithmetic and
+     * rounded with BigDecimal
+     */
+    static final class ReferenceCalculator {
+        private static final BigDecimal MAX_DISPLAY_VALUE = new BigDecimal("1e15");
+        private static final BigDecimal MAX_EXACT_MANTISSA = BigDecimal.valueOf(Long.MAX_VALUE);
+
+        private String entry = "0";
+        private BigDecimal firstOperand = BigDecimal.ZERO;
+        private char operator;
+        private boolean startNewInput = true;
+        private boolean hasResult;
+        private boolean errorState;
+
+        /**
+         * Process a keystroke
+         * @param key The keystroke, as for InputHandler.processInput(char)
+         * @return The string to display
+         */
+        String processInput(char key) {
+            if (errorState) {
+                clearAll();
+            }
+            if (key >= '0' && key <= '9' || key == '.') {
+                type(key);
+            } else if (key == '+' || key == '-' || key == '*' || key == '/') {
+                if (operator != 0 && !startNewInput) {
+                    calculateResult();
+                }
+                if (!errorState) {
+                    firstOperand = new BigDecimal(entry);
+                    operator = key;
+                    startNewInput = true;
+                    hasResult = false;
+                }
+            } else if (key == '=') {
+                calculateResult();
+            } else if (key == InputHandler.KEY_CLEAR) {
+                clearAll();
+            } else if (key == InputHandler.KEY_CLEAR_ENTRY && !startNewInput) {
+                entry = "0";
+            }
+            return errorState ? "Error" : entry;
+        }
+
+        /**
+         * Type a digit or the decimal point into the entry
+         */
+        private void type(char key) {
+            if (startNewInput || hasResult) {
+                entry = "0";
+                startNewInput = false;
+                hasResult = false;
+            }
+            if (key == '.' && entry.contains(".") || entry.length() >= 15) {
+                return;
+            }
+            entry = entry.equals("0") && key != '.' ? String.valueOf(key) : entry + key;
+        }
+
+        /**
+         * Calculate the pending operation, if an operand has been typed for it
+         */
+        private void calculateResult() {
+            if (operator == 0 || startNewInput) {
+                return;
+            }
+            BigDecimal second = new BigDecimal(entry);
+            BigDecimal exact = exactResult(firstOperand, second);
+            String result;
+            if (exact != null) {
+                result = display(exact, exact.signum() < 0);
+            } else {
+                double a = firstOperand.doubleValue();
+                double b = second.doubleValue();
+                double value;
+                switch (operator) {
+                    case '+':
+                        value = a + b;
+                        break;
+                    case '-':
+                        value = a - b;
+                        break;
+                    case '*':
+                        value = a * b;
+                        break;
+                    default:
+                        value = b == 0 ? Double.NaN : a / b;
+                }
+                if (!Double.isFinite(value)) {
+                    result = null;
+                } else if (value == (long) value) {
+                    result = display(BigDecimal.valueOf((long) value), false);
+                } else {
+                    // The shortest decimal that converts back to the double
+                    result = display(new BigDecimal(Double.toString(value)), value < 0);
+                }
+            }
+            operator = 0;
+            startNewInput = true;
+            if (result == null) {
+                errorState = true;
+            } else {
+                entry = result;
+                hasResult = true;
+            }
+        }
+
+        /**
+         * Calculate a sum, difference or product exactly, if its unscaled value and
+         * those of the aligned operands fit a long and it has at most 18 decimals
+         * @return The exact result, or null if it must be calculated with doubles
+         */
+        private BigDecimal exactResult(BigDecimal a, BigDecimal b) {
+            if (operator == '/') {
+                return null;
+            }
+            if (operator == '*') {
+                BigDecimal product = a.multiply(b);
+                return fits(product) ? product : null;
+            }
+            int scale = Math.max(a.scale(), b.scale());
+            BigDecimal alignedA = a.setScale(scale);
+            BigDecimal alignedB = b.setScale(scale);
+            BigDecimal result = operator == '+' ? alignedA.add(alignedB) : alignedA.subtract(alignedB);
+            return fits(alignedA) && fits(alignedB) && fits(result) ? result : null;
+        }
+
+        private static boolean fits(BigDecimal value) {
+            return value.scale() < 19 && new BigDecimal(value.unscaledValue().abs()).compareTo(MAX_EXACT_MANTISSA) <= 0;
+        }
+
+        /**
+         * Round a result to 10 decimals, half-up, without trailing zeros
+         * @param value The result
+         * @param negative Whether the result is negative, so that a result that
+         *        rounds to zero is shown as "-0"
+         * @return The display, or null if the result is larger than 1e15
+         */
+        private static String display(BigDecimal value, boolean negative) {
+            if (value.abs().compareTo(MAX_DISPLAY_VALUE) > 0) {
+                return null;
+            }
+            if (value.scale() > 10) {
+                value = value.setScale(10, RoundingMode.HALF_UP);
+            }
+            String display = value.stripTrailingZeros().toPlainString();
+            return negative && value.signum() == 0 ? "-0" : display;
+        }
+
+        private void clearAll() {
+            entry = "0";
+            firstOperand = BigDecimal.ZERO;
+            operator = 0;
+            startNewInput = true;
+            hasResult = false;
+            errorState = false;
+        }
+    }
+}
@@ -0,0 +1,1446 @@
+package DoAn;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+public class CalculatorTest {
+    
+    /**
+     * Main method to run tests
+     */
+    public static void main(String[] args) {
+        System.out.println("Running Calculator Tests...");
+        
+        // Create instances for testing
+        CalculationLogic calculationLogic = new CalculationLogic();
+        InputHandler inputHandler = new InputHandler(calculationLogic);
+        
+        // Test basic operations
+        testAddition(calculationLogic);
+        testSubtraction(calculationLogic);
+        testMultiplication(calculationLogic);
+        testDivision(calculationLogic);
+        
+        // Test typed operators
+        testOperators();
+        
+        // Test bulk calculation
+        testBulkCalculation(calculationLogic);
+        
+        // Test expression parsing and evaluation
+        testExpressions(calculationLogic);
+        testExpressionCache(calculationLogic);
+        
+        // Test input handling
+        testInputHandling(inputHandler);
+        
+        // Test exact decimal arithmetic
+        testDecimalArithmetic(inputHandler);
+        
+        // Test undo, redo and forked sessions
+        testUndoRedo(calculationLogic);
+        
+        // Test keystroke bursts such as pasted text
+        testKeystrokeBursts(calculationLogic);
+        
+        // Test memory registers, private and shared
+        testMemory(calculationLogic);
+        
+        // Test the reactive keystroke pipeline
+        testKeystrokePipeline(calculationLogic);
+        
+        // Test binary keystroke recording and replay
+        testKeystrokeRecording(calculationLogic);
+        
+        // Test random keystroke sequences against the reference model
+        testDifferential();
+        
+        // Test arbitrary precision mode
+        testPrecisionMode(calculationLogic);
+        
+        // Test scientific functions in both accuracy modes
+        testScientificFunctions(calculationLogic);
+        
+        // Test aggregate statistics
+        testStatistics(calculationLogic);
+        
+        // Test result formatting
+        testResultFormatting(inputHandler);
+        
+        // Test error cases
+        testErrorCases(calculationLogic, inputHandler);
+        
+        // Test allocation budget of the keystroke path
+        testAllocationBudget(inputHandler);
+        
+        // Test the headless server over loopback
+        testServer();
+        
+        // Test the headless command line
+        testHeadlessMain();
+        
+        // Test parallel batch evaluation
+        testBatchEvaluator();
+        
+        // Test the persistent calculation history
+        testCalculationHistory();
+        
+        // Test metrics, recorded when run with -Dcalculator.metrics=true
+        testMetrics();
+        
+        System.out.println("All tests completed.");
+    }
+    
+    /**
+     * Test addition operation
+     */
+    private static void testAddition(CalculationLogic calculationLogic) {
+        System.out.println("Testing Addition...");
+        
+        // Test cases
+        assert calculationLogic.calculate(5, 3, "+") == 8 : "5 + 3 should equal 8";
+        assert calculationLogic.calculate(-5, 3, "+") == -2 : "-5 + 3 should equal -2";
+        assert calculationLogic.calculate(0, 0, "+") == 0 : "0 + 0 should equal 0";
+        
+        System.out.println("Addition tests passed.");
+    }
+    
+    /**
+     * Test subtraction operation
+     */
+    private static void testSubtraction(CalculationLogic calculationLogic) {
+        System.out.println("Testing Subtraction...");
+        
+        // Test cases
+        assert calculationLogic.calculate(5, 3, "-") == 2 : "5 - 3 should equal 2";
+        assert calculationLogic.calculate(-5, 3, "-") == -8 : "-5 - 3 should equal -8";
+        assert calculationLogic.calculate(0, 0, "-") == 0 : "0 - 0 should equal 0";
+        
+        System.out.println("Subtraction tests passed.");
+    }
+    
+    /**
+     * Test multiplication operation
+     */
+    private static void testMultiplication(CalculationLogic calculationLogic) {
+        System.out.println("Testing Multiplication...");
+        
+        // Test cases
+        assert calculationLogic.calculate(5, 3, "*") == 15 : "5 * 3 should equal 15";
+        assert calculationLogic.calculate(-5, 3, "*") == -15 : "-5 * 3 should equal -15";
+        assert calculationLogic.calculate(0, 5, "*") == 0 : "0 * 5 should equal 0";
+        assert calculationLogic.calculate(123456789, 987654321, "*") == 121932631112635269.0 : "Large whole products should be rounded once";
+        
+        // Products near the limit are still checked
+        assert calculationLogic.calculate(Double.MAX_VALUE / 2, 2, "*") == Double.MAX_VALUE : "MAX / 2 * 2 should equal MAX";
+        assert calculationLogic.calculate(-0x1p1000, 0x1p23, "*") == -0x1p1023 : "-2^1000 * 2^23 should equal -2^1023";
+        try {
+            calculationLogic.calculate(Double.MAX_VALUE / 2, Math.nextUp(2.0), "*");
+            assert false : "Product above MAX should throw";
+        } catch (ArithmeticException e) {
+            assert e.getMessage().equals("Overflow error") : "Expected overflow error";
+        }
+        
+        System.out.println("Multiplication tests passed.");
+    }
+    
+    /**
+     * Test division operation
+     */
+    private static void testDivision(CalculationLogic calculationLogic) {
+        System.out.println("Testing Division...");
+        
+        // Test cases
+        assert calculationLogic.calculate(6, 3, "/") == 2 : "6 / 3 should equal 2";
+        assert calculationLogic.calculate(-6, 3, "/") == -2 : "-6 / 3 should equal -2";
+        assert calculationLogic.calculate(0, 5, "/") == 0 : "0 / 5 should equal 0";
+        
+        System.out.println("Division tests passed.");
+    }
+    
+    /**
+     * Test Operator dispatch and the operator registry
+     */
+    private static void testOperators() {
+        System.out.println("Testing Operators...");
+        
+        OperatorRegistry registry = new OperatorRegistry();
+        registry.register('x', Operator.MULTIPLY);
+        CalculationLogic calculationLogic = new CalculationLogic(registry);
+        
+        // Test cases
+        assert calculationLogic.calculate(5, 3, Operator.SUBTRACT) == 2 : "5 SUBTRACT 3 should equal 2";
+        assert calculationLogic.calculate(6, 3, Operator.DIVIDE) == 2 : "6 DIVIDE 3 should equal 2";
+        assert calculationLogic.calculate(5, 3, "x") == 15 : "5 x 3 should equal 15";
+        assert calculationLogic.calculate(5, 3, "?") == 3 : "Unknown operators should return the second operand";
+        assert registry.lookup('/') == Operator.DIVIDE : "'/' should be DIVIDE";
+        assert registry.lookup('=') == null : "'=' should not be an operator";
+        
+        InputHandler inputHandler = new InputHandler(calculationLogic);
+        inputHandler.processInput("4");
+        inputHandler.processInput("x");
+        inputHandler.processInput("2");
+        assert inputHandler.processInput("=").equals("8") : "4 x 2 should equal 8";
+        
+        System.out.println("Operator tests passed.");
+    }
+    
+    /**
+     * Test bulk calculation on operand arrays
+     */
+    private static void testBulkCalculation(CalculationLogic calculationLogic) {
+        System.out.println("Testing Bulk Calculation...");
+        
+        double[] first = {5, -5, Double.MAX_VALUE, 6, 1.5};
+        double[] second = {3, 3, Double.MAX_VALUE, 0, 0.5};
+        double[] results = new double[first.length];
+        int[] failedIndices = new int[first.length];
+        
+        // Test cases
+        int failures = calculationLogic.calculate(first, second, Operator.ADD, results, failedIndices);
+        assert failures == 1 && failedIndices[0] == 2 : "Only MAX + MAX should overflow";
+        assert results[0] == 8 && results[1] == -2 && results[4] == 2 : "Sums should match calculate";
+        assert Double.isNaN(results[2]) : "Failed results should be NaN";
+        
+        failures = calculationLogic.calculate(first, second, Operator.DIVIDE, results, failedIndices);
+        assert failures == 1 && failedIndices[0] == 3 : "Only 6 / 0 should fail";
+        assert results[4] == 3 : "1.5 / 0.5 should equal 3";
+        
+        Operator[] operators = {Operator.MULTIPLY, Operator.MULTIPLY, Operator.MULTIPLY, Operator.DIVIDE, Operator.SUBTRACT};
+        failures = calculationLogic.calculate(first, second, operators, results, failedIndices);
+        assert failures == 2 && failedIndices[0] == 2 && failedIndices[1] == 3 : "MAX * MAX and 6 / 0 should fail";
+        assert results[0] == 15 && results[1] == -15 && results[4] == 1 : "Mixed results should match calculate";
+        
+        System.out.println("Bulk calculation tests passed.");
+    }
+    
+    /**
+     * Test expression parsing and evaluation
+     */
+    private static void testExpressions(CalculationLogic calculationLogic) {
+        System.out.println("Testing Expressions...");
+        
+        // Test cases
+        assert CompiledExpression.compile("3+4*(2-1)/5", calculationLogic).evaluate() == 3.8 : "3+4*(2-1)/5 should equal 3.8";
+        assert CompiledExpression.compile("10 - 4 - 3", calculationLogic).evaluate() == 3 : "Subtraction should be left associative";
+        assert CompiledExpression.compile("-(2+3)*-2", calculationLogic).evaluate() == 10 : "-(2+3)*-2 should equal 10";
+        assert CompiledExpression.compile("3+4*(2-1)/5", calculationLogic).toString().equals("(3+((4*(2-1))/5))") : "Text should be normalized";
+        
+        CompiledExpression expression = CompiledExpression.compile("price * (1 + rate) - price", calculationLogic);
+        assert expression.getVariableCount() == 2 : "price and rate should have one slot each";
+        double[] variables = new double[2];
+        variables[expression.getVariableSlot("price")] = 200;
+        variables[expression.getVariableSlot("rate")] = 0.5;
+        assert expression.evaluate(variables) == 100 : "200 * 1.5 - 200 should equal 100";
+        
+        try {
+            CompiledExpression.compile("1/(2-2)", calculationLogic).evaluate();
+            assert false : "Division by zero should throw";
+        } catch (ArithmeticException e) {
+            // Expected
+        }
+        try {
+            CompiledExpression.compile("3+*4", calculationLogic);
+            assert false : "Invalid syntax should throw";
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        
+        // Nesting is limited rather than overflowing the stack
+        String nested = "(".repeat(ExpressionParser.MAX_DEPTH) + "1" + ")".repeat(ExpressionParser.MAX_DEPTH);
+        assert CompiledExpression.compile(nested, calculationLogic).evaluate() == 1 : "Nesting up to the limit should parse";
+        assert CompiledExpression.compile("-".repeat(ExpressionParser.MAX_DEPTH) + "1", calculationLogic).evaluate() == 1
+            : "An even number of signs should cancel";
+        String chain = "1" + "+1".repeat(ExpressionParser.MAX_DEPTH);
+        assert CompiledExpression.compile(chain, calculationLogic).evaluate() == ExpressionParser.MAX_DEPTH + 1
+            : "A chain up to the limit should parse";
+        for (String deep : new String[] {"(".repeat(100_000) + "1" + ")".repeat(100_000), "-".repeat(100_000) + "1",
+                                         "1" + "+1".repeat(20_000), "2" + "*2-1".repeat(10_000)}) {
+            try {
+                CompiledExpression.compile(deep, calculationLogic);
+                assert false : "Nesting past the limit should throw";
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        try {
+            new ExpressionCache(calculationLogic, 1, 10).get("1" + "+1".repeat(20_000));
+            assert false : "A long chain should be rejected by the cache";
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        
+        System.out.println("Expression tests passed.");
+    }
+    
+    /**
+     * Test the compiled expression cache
+     */
+    private static void testExpressionCache(CalculationLogic calculationLogic) {
+        System.out.println("Testing Expression Cache...");
+        
+        ExpressionCache cache = new ExpressionCache(calculationLogic, 2, 1000);
+        
+        // Test cases
+        CompiledExpression first = cache.get("1 + 2");
+        assert cache.get("1+2") == first : "Whitespace should not matter";
+        assert cache.get(" 1 +2 ") == first : "Whitespace should not matter";
+        assert cache.hitCount() == 2 && cache.missCount() == 1 : "Expected 2 hits and 1 miss";
+        assert ExpressionCache.normalize("1 2").equals("1 2") : "Space between digits is significant";
+        
+        cache.get("2*3");
+        cache.get("4/5");
+        assert cache.size() == 2 && cache.evictionCount() == 1 : "Size bound should evict one entry";
+        assert cache.get("1+2") == first : "Recently used entry should survive eviction";
+        
+        ExpressionCache small = new ExpressionCache(calculationLogic, 100, 10);
+        small.get("1+2+3+4");
+        small.get("5+6+7+8");
+        assert small.weight() <= 10 : "Weight bound should hold";
+        
+        System.out.println("Expression cache tests passed.");
+    }
+    
+    /**
+     * Test input handling
+     */
+    private static void testInputHandling(InputHandler inputHandler) {
+        System.out.println("Testing Input Handling...");
+        
+        // Reset input handler state
+        inputHandler.processInput("C");
+        
+        // Test numeric input
+        assert inputHandler.processInput("5").equals("5") : "Input '5' should display '5'";
+        assert inputHandler.processInput(".").equals("5.") : "Input '.' after '5' should display '5.'";
+        
+        // Test operator input
+        inputHandler.processInput("+");
+        assert inputHandler.processInput("3").equals("3") : "Input '3' after '+' should display '3'";
+        
+        // Test equals
+        assert inputHandler.processInput("=").equals("8") : "5 + 3 should equal 8";
+        
+        // Test clear
+        assert inputHandler.processInput("C").equals("0") : "Clear should display '0'";
+        
+        System.out.println("Input handling tests passed.");
+    }
+    
+    /**
+     * Test exact decimal arithmetic on typed operands
+     */
+    private static void testDecimalArithmetic(InputHandler inputHandler) {
+        System.out.println("Testing Decimal Arithmetic...");
+        
+        // Typed decimals keep their zeros
+        inputHandler.processInput("C");
+        inputHandler.processInput(".");
+        inputHandler.processInput("0");
+        assert inputHandler.processInput("5").equals("0.05") : "'.05' should display '0.05'";
+        
+        // Test cases
+        assert enter(inputHandler, "0.1+0.2=").equals("0.3") : "0.1 + 0.2 should equal 0.3";
+        assert enter(inputHandler, "0.3-0.1=").equals("0.2") : "0.3 - 0.1 should equal 0.2";
+        assert enter(inputHandler, "1.1*1.1=").equals("1.21") : "1.1 * 1.1 should equal 1.21";
+        assert enter(inputHandler, "0.835*2.45154479=").equals("2.0470398997") : "Exact product should round half-up";
+        assert enter(inputHandler, "1/3=").equals("0.3333333333") : "1 / 3 should have 10 decimals";
+        
+        System.out.println("Decimal arithmetic tests passed.");
+    }
+    
+    /**
+     * Clear the input handler and type a sequence of keys
+     * @return The final display
+     */
+    private static String enter(InputHandler inputHandler, String keys) {
+        String display = inputHandler.processInput("C");
+        for (char key : keys.toCharArray()) {
+            display = inputHandler.processInput(key);
+        }
+        return display;
+    }
+    
+    /**
+     * Test undo and redo with state snapshots, and forking sessions
+     */
+    private static void testUndoRedo(CalculationLogic calculationLogic) {
+        System.out.println("Testing Undo and Redo...");
+        
+        InputHandler inputHandler = new InputHandler(calculationLogic);
+        assert !inputHandler.canUndo() && inputHandler.undo().equals("0") : "Undo should do nothing while disabled";
+        inputHandler.setUndoEnabled(true);
+        
+        // Test cases
+        enter(inputHandler, "12+3");
+        assert inputHandler.undo().equals("12") : "Undo should remove the 3";
+        assert inputHandler.undo().equals("12") : "Undo should remove the +";
+        assert inputHandler.processInput('*').equals("12") && inputHandler.processInput('2').equals("2") : "The new operator should apply";
+        assert inputHandler.processInput('=').equals("24") : "12 * 2 should equal 24";
+        assert !inputHandler.canRedo() : "A keystroke should drop the redo history";
+        assert inputHandler.undo().equals("2") && inputHandler.undo().equals("12") : "Undo should step back through the keystrokes";
+        assert inputHandler.redo().equals("2") && inputHandler.redo().equals("24") : "Redo should step forward again";
+        
+        // Keystrokes that change nothing are not kept
+        InputHandler.State before = inputHandler.snapshot();
+        inputHandler.processInput('=');
+        inputHandler.processInput('=');
+        assert inputHandler.snapshot() == before : "Unchanged state should not add a snapshot";
+        
+        // Errors can be undone
+        assert enter(inputHandler, "5/0=").equals("Error") : "5 / 0 should display Error";
+        assert inputHandler.undo().equals("0") : "Undo should go back before the error";
+        assert inputHandler.processInput('4').equals("4") && inputHandler.processInput('=').equals("1.25") : "5 / 4 should equal 1.25";
+        
+        // Forks share history but not state
+        InputHandler fork = inputHandler.fork();
+        assert fork.processInput('+').equals("1.25") && enter(fork, "7*7=").equals("49") : "Fork should calculate on its own";
+        assert inputHandler.processInput('=').equals("1.25") : "Original should be unaffected by the fork";
+        assert fork.undo().equals("7") && inputHandler.undo().equals("4") : "Each should undo its own keystrokes";
+        
+        // Restoring a snapshot from a long session
+        InputHandler.State branch = inputHandler.snapshot();
+        for (int i = 0; i < 100_000; i++) {
+            inputHandler.processInput((char) ('0' + i % 10));
+            inputHandler.processInput('+');
+        }
+        assert inputHandler.restore(branch).equals("4") : "Restore should return to the branch point";
+        assert inputHandler.processInput('=').equals("1.25") : "Restored state should calculate as before";
+        
+        System.out.println("Undo and redo tests passed.");
+    }
+    
+    /**
+     * Test processing a burst of keystrokes in one pass
+     */
+    private static void testKeystrokeBursts(CalculationLogic calculationLogic) {
+        System.out.println("Testing Keystroke Bursts...");
+        
+        // Test cases, each must match typing the keys one at a time
+        String[] bursts = {"", "12+3", "12+34=*2=", "0.1+0.2=", "5/0=", "5/0=7+1=", "1..5*2=", "99\b4+", "7+C3=", "123456789012345678"};
+        for (String burst : bursts) {
+            InputHandler inputHandler = new InputHandler(calculationLogic);
+            String expected = enter(inputHandler, burst);
+            inputHandler.processInput("C");
+            assert inputHandler.processInputs(burst).equals(expected) : "Burst " + burst + " should display " + expected;
+        }
+        
+        // Whitespace is skipped, and the burst continues the current state
+        InputHandler inputHandler = new InputHandler(calculationLogic);
+        enter(inputHandler, "10+");
+        assert inputHandler.processInputs(" 5 \n* 2\t=").equals("30") : "10 + 5 * 2 should equal 30";
+        
+        // A burst is a single undo step
+        inputHandler.setUndoEnabled(true);
+        assert inputHandler.processInputs("+1+2+3=").equals("36") : "30 + 1 + 2 + 3 should equal 36";
+        assert inputHandler.undo().equals("30") && !inputHandler.canUndo() : "Undo should revert the whole burst";
+        
+        // A long paste
+        StringBuilder sum = new StringBuilder("0");
+        for (int i = 0; i < 100_000; i++) {
+            sum.append("+1");
+        }
+        assert inputHandler.processInputs(sum.append('=')).equals("100000") : "100000 ones should sum to 100000";
+        
+        System.out.println("Keystroke burst tests passed.");
+    }
+    
+    /**
+     * Test the memory keys with private and shared memory banks
+     */
+    private static void testMemory(CalculationLogic calculationLogic) {
+        System.out.println("Testing Memory Registers...");
+        
+        // Test cases: P is M+, N is M-, R is MR and Z is MC
+        InputHandler inputHandler = new InputHandler(calculationLogic);
+        assert enter(inputHandler, "5P3PR").equals("8") : "5 M+ 3 M+ MR should equal 8";
+        assert enter(inputHandler, "2NR").equals("6") : "Memory minus 2 should equal 6";
+        assert enter(inputHandler, "5+R=").equals("11") : "5 + MR should equal 11";
+        assert enter(inputHandler, "7P2").equals("2") : "A digit after M+ should start a new number";
+        assert enter(inputHandler, "4+3P=").equals("7") && enter(inputHandler, "R").equals("16") : "M+ should not cancel a pending operation";
+        assert enter(inputHandler, "ZR").equals("0") : "MC should clear memory";
+        assert inputHandler.processInput("M+").equals("0") && inputHandler.processInput("MR").equals("0") : "Button labels should work";
+        
+        // Memory is exact decimal arithmetic
+        assert enter(inputHandler, "Z.1P.1P.1PR").equals("0.3") : "0.1 M+ three times should recall 0.3";
+        assert enter(inputHandler, "Z1/3=P.1PR").equals("0.4333333333") : "Recall should round like a result";
+        
+        // A fork copies private memory
+        InputHandler fork = inputHandler.fork();
+        enter(fork, "Z9P");
+        assert enter(inputHandler, "R").equals("0.4333333333") : "A fork should not change private memory";
+        
+        // Sessions using a shared register add to the same memory
+        MemoryBank.Shared shared = new MemoryBank.Shared(2, 8);
+        InputHandler first = new InputHandler(calculationLogic);
+        InputHandler second = new InputHandler(calculationLogic);
+        first.setMemory(shared, 1);
+        second.setMemory(shared, 1);
+        enter(first, "12P");
+        enter(second, "30P");
+        assert enter(first, "R").equals("42") && shared.recall(0).signum() == 0 : "Shared register should hold 42";
+        
+        // Concurrent sessions adding and taking back a value never show a value
+        // outside the range it can have at one instant
+        shared.clear(1);
+        int threads = 4;
+        int rounds = 20_000;
+        BigDecimal step = new BigDecimal("0.1");
+        BigDecimal limit = step.multiply(BigDecimal.valueOf(threads));
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                for (int j = 0; j < rounds; j++) {
+                    shared.add(1, step);
+                    shared.add(0, step);
+                    shared.add(1, step.negate());
+                }
+            });
+            workers[i].start();
+        }
+        boolean consistent = true;
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                BigDecimal value = shared.recall(1);
+                consistent &= value.signum() >= 0 && value.compareTo(limit) <= 0;
+            }
+        }
+        assert consistent : "Recall should read a consistent snapshot";
+        assert shared.recall(1).signum() == 0 : "Additions taken back should leave zero";
+        assert shared.recall(0).compareTo(step.multiply(BigDecimal.valueOf(threads * rounds))) == 0 : "Concurrent additions should be exact";
+        
+        try {
+            inputHandler.setMemory(shared, 2);
+            assert false : "A missing register should be rejected";
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+        
+        System.out.println("Memory register tests passed.");
+    }
+    
+    /**
+     * Test keystrokes published through a KeystrokeProcessor to a slow subscriber
+     */
+    private static void testKeystrokePipeline(CalculationLogic calculationLogic) {
+        System.out.println("Testing Keystroke Pipeline...");
+        
+        String keys = "12+34=*2=C7/4=";
+        int repeats = 2_000;
+        InputHandler reference = new InputHandler(calculationLogic);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < repeats; i++) {
+            for (int j = 0; j < keys.length(); j++) {
+                expected.add(reference.processInput(keys.charAt(j)));
+            }
+        }
+        String last = expected.get(expected.size() - 1);
+        
+        // A slow subscriber gets every display, in batches
+        List<KeystrokeProcessor.DisplayBatch> batches = publishSlowly(
+            new KeystrokeProcessor(new InputHandler(calculationLogic)), keys, repeats);
+        List<String> displays = new ArrayList<>();
+        for (KeystrokeProcessor.DisplayBatch batch : batches) {
+            assert batch.keystrokes() == displays.size() + batch.displays().size() : "Batch should follow the previous one";
+            displays.addAll(batch.displays());
+        }
+        assert displays.equals(expected) : "Every display should be delivered in order";
+        assert batches.size() < expected.size() : "Displays should be batched for a slow subscriber";
+        
+        // In CONFLATED mode it gets the latest display
+        batches = publishSlowly(new KeystrokeProcessor(new InputHandler(calculationLogic), ForkJoinPool.commonPool(),
+            KeystrokeProcessor.Mode.CONFLATED), keys, repeats);
+        KeystrokeProcessor.DisplayBatch lastBatch = batches.get(batches.size() - 1);
+        assert lastBatch.keystrokes() == expected.size() && lastBatch.lastDisplay().equals(last) : "Last event should show " + last;
+        assert batches.size() < expected.size() : "Displays should be coalesced for a slow subscriber";
+        for (int i = 1; i < batches.size(); i++) {
+            assert batches.get(i).displays().size() == 1 : "Conflated events should hold one display";
+            assert batches.get(i).keystrokes() > batches.get(i - 1).keystrokes() : "Events should be in keystroke order";
+        }
+        
+        // Upstream demand is bounded by what the subscriber has taken
+        long[] upstreamDemand = new long[1];
+        List<KeystrokeProcessor.DisplayBatch> taken = new ArrayList<>();
+        Flow.Subscription[] downstream = new Flow.Subscription[1];
+        KeystrokeProcessor processor = new KeystrokeProcessor(new InputHandler(calculationLogic), Runnable::run,
+            KeystrokeProcessor.Mode.BATCHED);
+        processor.subscribe(new Flow.Subscriber<KeystrokeProcessor.DisplayBatch>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                downstream[0] = subscription;
+            }
+            
+            @Override
+            public void onNext(KeystrokeProcessor.DisplayBatch batch) {
+                taken.add(batch);
+            }
+            
+            @Override
+            public void onError(Throwable throwable) {
+                throw new AssertionError("Pipeline should not fail", throwable);
+            }
+            
+            @Override
+            public void onComplete() {
+            }
+        });
+        processor.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                upstreamDemand[0] += n;
+            }
+            
+            @Override
+            public void cancel() {
+            }
+        });
+        long sent = 0;
+        for (int round = 0; round < 3; round++) {
+            while (sent < upstreamDemand[0]) {
+                processor.onNext('1');
+                sent++;
+            }
+            assert upstreamDemand[0] == (round + 1) * (long) KeystrokeProcessor.CAPACITY
+                : "Upstream demand should wait for the subscriber, was " + upstreamDemand[0];
+            downstream[0].request(1);
+            assert taken.size() == round + 1 && taken.get(round).displays().size() == KeystrokeProcessor.CAPACITY
+                : "One request should take every waiting display";
+        }
+        
+        // Only one subscriber
+        Throwable[] rejected = new Throwable[1];
+        processor.subscribe(new Flow.Subscriber<KeystrokeProcessor.DisplayBatch>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+            }
+            
+            @Override
+            public void onNext(KeystrokeProcessor.DisplayBatch batch) {
+            }
+            
+            @Override
+            public void onError(Throwable throwable) {
+                rejected[0] = throwable;
+            }
+            
+            @Override
+            public void onComplete() {
+            }
+        });
+        assert rejected[0] instanceof IllegalStateException : "A second subscriber should be rejected";
+        
+        System.out.println("Keystroke pipeline tests passed.");
+    }
+    
+    /**
+     * Publish keystrokes at full rate to a processor whose subscriber takes one event
+     * at a time, slowly
+     * @param processor The processor
+     * @param keys The keystrokes
+     * @param repeats The number of times to publish them
+     * @return The events the subscriber received
+     */
+    private static List<KeystrokeProcessor.DisplayBatch> publishSlowly(KeystrokeProcessor processor, String keys, int repeats) {
+        List<KeystrokeProcessor.DisplayBatch> batches = new ArrayList<>();
+        CountDownLatch completed = new CountDownLatch(1);
+        processor.subscribe(new Flow.Subscriber<KeystrokeProcessor.DisplayBatch>() {
+            private Flow.Subscription subscription;
+            
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+            
+            @Override
+            public void onNext(KeystrokeProcessor.DisplayBatch batch) {
+                batches.add(batch);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                subscription.request(1);
+            }
+            
+            @Override
+            public void onError(Throwable throwable) {
+                throw new AssertionError("Pipeline should not fail", throwable);
+            }
+            
+            @Override
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+        try (SubmissionPublisher<Character> publisher = new SubmissionPublisher<>()) {
+            publisher.subscribe(processor);
+            for (int i = 0; i < repeats; i++) {
+                for (int j = 0; j < keys.length(); j++) {
+                    publisher.submit(keys.charAt(j));
+                }
+            }
+        }
+        try {
+            assert completed.await(30, TimeUnit.SECONDS) : "Pipeline should complete";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return batches;
+    }
+    
+    /**
+     * Test recording keystrokes and replaying them into a new session
+     */
+    private static void testKeystrokeRecording(CalculationLogic calculationLogic) {
+        System.out.println("Testing Keystroke Recording...");
+        
+        try {
+            // Record a session the way CalculatorUI does, with every kind of key
+            String[] commands = {"1", "2", ".", "5", "+", "3", "=", "M+", "C", "4", "/", "0", "=",
+                                 "CE", "MR", "*", "2", "-", "1", "=", "M-", "MR", "MC", "MR"};
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            InputHandler session = new InputHandler(calculationLogic);
+            KeystrokeRecorder recorder = new KeystrokeRecorder(bytes);
+            long start = System.nanoTime();
+            for (int i = 0; i < commands.length; i++) {
+                recorder.record(commands[i], start + i * 5_000_000L, session.processInput(commands[i]));
+            }
+            // A paste after a long pause
+            long pasted = start + 70_000_000_000L;
+            recorder.recordBurst("7*6=", pasted, session.processInputs("7*6="));
+            String lastDisplay = session.processInput("+");
+            recorder.record("+", pasted, lastDisplay);
+            recorder.close();
+            recorder.close();
+            
+            // A byte per quick keystroke, half a byte more for the less common keys
+            int keystrokes = commands.length + 5;
+            int trailer = 8 + 8 + 2 + lastDisplay.length();
+            assert bytes.size() - 16 - trailer <= keystrokes * 3 / 2 : "Recording should be compact, was " + bytes.size() + " bytes";
+            
+            // Keys and times decode as recorded
+            KeystrokeReplayer.Recording recording = KeystrokeReplayer.read(new ByteArrayInputStream(bytes.toByteArray()));
+            assert recording.isComplete() : "Closed recording should be complete";
+            assert recording.keystrokes() == keystrokes : "Recording should have every keystroke";
+            assert recording.keys().equals("12.5+3=" + InputHandler.KEY_MEMORY_ADD + "C4/0=" + InputHandler.KEY_CLEAR_ENTRY +
+                InputHandler.KEY_MEMORY_RECALL + "*2-1=" + InputHandler.KEY_MEMORY_SUBTRACT + InputHandler.KEY_MEMORY_RECALL +
+                InputHandler.KEY_MEMORY_CLEAR + InputHandler.KEY_MEMORY_RECALL + "7*6=+") : "Keys should decode as recorded";
+            for (int i = 1; i < commands.length; i++) {
+                assert recording.millis(i) - recording.millis(i - 1) == 5 : "Keystrokes should be 5 ms apart";
+            }
+            assert recording.millis(commands.length) - recording.millis(commands.length - 1) == 70_000 - 5 * (commands.length - 1)
+                : "Long pause should be kept";
+            assert recording.lastDisplay().equals(lastDisplay) : "Recording should keep the last display";
+            
+            // Replay into a new session gives the same displays
+            KeystrokeReplayer.Result result = KeystrokeReplayer.replay(recording, new InputHandler(new CalculationLogic()), false);
+            assert result.matches() == Boolean.TRUE : "Replay should match the recorded session";
+            assert result.lastDisplay().equals(lastDisplay) : "Replay should end on the recorded display";
+            
+            // A session in another state does not
+            InputHandler other = new InputHandler(new CalculationLogic());
+            other.processInput("5");
+            assert KeystrokeReplayer.replay(recording, other, false).matches() == Boolean.FALSE : "Replay from another state should differ";
+            
+            // A recording cut short replays the keystrokes it has, unchecked
+            byte[] cut = Arrays.copyOf(bytes.toByteArray(), 16 + 6);
+            KeystrokeReplayer.Recording partial = KeystrokeReplayer.read(new ByteArrayInputStream(cut));
+            assert !partial.isComplete() : "Cut recording should not be complete";
+            assert partial.keystrokes() > 0 && partial.keystrokes() < keystrokes : "Cut recording should keep its first keystrokes";
+            assert KeystrokeReplayer.replay(partial, new InputHandler(new CalculationLogic()), false).matches() == null : "Cut recording cannot be checked";
+            
+            // Paced replay keeps the recorded time
+            bytes.reset();
+            session = new InputHandler(new CalculationLogic());
+            recorder = new KeystrokeRecorder(bytes);
+            start = System.nanoTime();
+            for (int i = 0; i < 5; i++) {
+                recorder.record("9", start + i * 10_000_000L, session.processInput("9"));
+            }
+            recorder.close();
+            recording = KeystrokeReplayer.read(new ByteArrayInputStream(bytes.toByteArray()));
+            long replayStart = System.nanoTime();
+            result = KeystrokeReplayer.replay(recording, new InputHandler(new CalculationLogic()), true);
+            long replayMillis = (System.nanoTime() - replayStart) / 1_000_000;
+            assert result.matches() == Boolean.TRUE : "Paced replay should match";
+            assert replayMillis >= recording.millis(4) : "Paced replay should take the recorded time, took " + replayMillis + " ms";
+            
+            // Inputs that are not keys are rejected
+            try {
+                recorder = new KeystrokeRecorder(new ByteArrayOutputStream());
+                recorder.record("sin", System.nanoTime(), "0");
+                assert false : "Unknown input should not be recorded";
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            try {
+                recorder.record("\u0663", System.nanoTime(), "0");
+                assert false : "Non-ASCII digit should not be recorded";
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+
+            // A burst with an invalid key writes nothing, so the recording stays readable
+            bytes.reset();
+            recorder = new KeystrokeRecorder(bytes);
+            recorder.record("1", System.nanoTime(), "1");
+            try {
+                recorder.recordBurst("2+x", System.nanoTime(), "3");
+                assert false : "Burst with an unknown key should not be recorded";
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            recorder.record("2", System.nanoTime(), "12");
+            recorder.close();
+            recording = KeystrokeReplayer.read(new ByteArrayInputStream(bytes.toByteArray()));
+            assert recording.isComplete() : "Recording after a rejected burst should be complete";
+            assert recording.keys().equals("12") : "Rejected burst should leave no keys, got " + recording.keys();
+        } catch (IOException e) {
+            throw new AssertionError("Keystroke recording test failed: " + e, e);
+        }
+        
+        System.out.println("Keystroke recording tests passed.");
+    }
+    
+    /**
+     * Test random keystroke sequences against the fuzz tester's reference model
+     */
+    private static void testDifferential() {
+        System.out.println("Testing Against Reference Model...");
+        
+        // Test cases for the reference model itself
+        CalculatorFuzzer.ReferenceCalculator reference = new CalculatorFuzzer.ReferenceCalculator();
+        String[] expected = {"0.", "0.1", "0.1", "2", "2.1"};
+        String keys = ".1+2=";
+        for (int i = 0; i < keys.length(); i++) {
+            assert reference.processInput(keys.charAt(i)).equals(expected[i]) : "Reference should display " + expected[i];
+        }
+        
+        // Cases depend only on the seed and index
+        char[] first = new char[40];
+        char[] second = new char[40];
+        int length = CalculatorFuzzer.generate(20, 12345, first);
+        assert CalculatorFuzzer.generate(20, 12345, second) == length && Arrays.equals(first, second) : "Cases should be reproducible";
+        
+        // An exception is reported as a mismatch rather than lost
+        String crash = CalculatorFuzzer.check(new char[] {'1'}, 2);
+        assert crash != null && crash.startsWith("after key 2 threw") : "Exception should be a mismatch, was " + crash;
+        
+        try {
+            CalculatorFuzzer.Result result = CalculatorFuzzer.run(50_000, 20, 2, 0);
+            assert result.failure() == null : result.failure();
+            assert result.cases() == 50_000 : "All cases should run";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        System.out.println("Reference model tests passed.");
+    }
+    
+    /**
+     * Test precision mode results beyond the standard display limits
+     */
+    private static void testPrecisionMode(CalculationLogic calculationLogic) {
+        System.out.println("Testing Precision Mode...");
+        
+        InputHandler inputHandler = new InputHandler(calculationLogic, MathContext.DECIMAL128);
+        
+        // Test cases
+        assert enter(inputHandler, "0.1+0.2=").equals("0.3") : "0.1 + 0.2 should equal 0.3";
+        assert enter(inputHandler, "1.5*2=").equals("3") : "Trailing zeros should be removed";
+        assert enter(inputHandler, "1/3=").equals("0." + "3".repeat(34)) : "1 / 3 should have 34 digits";
+        assert enter(inputHandler, "2/3=").equals("0." + "6".repeat(33) + "7") : "2 / 3 should round half-even";
+        assert enter(inputHandler, "999999999999999*999999999999999=").equals("999999999999998000000000000001") :
+            "Large products should be exact";
+        assert enter(inputHandler, "1/0=").equals("Error") : "Division by zero should display Error";
+        
+        // Results far beyond the double range
+        String display = enter(inputHandler, "999999999999999*999999999999999=");
+        for (int i = 0; i < 30; i++) {
+            display = inputHandler.processInput("*");
+            inputHandler.processInput("9");
+            inputHandler.processInput("9");
+            inputHandler.processInput("9");
+            display = inputHandler.processInput("=");
+        }
+        assert new BigDecimal(display).compareTo(new BigDecimal("1e100")) > 0 : "Results should not overflow";
+        assert enter(inputHandler, "2-5=").equals("-3") : "Results should come back to the long path";
+        
+        // The precision is configurable
+        InputHandler lowPrecision = new InputHandler(calculationLogic, new MathContext(4));
+        assert enter(lowPrecision, "12345+1=").equals("12350") : "Result should round to 4 digits";
+        assert enter(lowPrecision, "1/8=").equals("0.125") : "Exact results within the precision should be kept";
+        
+        assert calculationLogic.calculate(new BigDecimal("1e400"), new BigDecimal("1e400"), Operator.MULTIPLY,
+            MathContext.DECIMAL64).compareTo(new BigDecimal("1e800")) == 0 : "BigDecimal calculation should not overflow";
+        
+        System.out.println("Precision mode tests passed.");
+    }
+    
+    /**
+     * Test scientific functions, and the error bounds of the fast approximations
+     */
+    private static void testScientificFunctions(CalculationLogic calculationLogic) {
+        System.out.println("Testing Scientific Functions...");
+        
+        // Test cases
+        for (Accuracy accuracy : Accuracy.values()) {
+            assert calculationLogic.sqrt(16, accuracy) == 4 : "sqrt(16) should equal 4";
+            assert calculationLogic.sin(0, accuracy) == 0 && calculationLogic.cos(0, accuracy) == 1 : "sin(0) = 0, cos(0) = 1";
+            assert calculationLogic.exp(0, accuracy) == 1 && calculationLogic.ln(1, accuracy) == 0 : "exp(0) = 1, ln(1) = 0";
+            assert Math.abs(calculationLogic.tan(Math.PI / 4, accuracy) - 1) <= 0x1p-51 : "tan(pi / 4) should equal 1";
+            assert Math.abs(calculationLogic.ln(Math.E, accuracy) - 1) <= 0x1p-52 : "ln(e) should equal 1";
+            assert Math.abs(calculationLogic.pow(2, 10, accuracy) - 1024) <= 0x1p-41 : "2^10 should equal 1024";
+            assert Math.abs(calculationLogic.pow(-2, 3, accuracy) + 8) <= 0x1p-49 : "(-2)^3 should equal -8";
+            assert calculationLogic.pow(-2, 2, accuracy) > 0 && calculationLogic.pow(5, 0, accuracy) == 1 : "Even and zero powers are positive";
+            
+            assert fails(() -> calculationLogic.sqrt(-1, accuracy)) : "sqrt(-1) should throw";
+            assert fails(() -> calculationLogic.ln(0, accuracy)) : "ln(0) should throw";
+            assert fails(() -> calculationLogic.pow(0, -1, accuracy)) : "0^-1 should throw";
+            assert fails(() -> calculationLogic.pow(-8, 1.0 / 3, accuracy)) : "(-8)^(1/3) should throw";
+            assert fails(() -> calculationLogic.exp(710, accuracy)) : "exp(710) should overflow";
+            assert fails(() -> calculationLogic.sin(Double.POSITIVE_INFINITY, accuracy)) : "sin(infinity) should throw";
+        }
+        assert calculationLogic.percent(200, 5) == 10 && calculationLogic.percent(80, 12.5) == 10 && calculationLogic.percent(7, 200) == 14 : "Percentages should be exact";
+        assert calculationLogic.percent(1e307, 50) == 5e306 : "Percentage of a large value should not overflow";
+        assert fails(() -> calculationLogic.percent(1e307, 1e10)) : "Percentage above MAX should throw";
+        
+        // The fast approximations stay within their bounds, measured against StrictMath
+        // which is itself within 1 ULP
+        assert maxUlps(ApproximateMath::exp, StrictMath::exp, -708, 709) <= 1 : "exp should be within 2 ULP";
+        assert maxUlps(ApproximateMath::log, StrictMath::log, 1e-300, 1e300) <= 1 : "ln should be within 2 ULP";
+        assert maxUlps(ApproximateMath::log, StrictMath::log, 0.99, 1.01) <= 1 : "ln near 1 should be within 2 ULP";
+        assert maxUlps(ApproximateMath::sin, StrictMath::sin, -32768, 32768) <= 2 : "sin should be within 3 ULP";
+        assert maxUlps(ApproximateMath::cos, StrictMath::cos, -10, 10) <= 2 : "cos should be within 3 ULP";
+        assert maxUlps(ApproximateMath::tan, StrictMath::tan, -10, 10) <= 4 : "tan should be within 5 ULP";
+        assert maxUlps(y -> ApproximateMath.pow(10, y), y -> StrictMath.pow(10, y), -300, 300) <= 1 : "pow should be within 2 ULP";
+        assert maxUlps(x -> ApproximateMath.pow(x, 0.5), x -> StrictMath.pow(x, 0.5), 1e-300, 1e300) <= 1 : "pow should be within 2 ULP";
+        assert ApproximateMath.sin(Math.PI) == StrictMath.sin(Math.PI) : "sin(pi) needs the full reduction";
+        
+        System.out.println("Scientific function tests passed.");
+    }
+    
+    /**
+     * Test aggregate statistics, compensated sums and parallel determinism
+     */
+    private static void testStatistics(CalculationLogic calculationLogic) {
+        System.out.println("Testing Statistics...");
+        
+        // Test cases
+        Statistics statistics = calculationLogic.aggregate(new double[] {1, 2, 3, 4});
+        assert statistics.count() == 4 && statistics.sum() == 10 && statistics.mean() == 2.5 : "1..4 should sum to 10";
+        assert statistics.variance() == 5.0 / 3 : "Sample variance of 1..4 should equal 5/3";
+        assert statistics.min() == 1 && statistics.max() == 4 : "Min and max should be 1 and 4";
+        
+        // Rounding errors are not lost
+        double[] tenths = new double[10];
+        Arrays.fill(tenths, 0.1);
+        assert calculationLogic.aggregate(tenths).sum() == 1 : "Ten times 0.1 should sum to 1";
+        assert calculationLogic.aggregate(new double[] {1e100, 1, -1e100}).sum() == 1 : "1e100 + 1 - 1e100 should equal 1";
+        assert calculationLogic.aggregate(new double[] {1e9 + 1, 1e9 + 2, 1e9 + 3}).variance() == 1 : "Variance should not cancel";
+        assert calculationLogic.aggregate(new double[] {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE}).sum() == Double.MAX_VALUE : "An intermediate overflow should not be lost";
+        assert calculationLogic.aggregate(new double[] {Double.MIN_VALUE, -0.0, Double.MIN_VALUE}).sum() == 2 * Double.MIN_VALUE : "Subnormals should sum exactly";
+        
+        // Any parallelism gives the same bits as a sequential sum, which is the
+        // correctly rounded exact sum
+        Random random = new Random(19);
+        double[] values = new double[300_000];
+        BigDecimal exact = BigDecimal.ZERO;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(30) - 10);
+            exact = exact.add(new BigDecimal(values[i]));
+        }
+        Statistics sequential = calculationLogic.aggregate(values);
+        assert sequential.sum() == exact.doubleValue() : "Sum should be the exact sum rounded";
+        for (int parallelism : new int[] {1, 2, 3, 8}) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            Statistics parallel = calculationLogic.aggregate(values, pool);
+            pool.shutdown();
+            assert parallel.sum() == sequential.sum() && parallel.mean() == sequential.mean()
+                && parallel.variance() == sequential.variance() : "Parallelism " + parallelism + " should not change results";
+        }
+        Statistics streamed = calculationLogic.aggregate(DoubleStream.of(values).parallel());
+        assert streamed.count() == values.length && streamed.variance() == sequential.variance()
+            && streamed.min() == sequential.min() && streamed.max() == sequential.max() : "Parallel stream should not change results";
+        
+        // Error cases
+        assert fails(() -> new Statistics().mean()) && fails(() -> calculationLogic.aggregate(new double[] {1}).variance()) : "Too few values should throw";
+        assert fails(() -> calculationLogic.aggregate(new double[] {Double.MAX_VALUE, Double.MAX_VALUE}).sum()) : "Overflow should throw";
+        try {
+            calculationLogic.aggregate(new double[] {1, Double.NaN});
+            assert false : "NaN should be rejected";
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        
+        System.out.println("Statistics tests passed.");
+    }
+    
+    /**
+     * Check if a calculation throws ArithmeticException
+     */
+    private static boolean fails(DoubleSupplier calculation) {
+        try {
+            calculation.getAsDouble();
+            return false;
+        } catch (ArithmeticException e) {
+            return true;
+        }
+    }
+    
+    /**
+     * Measure the largest difference between two functions in ULP of the reference,
+     * over arguments spread evenly, or evenly in magnitude for a positive range
+     */
+    private static double maxUlps(DoubleUnaryOperator function, DoubleUnaryOperator reference, double from, double to) {
+        Random random = new Random(18);
+        boolean logarithmic = from > 0;
+        double max = 0;
+        for (int i = 0; i < 200_000; i++) {
+            double x = logarithmic
+                ? Math.exp(Math.log(from) + (Math.log(to) - Math.log(from)) * random.nextDouble())
+                : from + (to - from) * random.nextDouble();
+            double expected = reference.applyAsDouble(x);
+            max = Math.max(max, Math.abs(function.applyAsDouble(x) - expected) / Math.ulp(expected));
+        }
+        return max;
+    }
+    
+    /**
+     * Test result formatting
+     */
+    private static void testResultFormatting(InputHandler inputHandler) {
+        System.out.println("Testing Result Formatting...");
+        
+        // Test cases
+        assert inputHandler.formatResult(42).equals("42") : "Integers should have no decimals";
+        assert inputHandler.formatResult(-7.5).equals("-7.5") : "-7.5 should display '-7.5'";
+        assert inputHandler.formatResult(1.0 / 3).equals("0.3333333333") : "1/3 should have 10 decimals";
+        assert inputHandler.formatResult(2.0 / 3).equals("0.6666666667") : "2/3 should round up";
+        assert inputHandler.formatResult(0.1 + 0.2).equals("0.3") : "0.1 + 0.2 should display '0.3'";
+        assert inputHandler.formatResult(0.99999999999).equals("1") : "Rounding up should drop decimals";
+        assert inputHandler.formatResult(1e15).equals("1000000000000000") : "1e15 should be displayed";
+        assert inputHandler.formatResult(1.5e15).equals("Error") : "Over 1e15 should display 'Error'";
+        
+        // Reset the error state set by the last case
+        inputHandler.processInput("C");
+        
+        System.out.println("Result formatting tests passed.");
+    }
+    
+    /**
+     * Test error cases
+     */
+    private static void testErrorCases(CalculationLogic calculationLogic, InputHandler inputHandler) {
+        System.out.println("Testing Error Cases...");
+        
+        // Test division by zero
+        try {
+            calculationLogic.calculate(5, 0, "/");
+            System.out.println("FAILED: Division by zero should throw exception");
+        } catch (ArithmeticException e) {
+            System.out.println("Division by zero correctly throws exception: " + e.getMessage());
+        }
+        
+        // Test input handler division by zero
+        inputHandler.processInput("C");
+        inputHandler.processInput("5");
+        inputHandler.processInput("/");
+        inputHandler.processInput("0");
+        assert inputHandler.processInput("=").equals("Error") : "5 / 0 should display 'Error'";
+        
+        System.out.println("Error case tests passed.");
+    }
+    
+    /**
+     * Test that keystrokes which leave the display unchanged allocate nothing
+     */
+    private static void testAllocationBudget(InputHandler inputHandler) {
+        System.out.println("Testing Allocation Budget...");
+        
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Allocation tests skipped: allocation counters not available.");
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            System.out.println("Allocation tests skipped: allocation counters not available.");
+            return;
+        }
+        
+        // Digits and '.' past the 15 character limit, and '=' without an operator,
+        // leave the display unchanged
+        char[] entryKeys = {'7', '.', '='};
+        // So do operators, CE after an operator and '=' without a second operand
+        char[] operatorKeys = {'+', '-', InputHandler.KEY_CLEAR_ENTRY, '*', '/', '='};
+        
+        // Take the best of several runs so JIT warm-up and deoptimization are not counted
+        long allocated = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            inputHandler.processInput('C');
+            for (char c : "123456789012345".toCharArray()) {
+                inputHandler.processInput(c);
+            }
+            
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < 100_000; i++) {
+                inputHandler.processInput(entryKeys[i % entryKeys.length]);
+            }
+            for (int i = 0; i < 100_000; i++) {
+                inputHandler.processInput(operatorKeys[i % operatorKeys.length]);
+            }
+            allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - before);
+        }
+        
+        assert allocated < 1024 : "Unchanged keystrokes allocated " + allocated + " bytes";
+        assert inputHandler.processInput('=').equals("123456789012345") : "Display should be unchanged";
+        
+        System.out.println("Allocation budget tests passed.");
+    }
+    
+    /**
+     * Test the calculator server with loopback clients
+     */
+    private static void testServer() {
+        System.out.println("Testing Calculator Server...");
+        
+        Thread serverThread;
+        try (CalculatorServer server = new CalculatorServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            serverThread = new Thread(server, "calculator-server");
+            serverThread.start();
+            
+            try (Socket first = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                 Socket second = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+                BufferedReader firstReader = new BufferedReader(new InputStreamReader(first.getInputStream(), StandardCharsets.US_ASCII));
+                BufferedReader secondReader = new BufferedReader(new InputStreamReader(second.getInputStream(), StandardCharsets.US_ASCII));
+                OutputStream firstOutput = first.getOutputStream();
+                OutputStream secondOutput = second.getOutputStream();
+                
+                // Pipelined lines are answered in order
+                firstOutput.write("12+3=\n*2=\n5/0=\nC\n\n".getBytes(StandardCharsets.US_ASCII));
+                assert firstReader.readLine().equals("15") : "12+3= should be 15";
+                assert firstReader.readLine().equals("30") : "*2= should continue from 15";
+                assert firstReader.readLine().equals("Error") : "Division by zero should be Error";
+                assert firstReader.readLine().equals("0") : "C should clear";
+                assert firstReader.readLine().equals("0") : "Empty line should report the display";
+                
+                // Sessions are independent, and a keystroke may span lines
+                secondOutput.write("0.1 + 0.2\n=\n".getBytes(StandardCharsets.US_ASCII));
+                assert secondReader.readLine().equals("0.2") : "Second session should see only its own input";
+                assert secondReader.readLine().equals("0.3") : "0.1+0.2 should be 0.3";
+                firstOutput.write("45E6=\n".getBytes(StandardCharsets.US_ASCII));
+                assert firstReader.readLine().equals("6") : "E should clear the entry";
+                
+                // Many lines written before any answer is read
+                StringBuilder burst = new StringBuilder();
+                for (int i = 0; i < 10_000; i++) {
+                    burst.append("C1+1=\n");
+                }
+                secondOutput.write(burst.toString().getBytes(StandardCharsets.US_ASCII));
+                for (int i = 0; i < 10_000; i++) {
+                    assert secondReader.readLine().equals("2") : "Pipelined answer " + i + " should be 2";
+                }
+            }
+        } catch (IOException e) {
+            throw new AssertionError("Server test failed: " + e, e);
+        }
+        
+        // Closing the server stops its thread
+        try {
+            serverThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        assert !serverThread.isAlive() : "Server should stop when closed";
+        
+        System.out.println("Calculator server tests passed.");
+    }
+    
+    /**
+     * Test the headless command line, which prints the display after each argument
+     */
+    private static void testHeadlessMain() {
+        System.out.println("Testing Headless Main...");
+        
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        try {
+            System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+            Calculator.main(new String[] {"12+3=", "*2=", "45E6=", "5/0="});
+        } catch (IOException e) {
+            throw new AssertionError("Headless main failed: " + e, e);
+        } finally {
+            System.setOut(out);
+        }
+        List<String> lines = new String(captured.toByteArray(), StandardCharsets.UTF_8).lines().collect(Collectors.toList());
+        assert lines.equals(List.of("15", "30", "6", "Error")) : "Headless main should print each display, was " + lines;
+        
+        System.out.println("Headless main tests passed.");
+    }
+    
+    /**
+     * Test that parallel batch evaluation matches replaying sessions one by one
+     */
+    private static void testBatchEvaluator() {
+        System.out.println("Testing Batch Evaluator...");
+        
+        // Random sessions, with the expected answers from a sequential replay
+        String keys = "0123456789.+-*/=CE ";
+        Random random = new Random(246);
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        long expectedLines = 0;
+        for (int session = 0; session < 500; session++) {
+            InputHandler inputHandler = new InputHandler(new CalculationLogic());
+            int lines = 1 + random.nextInt(8);
+            for (int line = 0; line < lines; line++) {
+                String display = null;
+                int length = 1 + random.nextInt(12);
+                for (int i = 0; i < length; i++) {
+                    char c = keys.charAt(random.nextInt(keys.length() - 1));
+                    input.append(c);
+                    display = inputHandler.processInput(CalculatorServer.toInputKey(c));
+                }
+                input.append(random.nextInt(4) == 0 ? "\r\n" : "\n");
+                expected.append(display).append('\n');
+                expectedLines++;
+            }
+            input.append('\n');
+            expected.append('\n');
+        }
+        
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Path inputFile = Files.createTempFile("calculator-batch", ".in");
+            Path outputFile = Files.createTempFile("calculator-batch", ".out");
+            try {
+                Files.write(inputFile, input.toString().getBytes(StandardCharsets.US_ASCII));
+                
+                // Small chunks so sessions are spread over many tasks
+                for (long chunkSize : new long[] {1, 100, 0}) {
+                    long lines = new BatchEvaluator(pool, chunkSize).evaluate(inputFile, outputFile);
+                    String output = new String(Files.readAllBytes(outputFile), StandardCharsets.US_ASCII);
+                    assert lines == expectedLines : "Expected " + expectedLines + " lines, got " + lines;
+                    assert output.equals(expected.toString()) : "Batch output should match a sequential replay";
+                }
+                
+                // Worker JVMs give the same answers
+                ShardedEvaluator sharded = new ShardedEvaluator(2, List.of(), 1024);
+                long lines = sharded.evaluate(inputFile, outputFile);
+                assert lines == expectedLines : "Expected " + expectedLines + " sharded lines, got " + lines;
+                assert new String(Files.readAllBytes(outputFile), StandardCharsets.US_ASCII).equals(expected.toString())
+                    : "Sharded output should match a sequential replay";
+                
+                // Shards of crashed workers go to their replacements
+                sharded = new ShardedEvaluator(2, List.of("-D" + ShardedEvaluator.EXIT_AFTER_PROPERTY + "=4"), 1024);
+                lines = sharded.evaluate(inputFile, outputFile);
+                assert lines == expectedLines : "Expected " + expectedLines + " lines despite crashes, got " + lines;
+                assert new String(Files.readAllBytes(outputFile), StandardCharsets.US_ASCII).equals(expected.toString())
+                    : "Output despite crashes should match a sequential replay";
+                assert sharded.redispatched() > 0 : "Shards of crashed workers should be redispatched";
+                
+                // A shard that crashes every worker fails the batch
+                try {
+                    new ShardedEvaluator(1, List.of("-D" + ShardedEvaluator.EXIT_AFTER_PROPERTY + "=1"), 1024)
+                        .evaluate(inputFile, outputFile);
+                    assert false : "Batch should fail when every attempt crashes";
+                } catch (IOException e) {
+                    assert e.getMessage().contains("failed on " + ShardedEvaluator.MAX_ATTEMPTS + " workers") : "Unexpected failure: " + e;
+                }
+
+                // Shards of hung workers time out and go to their replacements
+                sharded = new ShardedEvaluator(2, List.of("-D" + ShardedEvaluator.HANG_AFTER_PROPERTY + "=3"), 4096, 2000);
+                lines = sharded.evaluate(inputFile, outputFile);
+                assert lines == expectedLines : "Expected " + expectedLines + " lines despite hangs, got " + lines;
+                assert new String(Files.readAllBytes(outputFile), StandardCharsets.US_ASCII).equals(expected.toString())
+                    : "Output despite hangs should match a sequential replay";
+                assert sharded.redispatched() > 0 : "Shards of hung workers should be redispatched";
+
+                // Workers that cannot start fail the batch with the reason
+                try {
+                    new ShardedEvaluator(1, List.of("-XX:+NoSuchCalculatorOption"), 1024).evaluate(inputFile, outputFile);
+                    assert false : "Batch should fail when no worker starts";
+                } catch (IOException e) {
+                    assert e.getMessage().contains("could not be started") && e.getMessage().contains("before connecting")
+                        : "Unexpected failure: " + e;
+                }
+            } finally {
+                Files.delete(inputFile);
+                Files.delete(outputFile);
+            }
+        } catch (IOException e) {
+            throw new AssertionError("Batch test failed: " + e, e);
+        } finally {
+            pool.shutdown();
+        }
+        
+        System.out.println("Batch evaluator tests passed.");
+    }
+    
+    /**
+     * Test latency histograms and, if enabled, the metrics probes
+     */
+    private static void testMetrics() {
+        System.out.println("Testing Metrics...");
+        
+        // Buckets are contiguous and within 6.25% of their values
+        for (long value = 0; value < 1 << 20; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assert LatencyHistogram.bucketUpperBound(index) >= value : "Bucket should contain " + value;
+            assert index == 0 || LatencyHistogram.bucketUpperBound(index - 1) < value : "Buckets should not overlap at " + value;
+            assert LatencyHistogram.bucketUpperBound(index) - value <= value / 16 : "Bucket too wide at " + value;
+        }
+        assert LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(Long.MAX_VALUE)) == Long.MAX_VALUE : "Last bucket should end at Long.MAX_VALUE";
+        
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 100L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assert snapshot.count() == 1000 : "Expected 1000 values";
+        assert snapshot.max() == 100_000 : "Expected maximum 100000";
+        assert Math.abs(snapshot.mean() - 50_050) < 1e-9 : "Expected mean 50050";
+        assert Math.abs(snapshot.percentile(50) - 50_000) <= 50_000 / 16 : "Median should be near 50000";
+        assert Math.abs(snapshot.percentile(99) - 99_000) <= 99_000 / 16 : "99th percentile should be near 99000";
+        histogram.reset();
+        assert histogram.getCount() == 0 && histogram.getP99Nanos() == 0 : "Reset should clear the histogram";
+        
+        if (!CalculatorMetrics.ENABLED) {
+            System.out.println("Metrics probe tests skipped: metrics disabled.");
+            return;
+        }
+        
+        CalculatorMetrics.reset();
+        InputHandler inputHandler = new InputHandler(new CalculationLogic());
+        for (char c : "12+3=*4=/0=C".toCharArray()) {
+            inputHandler.processInput(c);
+        }
+        CalculatorMetrics.Snapshot metrics = CalculatorMetrics.snapshot();
+        assert metrics.calculations(Operator.ADD) == 1 : "Expected one addition";
+        assert metrics.calculations(Operator.MULTIPLY) == 1 : "Expected one multiplication";
+        assert metrics.calculations(Operator.DIVIDE) == 1 : "Expected one division";
+        assert metrics.failures(CalculatorMetrics.Failure.DIVISION_BY_ZERO) == 1 : "Expected one division by zero";
+        assert metrics.processInput().count() == 12 : "Expected 12 keystrokes";
+        assert metrics.calculateResult().count() == 3 : "Expected 3 results";
+        
+        CalculatorMetrics.registerMBeans();
+        CalculatorMetrics.registerMBeans();
+        try {
+            javax.management.MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            TabularData calculations = (TabularData) server.getAttribute(new ObjectName("DoAn:type=CalculatorMetrics"), "Calculations");
+            assert (Long) calculations.get(new Object[] {"ADD"}).get("value") == 1 : "MBean should report one addition";
+            long keystrokes = (Long) server.getAttribute(new ObjectName("DoAn:type=Latency,name=processInput"), "Count");
+            assert keystrokes == 12 : "MBean should report 12 keystrokes";
+        } catch (javax.management.JMException e) {
+            throw new AssertionError("Metrics MBeans not available: " + e, e);
+        }
+        
+        System.out.println("Metrics tests passed.");
+    }
+    
+    /**
+     * Test recording, querying and recovering the calculation history
+     */
+    private static void testCalculationHistory() {
+        System.out.println("Testing Calculation History...");
+        
+        try {
+            Path file = Files.createTempFile("calculator-history", ".log");
+            try {
+                // Completed calculations are recorded, including errors
+                try (CalculationHistory history = CalculationHistory.open(file)) {
+                    InputHandler inputHandler = new InputHandler(new CalculationLogic());
+                    inputHandler.setHistory(history);
+                    enter(inputHandler, "12+3=");
+                    enter(inputHandler, "5/0=");
+                    enter(inputHandler, "2*3*4=");
+                    enter(inputHandler, "7+");
+                    
+                    assert history.size() == 4 : "Expected 4 records, got " + history.size();
+                    CalculationHistory.Entry first = history.get(0);
+                    assert first.getFirstOperand() == 12 && first.getOperator() == Operator.ADD &&
+                        first.getSecondOperand() == 3 && first.getResult() == 15 && !first.isError() : "Unexpected record " + first;
+                    assert history.get(1).isError() && history.get(1).getOperator() == Operator.DIVIDE : "Division by zero should be recorded as an error";
+                    assert history.get(3).getFirstOperand() == 6 && history.get(3).getResult() == 24 : "Chained operations should be recorded one by one";
+                }
+                
+                // Growth past the initial mapping, and time range queries
+                try (CalculationHistory history = CalculationHistory.open(file, 0)) {
+                    assert history.size() == 4 : "Records should survive reopening";
+                    long base = history.get(3).getTimestamp() + 1000;
+                    for (int i = 0; i < 100_000; i++) {
+                        history.append(base + i, i, Operator.MULTIPLY, 2, i * 2, false);
+                    }
+                    assert history.size() == 100_004 : "Expected 100004 records";
+                    
+                    List<CalculationHistory.Entry> range = history.range(base + 10, base + 20);
+                    assert range.size() == 10 && range.get(0).getFirstOperand() == 10 : "Range should hold records 10 to 19";
+                    
+                    List<CalculationHistory.Entry> recent = history.recent(3);
+                    assert recent.size() == 3 && recent.get(2).getFirstOperand() == 99_999 : "Recent records should end with the last one";
+                }
+                
+                // Recovery stops at a torn record
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    long lastRecord = CalculationHistory.HEADER_SIZE + 100_003L * CalculationHistory.RECORD_SIZE;
+                    channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}), lastRecord + 10);
+                }
+                try (CalculationHistory history = CalculationHistory.open(file, 0)) {
+                    assert history.size() == 100_003 : "Torn record should be dropped, got " + history.size();
+                    history.append(5, Operator.ADD, 5, 10, false);
+                    assert history.size() == 100_004 : "Appending should continue after recovery";
+                }
+                try (CalculationHistory history = CalculationHistory.open(file, 0)) {
+                    assert history.size() == 100_004 : "Appended record should survive reopening";
+                    assert history.get(100_003).getResult() == 10 : "Last record should be the new one";
+                }
+                
+                // Sessions still running after the history is closed carry on
+                CalculationHistory closed = CalculationHistory.open(file, 0);
+                closed.close();
+                InputHandler late = new InputHandler(new CalculationLogic());
+                late.setHistory(closed);
+                assert late.processInputs("2+3=").equals("5") : "Calculating after close should still work";
+            } finally {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            throw new AssertionError("History test failed: " + e, e);
+        }
+        
+        System.out.println("Calculation history tests passed.");
+    }
+}
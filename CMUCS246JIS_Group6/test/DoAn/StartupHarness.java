@@ -0,0 +1,238 @@
+package DoAn;
+
+import java.awt.Window;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.swing.RepaintManager;
+
+/**
+ * Startup time harness for the Calculator application
+ * Starts the calculator in new JVMs and measures the time from starting the process to
+ * its first output: the first result of the headless core, and the first painted frame
+ * of the UI when there is a display. Each is measured without and with an AppCDS
+ * archive, which the harness first generates from a training run of the headless core.
+ * Class data sharing only archives classes loaded from jar files, so the calculator
+ * and harness classes are packaged into a jar next to the archive and all runs use
+ * that jar. The UI runs start the harness itself in the new JVM, which watches for
+ * the first paint and starts the calculator, so the calculator has no startup hook
+ *
+ * Usage: StartupHarness [runs] [archive]
+ */
+public class StartupHarness {
+
+    // Keystrokes of the headless runs
+    private static final String KEYSTROKES = "12+3=";
+    // Argument that runs the UI in this JVM and reports its first frame
+    private static final String FIRST_FRAME_ARGUMENT = "--first-frame";
+    // Line printed when the UI has painted its first frame
+    private static final String FIRST_FRAME = "First frame";
+
+    private final Path classes;
+
+    /**
+     * Constructor for a StartupHarness
+     * @param classes The jar file with the calculator classes
+     */
+    StartupHarness(Path classes) {
+        this.classes = classes;
+    }
+
+    /**
+     * Main method to run the harness
+     */
+    public static void main(String[] args) throws IOException, InterruptedException, URISyntaxException {
+        if (args.length > 0 && args[0].equals(FIRST_FRAME_ARGUMENT)) {
+            showFirstFrame();
+            return;
+        }
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        Path archive = args.length > 1 ? Paths.get(args[1])
+            : Paths.get(System.getProperty("java.io.tmpdir"), "calculator.jsa");
+
+        // Package the calculator classes and the harness, which may be in different places
+        Path classes = archive.resolveSibling("calculator.jar");
+        writeJar(List.of(location(Calculator.class), location(StartupHarness.class)), classes);
+        StartupHarness harness = new StartupHarness(classes);
+
+        // Generate the archive from a training run
+        Files.deleteIfExists(archive);
+        List<String> training = List.of("-XX:ArchiveClassesAtExit=" + archive);
+        if (timeToFirstLine(harness.command(training, Calculator.class, KEYSTROKES)) < 0 || !Files.exists(archive)) {
+            System.out.println("Could not generate the archive " + archive);
+            System.exit(1);
+        }
+        System.out.println("Generated " + archive + " (" + Files.size(archive) / 1024 + " KB)");
+
+        List<String> shared = List.of("-XX:SharedArchiveFile=" + archive);
+        measure("first result", harness.command(List.of(), Calculator.class, KEYSTROKES), runs);
+        measure("first result, archive", harness.command(shared, Calculator.class, KEYSTROKES), runs);
+        measure("first frame", harness.command(List.of(), StartupHarness.class, FIRST_FRAME_ARGUMENT), runs);
+        measure("first frame, archive", harness.command(shared, StartupHarness.class, FIRST_FRAME_ARGUMENT), runs);
+    }
+
+    /**
+     * Start the calculator UI, then print FIRST_FRAME and exit once a window has been
+     * painted
+     * Swing paints through the RepaintManager, so one installed before the UI is
+     * created sees the first paint without a hook in the calculator
+     */
+    private static void showFirstFrame() throws IOException {
+        RepaintManager.setCurrentManager(new RepaintManager() {
+            @Override
+            public void paintDirtyRegions() {
+                super.paintDirtyRegions();
+                for (Window window : Window.getWindows()) {
+                    if (window.isShowing()) {
+                        System.out.println(FIRST_FRAME);
+                        System.exit(0);
+                    }
+                }
+            }
+        });
+        Calculator.main(new String[0]);
+    }
+
+    /**
+     * Build the command that runs a main class from the jar, as a module if this JVM
+     * runs the calculator as one
+     * @param options JVM options
+     * @param mainClass The class to run, the calculator or the harness
+     * @param args Arguments of the main class
+     * @return The command
+     */
+    List<String> command(List<String> options, Class<?> mainClass, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(options);
+        Module module = Calculator.class.getModule();
+        if (module.isNamed()) {
+            command.add("-p");
+            command.add(classes.toString());
+            command.add("-m");
+            command.add(module.getName() + "/" + mainClass.getName());
+        } else {
+            command.add("-cp");
+            command.add(classes.toString());
+            command.add(mainClass.getName());
+        }
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+
+    /**
+     * Find where a class was loaded from
+     * @param type The class
+     * @return Its class directory or jar file
+     */
+    private static Path location(Class<?> type) throws URISyntaxException {
+        return Paths.get(type.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+    /**
+     * Package class directories and jar files into one jar file
+     * An entry found in more than one of them is taken from the first
+     * @param sources The class directories and jar files
+     * @param jar The jar file to write
+     */
+    private static void writeJar(List<Path> sources, Path jar) throws IOException {
+        Set<String> written = new HashSet<>();
+        try (JarOutputStream output = new JarOutputStream(Files.newOutputStream(jar))) {
+            for (Path source : sources) {
+                if (Files.isDirectory(source)) {
+                    List<Path> files;
+                    try (Stream<Path> walk = Files.walk(source)) {
+                        files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+                    }
+                    for (Path file : files) {
+                        String name = source.relativize(file).toString().replace(File.separatorChar, '/');
+                        if (written.add(name)) {
+                            output.putNextEntry(new JarEntry(name));
+                            Files.copy(file, output);
+                            output.closeEntry();
+                        }
+                    }
+                } else {
+                    try (JarFile input = new JarFile(source.toFile())) {
+                        for (JarEntry entry : Collections.list(input.entries())) {
+                            if (!entry.isDirectory() && written.add(entry.getName())) {
+                                output.putNextEntry(new JarEntry(entry.getName()));
+                                try (InputStream stream = input.getInputStream(entry)) {
+                                    stream.transferTo(output);
+                                }
+                                output.closeEntry();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Time a command until its first line of output, over several runs
+     * @param name The name of the measurement
+     * @param command The command
+     * @param runs The number of runs
+     */
+    private static void measure(String name, List<String> command, int runs) throws IOException, InterruptedException {
+        long[] millis = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long nanos = timeToFirstLine(command);
+            if (nanos < 0) {
+                System.out.println(String.format("%-24s unavailable, the process gave no output", name));
+                return;
+            }
+            millis[i] = nanos / 1_000_000;
+        }
+        Arrays.sort(millis);
+        System.out.println(String.format("%-24s min %5d ms, median %5d ms", name, millis[0], millis[runs / 2]));
+    }
+
+    /**
+     * Start a command, time its first line of output and wait for it to exit
+     * The clock stops when the first line arrives, so the rest of the run and the
+     * shutdown of the JVM are not counted
+     * @param command The command
+     * @return Nanoseconds from starting the process to its first line, or -1 if it
+     *         printed none or failed
+     */
+    private static long timeToFirstLine(List<String> command) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .directory(new File(System.getProperty("user.dir")))
+            .start();
+        long nanos;
+        try (BufferedReader output = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line = output.readLine();
+            nanos = System.nanoTime() - start;
+            if (line == null) {
+                nanos = -1;
+            }
+            // Read the rest, so the process cannot block on a full pipe
+            while (output.readLine() != null) {
+            }
+        }
+        return process.waitFor() == 0 ? nanos : -1;
+    }
+}